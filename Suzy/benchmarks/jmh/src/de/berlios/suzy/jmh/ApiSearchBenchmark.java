@@ -0,0 +1,55 @@
+package de.berlios.suzy.jmh;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.berlios.suzy.parser.ApiSearchUtil;
+import de.berlios.suzy.parser.ClassInfo;
+
+/**
+ * Measures the searches behind !api and !method on an index of the JDK, see {@link JdkIndex}.
+ * The patterns are what users ask for: a class, a method of a class, wildcards,
+ * a method name alone and something that is not there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiSearchBenchmark {
+    @Param({ "String", "HashMap.put", "*Map*.get", "java.util.*List", "getInstance", "xyzzy" })
+    public String pattern;
+
+    @Param({ "4000" })
+    public int classes;
+
+    private ClassInfo[] index;
+
+    @Setup
+    public void setUp() {
+        index = JdkIndex.build(JdkIndex.load(classes));
+    }
+
+    @Benchmark
+    public Set<String> parseAll() {
+        return ApiSearchUtil.parseAll(index, pattern);
+    }
+
+    @Benchmark
+    public Set<String> parseMethods() {
+        return ApiSearchUtil.parseMethods(index, pattern);
+    }
+}
@@ -0,0 +1,81 @@
+package de.berlios.suzy.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.berlios.suzy.parser.ClassInfo;
+import de.berlios.suzy.parser.MethodInfo;
+
+/**
+ * Measures building the api index:
+ * <ul>
+ * <li><code>build</code>: creating the {@link ClassInfo}s, MethodInfos and FieldInfos
+ *     of the whole JDK the way the doclet does, see {@link JdkIndex}
+ * <li><code>methodInfo</code>: a single MethodInfo with a generic signature, whose
+ *     url is escaped with regular expressions
+ * <li><code>load</code>: reading the index from its serialized form, which is what
+ *     the bot does with api.dat on start and on !apireload
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBuildBenchmark {
+    @Param({ "4000" })
+    public int classes;
+
+    private List<JdkIndex.Type> types;
+    private ClassInfo hashMap;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        types = JdkIndex.load(classes);
+        hashMap = new ClassInfo("HashMap", "java.util.HashMap", JdkIndex.BASE_URL);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(JdkIndex.build(types));
+        out.close();
+        serialized = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public ClassInfo[] build() {
+        return JdkIndex.build(types);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public MethodInfo methodInfo() {
+        return new MethodInfo(hashMap, "putAll", "(java.util.Map<? extends K, ? extends V>)", JdkIndex.BASE_URL,
+                hashMap);
+    }
+
+    @Benchmark
+    public ClassInfo[] load() throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        ClassInfo[] index = (ClassInfo[]) in.readObject();
+        in.close();
+        return index;
+    }
+}
@@ -0,0 +1,229 @@
+package de.berlios.suzy.jmh;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.berlios.suzy.irc.IrcClient;
+import de.berlios.suzy.irc.IrcMessage;
+
+/**
+ * Measures the handling of incoming lines, per line.
+ * <br>
+ * <code>parse</code> only parses a mix of lines with {@link IrcMessage}. The other
+ * benchmarks write a batch of lines to a real {@link IrcClient} with the plugins of
+ * plugins.conf through a {@link LoopbackServer} and wait until the client has handled
+ * all of them, so they include reading the socket and the dispatch on the loop:
+ * <ul>
+ * <li><code>handle</code>: the mix of a busy channel, mostly chatter, some joins,
+ *     parts, quits and nick changes, tagged lines, notices and numerics
+ * <li><code>privmsgChatter</code>: messages to the channel which are no commands
+ * <li><code>privmsgUnknown</code>: messages starting with the command prefix, but
+ *     naming no command
+ * <li><code>privmsgCommand</code>: <code>!roll 2d6</code>, which is dispatched to the
+ *     command threads; the replies are sent while the next batch is handled
+ * <li><code>ping</code>: keep-alives of the server, each answered with a PONG
+ * <li><code>pong</code>: answers of the server to pings that were no flood probes
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IrcHandlerBenchmark {
+    private static final int LINES = 1000;
+    private static final int COMMANDS = 100;
+    private static final String NICK = "suzy";
+
+    private final IrcMessage message = new IrcMessage();
+    private byte[] mix;
+    private int[] starts;
+    private int[] ends;
+
+    private byte[] chatter;
+    private byte[] unknown;
+    private byte[] commands;
+    private byte[] pings;
+    private byte[] pongs;
+
+    private LoopbackServer server;
+    private IrcClient client;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < LINES; i++) {
+            lines.add(mixedLine(random, i));
+        }
+        mix = join(lines);
+        starts = new int[LINES];
+        ends = new int[LINES];
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i < mix.length; i++) {
+            if (mix[i] == '\n') {
+                starts[line] = start;
+                ends[line] = i - 1;
+                line++;
+                start = i + 1;
+            }
+        }
+
+        lines.clear();
+        for (int i = 0; i < LINES; i++) {
+            lines.add(":" + user(random) + " PRIVMSG #jmh :" + chat(random));
+        }
+        chatter = join(lines);
+        lines.clear();
+        for (int i = 0; i < LINES; i++) {
+            lines.add(":" + user(random) + " PRIVMSG #jmh :!nosuchcommand " + chat(random));
+        }
+        unknown = join(lines);
+        lines.clear();
+        for (int i = 0; i < COMMANDS; i++) {
+            lines.add(":" + user(random) + " PRIVMSG #jmh :!roll 2d6");
+        }
+        commands = join(lines);
+        lines.clear();
+        for (int i = 0; i < LINES; i++) {
+            lines.add("PING :" + LoopbackServer.SERVER_NAME);
+        }
+        pings = join(lines);
+        lines.clear();
+        for (int i = 0; i < LINES; i++) {
+            lines.add(":" + LoopbackServer.SERVER_NAME + " PONG " + LoopbackServer.SERVER_NAME + " :idle");
+        }
+        pongs = join(lines);
+
+        server = new LoopbackServer();
+        client = new IrcClient("jmh", "127.0.0.1", server.getPort(), NICK, "#jmh.admin", "", 600, "!",
+                LoopbackServer.options());
+        server.accept(NICK);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static String mixedLine(Random random, int i) {
+        int kind = random.nextInt(100);
+        if (kind < 70) {
+            return ":" + user(random) + " PRIVMSG #jmh :" + chat(random);
+        } else if (kind < 75) {
+            return ":" + user(random) + " JOIN #jmh";
+        } else if (kind < 80) {
+            return ":" + user(random) + " PART #jmh :bye";
+        } else if (kind < 82) {
+            return ":" + user(random) + " QUIT :Ping timeout: 240 seconds";
+        } else if (kind < 84) {
+            return ":" + user(random) + " NICK user" + random.nextInt(500) + "_";
+        } else if (kind < 92) {
+            return "@time=2024-01-01T12:00:" + (10 + i % 50) + ".000Z;account=user" + i + " :" + user(random)
+                    + " PRIVMSG #jmh :" + chat(random);
+        } else if (kind < 96) {
+            return ":" + LoopbackServer.SERVER_NAME + " NOTICE " + NICK + " :*** Notice -- client connecting";
+        } else {
+            return ":" + LoopbackServer.SERVER_NAME + " 372 " + NICK + " :- message of the day";
+        }
+    }
+
+    private static String user(Random random) {
+        int n = random.nextInt(500);
+        return "user" + n + "!~ident" + n + "@host-" + n + ".example.org";
+    }
+
+    private static String chat(Random random) {
+        String[] words = { "the", "a", "java", "thread", "why", "does", "my", "code", "not", "work", "compile",
+                "NullPointerException", "hashmap", "lol", "thanks", "anyone", "know", "how", "to", "generics" };
+        StringBuilder text = new StringBuilder();
+        int count = 3 + random.nextInt(15);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(words[random.nextInt(words.length)]);
+        }
+        return text.toString();
+    }
+
+    private static byte[] join(List<String> lines) throws UnsupportedEncodingException {
+        StringBuilder all = new StringBuilder();
+        for (String line : lines) {
+            all.append(line).append("\r\n");
+        }
+        return all.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int parse() {
+        int params = 0;
+        for (int i = 0; i < LINES; i++) {
+            if (message.parse(mix, starts[i], ends[i])) {
+                params += message.getParamCount() + message.getNumeric();
+            }
+        }
+        return params;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void handle() throws Exception {
+        server.write(mix);
+        server.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void privmsgChatter() throws Exception {
+        server.write(chatter);
+        server.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void privmsgUnknown() throws Exception {
+        server.write(unknown);
+        server.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void privmsgCommand() throws Exception {
+        server.write(commands);
+        server.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void ping() throws Exception {
+        server.write(pings);
+        server.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void pong() throws Exception {
+        server.write(pongs);
+        server.sync();
+    }
+}
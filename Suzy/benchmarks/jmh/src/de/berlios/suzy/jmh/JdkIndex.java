@@ -0,0 +1,218 @@
+package de.berlios.suzy.jmh;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.berlios.suzy.parser.ApiParser;
+import de.berlios.suzy.parser.ClassInfo;
+import de.berlios.suzy.parser.FieldInfo;
+import de.berlios.suzy.parser.MethodInfo;
+
+/**
+ * An api index of the running JDK, built the way {@link ApiParser#start} builds one
+ * from the javadoc of the JDK sources, but read by reflection, so neither the sources
+ * nor an api.dat are needed.
+ * <br>
+ * Starting with some well known classes, the public classes of java.* and javax.*
+ * that the public api of the classes taken so far mentions are added, until there
+ * are as many as asked for. The JDK 6 api the bot was written for has about 3800.
+ */
+final class JdkIndex {
+    static final String BASE_URL = "http://java.sun.com/javase/6/docs/api/";
+
+    private static final String[] SEEDS = {
+        "java.lang.Object", "java.lang.String", "java.lang.Thread", "java.util.HashMap",
+        "java.util.concurrent.ConcurrentHashMap", "java.util.regex.Pattern", "java.io.File",
+        "java.net.Socket", "java.nio.channels.SocketChannel", "java.text.SimpleDateFormat",
+        "java.math.BigDecimal", "java.sql.Connection", "java.awt.Graphics2D", "javax.swing.JTable",
+        "javax.xml.parsers.DocumentBuilder"
+    };
+
+    private JdkIndex() {
+    }
+
+    /**
+     * What the doclet reads about a class: its name and the public and protected
+     * members it declares.
+     */
+    static final class Type {
+        final String name;
+        final String qualifiedName;
+        final String[] methodNames;
+        final String[] signatures;
+        final String[] fieldNames;
+        final String[] fieldTypes;
+        Type superType;
+
+        Type(Class<?> c) {
+            String simpleName = c.getSimpleName();
+            for (Class<?> outer = c.getEnclosingClass(); outer != null; outer = outer.getEnclosingClass()) {
+                simpleName = outer.getSimpleName() + "." + simpleName;
+            }
+            name = simpleName;
+            qualifiedName = typeName(c);
+
+            List<Method> methods = new ArrayList<Method>();
+            for (Method method : c.getDeclaredMethods()) {
+                if (isDocumented(method.getModifiers()) && !method.isSynthetic() && !method.isBridge()) {
+                    methods.add(method);
+                }
+            }
+            methodNames = new String[methods.size()];
+            signatures = new String[methods.size()];
+            for (int i = 0; i < methods.size(); i++) {
+                Method method = methods.get(i);
+                methodNames[i] = method.getName();
+                StringBuilder signature = new StringBuilder("(");
+                Class<?>[] parameters = method.getParameterTypes();
+                for (int j = 0; j < parameters.length; j++) {
+                    if (j > 0) {
+                        signature.append(", ");
+                    }
+                    signature.append(typeName(parameters[j]));
+                }
+                signatures[i] = signature.append(')').toString();
+            }
+
+            List<Field> fields = new ArrayList<Field>();
+            for (Field field : c.getDeclaredFields()) {
+                if (isDocumented(field.getModifiers()) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+            fieldNames = new String[fields.size()];
+            fieldTypes = new String[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                fieldNames[i] = fields.get(i).getName();
+                fieldTypes[i] = typeName(fields.get(i).getType());
+            }
+        }
+    }
+
+    /**
+     * Reads the classes of the index, sorted by name.
+     * @param max number of classes to read
+     * @return the classes, their superclasses are linked
+     */
+    static List<Type> load(int max) {
+        Map<Class<?>, Type> read = new HashMap<Class<?>, Type>();
+        List<Type> types = new ArrayList<Type>();
+        Set<Class<?>> seen = new HashSet<Class<?>>();
+        LinkedList<Class<?>> queue = new LinkedList<Class<?>>();
+        for (String seed : SEEDS) {
+            try {
+                offer(Class.forName(seed, false, JdkIndex.class.getClassLoader()), seen, queue);
+            } catch (ClassNotFoundException e) {
+                //not every vm has every package
+            }
+        }
+
+        while (types.size() < max && !queue.isEmpty()) {
+            Class<?> c = queue.removeFirst();
+            try {
+                types.add(type(c, read));
+                offer(c.getSuperclass(), seen, queue);
+                for (Class<?> i : c.getInterfaces()) {
+                    offer(i, seen, queue);
+                }
+                for (Class<?> member : c.getDeclaredClasses()) {
+                    offer(member, seen, queue);
+                }
+                for (Method method : c.getDeclaredMethods()) {
+                    if (isDocumented(method.getModifiers())) {
+                        offer(method.getReturnType(), seen, queue);
+                        for (Class<?> parameter : method.getParameterTypes()) {
+                            offer(parameter, seen, queue);
+                        }
+                    }
+                }
+                for (Field field : c.getDeclaredFields()) {
+                    if (isDocumented(field.getModifiers())) {
+                        offer(field.getType(), seen, queue);
+                    }
+                }
+            } catch (LinkageError e) {
+                //a class it mentions is missing, leave it out
+            }
+        }
+
+        Collections.sort(types, new Comparator<Type>() {
+            public int compare(Type a, Type b) {
+                return a.qualifiedName.compareTo(b.qualifiedName);
+            }
+        });
+        return types;
+    }
+
+    private static Type type(Class<?> c, Map<Class<?>, Type> read) {
+        Type type = read.get(c);
+        if (type == null) {
+            type = new Type(c);
+            read.put(c, type);
+            if (c.getSuperclass() != null) {
+                type.superType = type(c.getSuperclass(), read);
+            }
+        }
+        return type;
+    }
+
+    private static void offer(Class<?> c, Set<Class<?>> seen, List<Class<?>> queue) {
+        while (c != null && c.isArray()) {
+            c = c.getComponentType();
+        }
+        if (c == null || c.isPrimitive() || c.isAnonymousClass() || c.isLocalClass()
+                || !Modifier.isPublic(c.getModifiers())) {
+            return;
+        }
+        if ((c.getName().startsWith("java.") || c.getName().startsWith("javax.")) && seen.add(c)) {
+            queue.add(c);
+        }
+    }
+
+    private static boolean isDocumented(int modifiers) {
+        return Modifier.isPublic(modifiers) || Modifier.isProtected(modifiers);
+    }
+
+    private static String typeName(Class<?> c) {
+        if (c.isArray()) {
+            return typeName(c.getComponentType()) + "[]";
+        }
+        return c.getName().replace('$', '.');
+    }
+
+    /**
+     * Builds the index the way the doclet does.
+     * @param types the classes read by {@link #load(int)}
+     * @return the index, as read from api.dat by {@link ApiParser}
+     */
+    static ClassInfo[] build(List<Type> types) {
+        ClassInfo[] classes = new ClassInfo[types.size()];
+        for (int i = 0; i < classes.length; i++) {
+            Type type = types.get(i);
+            ClassInfo ci = new ClassInfo(type.name, type.qualifiedName, BASE_URL);
+            for (Type t = type; t != null; t = t.superType) {
+                ClassInfo superCi = new ClassInfo(t.name, t.qualifiedName, BASE_URL);
+                for (int j = 0; j < t.methodNames.length; j++) {
+                    ci.addMethod(new MethodInfo(ci, t.methodNames[j], t.signatures[j], BASE_URL, superCi));
+                }
+                for (int j = 0; j < t.fieldNames.length; j++) {
+                    //the doclet passes the type where the base url belongs
+                    ci.addField(new FieldInfo(ci, t.fieldNames[j], t.fieldTypes[j]));
+                }
+            }
+            ci.update();
+            classes[i] = ci;
+        }
+        return classes;
+    }
+}
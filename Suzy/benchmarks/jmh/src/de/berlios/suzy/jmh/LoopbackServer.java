@@ -0,0 +1,147 @@
+package de.berlios.suzy.jmh;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * A server for exactly one client on the loopback interface. The benchmarks write
+ * lines to the client and then wait for {@link #sync()}, so everything they wrote has
+ * gone through the client's real connection: read, parsed and handled on its loop.
+ * <br>
+ * Everything the client sends is read and dropped, its pings are answered.
+ */
+class LoopbackServer {
+    static final String SERVER_NAME = "jmh.server";
+    private static final String SYNC = "sync";
+    private static final long TIMEOUT = 10000;
+
+    private final ServerSocket serverSocket;
+    private Socket socket;
+    private OutputStream out;
+    private long synced = 0;
+    private long acknowledged = 0;
+
+    /**
+     * Opens the server, connect the client to {@link #getPort()} and then call {@link #accept(String)}.
+     * @throws IOException if no port is free
+     */
+    LoopbackServer() throws IOException {
+        //the client logs every line, keep that out of the measurement
+        System.setProperty("suzy.log.console", "false");
+        System.setProperty("suzy.log.dir", "");
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Returns network options for the client which turn off everything that would
+     * hold back lines or commands, so the benchmarks measure the work and not the limits.
+     * @return options for the client
+     */
+    static Properties options() {
+        Properties options = new Properties();
+        options.setProperty("limits.user.rate", "0");
+        options.setProperty("limits.channel.rate", "0");
+        options.setProperty("limits.command.rate", "0");
+        options.setProperty("flood.burst", "65536");
+        options.setProperty("flood.rate", "1048576");
+        options.setProperty("flood.maxRate", "1048576");
+        options.setProperty("flood.recvq", "1048576");
+        options.setProperty("commands.maxQueued", "100000");
+        return options;
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts the client and registers it as nick, then joins it to #jmh.
+     * @param nick nick of the client
+     * @throws IOException if the client does not connect
+     * @throws InterruptedException if interrupted while waiting for the client
+     */
+    void accept(String nick) throws IOException, InterruptedException {
+        socket = serverSocket.accept();
+        serverSocket.close();
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        Thread reader = new Thread("jmh-server") {
+            public void run() {
+                read();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        write((":" + SERVER_NAME + " 001 " + nick + " :Welcome\r\n"
+                + ":" + SERVER_NAME + " 376 " + nick + " :End of /MOTD command.\r\n"
+                + ":" + nick + "!bot@localhost JOIN #jmh\r\n").getBytes("UTF-8"));
+        sync();
+    }
+
+    /**
+     * Writes lines to the client, they are sent by the next {@link #sync()}.
+     * @param lines the lines, each ending with \r\n
+     * @throws IOException if the client is gone
+     */
+    synchronized void write(byte[] lines) throws IOException {
+        out.write(lines);
+    }
+
+    /**
+     * Sends a PING and waits for its answer. As the client handles lines in order,
+     * all lines written before have been handled when it returns.
+     * @throws IOException if the client is gone
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void sync() throws IOException, InterruptedException {
+        long token = ++synced;
+        out.write(("PING :" + SYNC + token + "\r\n").getBytes("UTF-8"));
+        out.flush();
+        long until = System.currentTimeMillis() + TIMEOUT;
+        while (acknowledged < token) {
+            long left = until - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new IllegalStateException("the client did not answer within " + TIMEOUT + " ms");
+            }
+            wait(left);
+        }
+    }
+
+    private void read() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("PING ")) {
+                    synchronized (this) {
+                        out.write((":" + SERVER_NAME + " PONG " + SERVER_NAME + " " + line.substring(5) + "\r\n")
+                                .getBytes("UTF-8"));
+                        out.flush();
+                    }
+                } else if (line.startsWith("PONG :" + SYNC)) {
+                    synchronized (this) {
+                        acknowledged = Math.max(acknowledged, Long.parseLong(line.substring(6 + SYNC.length())));
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //the client is gone, sync() times out
+        }
+    }
+
+    void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,123 @@
+package de.berlios.suzy.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.berlios.suzy.irc.IrcClient;
+import de.berlios.suzy.irc.IrcCommandEvent;
+import de.berlios.suzy.irc.IrcTarget;
+import de.berlios.suzy.irc.MessageTypes;
+import de.berlios.suzy.irc.plugin.DicePlugin;
+import de.berlios.suzy.irc.plugin.FactoidPlugin;
+
+/**
+ * Measures single plugins, from the event to the text of the reply. The reply is
+ * kept by the client instead of being sent, so neither the command threads nor
+ * the send path are part of it.
+ * <br>
+ * <code>factoid</code> runs the factoid commands of the <code>command</code> parameter
+ * against factoids.xml of the working directory: a hit, a miss, an alias and a tell.
+ * <code>dice</code> rolls the dice of the <code>dice</code> parameter, one of each kind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PluginBenchmark {
+    private static final String NICK = "suzy";
+
+    /**
+     * A connected client that keeps the last reply.
+     */
+    @State(Scope.Benchmark)
+    public static class Client {
+        private LoopbackServer server;
+        private IrcClient client;
+        private String reply;
+
+        @Setup
+        public void setUp() throws Exception {
+            //FactoidPlugin prints every lookup
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+            }));
+            server = new LoopbackServer();
+            client = new IrcClient("jmh", "127.0.0.1", server.getPort(), NICK, "#jmh.admin", "", 600, "!",
+                    LoopbackServer.options()) {
+                public void sendMessageTo(String target, MessageTypes type, String text) {
+                    reply = text;
+                }
+            };
+            server.accept(NICK);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            server.close();
+        }
+
+        IrcCommandEvent event(String line) {
+            int space = line.indexOf(' ');
+            String command = space == -1 ? line : line.substring(0, space);
+            String message = space == -1 ? "" : line.substring(space + 1);
+            return new IrcCommandEvent(client, new IrcTarget("user1", "#jmh", false), "!", command, message);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Factoids {
+        @Param({ "see api", "see nosuchfactoid", "ask", "tell user2 tutorial" })
+        public String command;
+
+        private FactoidPlugin plugin;
+        private IrcCommandEvent event;
+
+        @Setup
+        public void setUp(Client client) throws Exception {
+            plugin = new FactoidPlugin();
+            event = client.event(command);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Dice {
+        @Param({ "1d6", "3d20", "2d{rock, paper, scissors}", "4d[-5,5]" })
+        public String dice;
+
+        private DicePlugin plugin = new DicePlugin();
+        private IrcCommandEvent event;
+
+        @Setup
+        public void setUp(Client client) {
+            event = client.event("roll " + dice);
+        }
+    }
+
+    @Benchmark
+    public String factoid(Client client, Factoids factoids) {
+        factoids.plugin.handleEvent(factoids.event);
+        return client.reply;
+    }
+
+    @Benchmark
+    public String dice(Client client, Dice dice) {
+        dice.plugin.handleEvent(dice.event);
+        return client.reply;
+    }
+}
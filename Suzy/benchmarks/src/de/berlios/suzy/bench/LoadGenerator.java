@@ -0,0 +1,435 @@
+package de.berlios.suzy.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import de.berlios.suzy.irc.CommandTrace;
+import de.berlios.suzy.irc.IrcClient;
+import de.berlios.suzy.irc.ReplyCache;
+
+/**
+ * Runs a real {@link IrcClient} with its plugins against a {@link MockIrcd} and lets
+ * thousands of simulated users talk to it. Reports the latency from a command being
+ * sent to the first line of its reply arriving, and the number of replies per second.
+ * <br>
+ * All users sit in one channel with the bot. Commands (<code>!api</code>, <code>!see</code>,
+ * <code>!calc</code> and <code>!roll</code>) are sent as private messages at the given rate,
+ * so each reply can be told apart by the nick it is sent to. Each user has at most one
+ * command waiting for a reply. In between there are twice as many lines of chatter in the
+ * channel and some joins, parts, quits and nick changes, as in a busy channel.
+ * <br>
+ * Arguments of the form key=value are passed to the client as network options
+ * (see servers.conf), except for <code>ircd.rate</code>, <code>ircd.burst</code>,
+ * <code>ircd.linePenalty</code> and <code>ircd.recvq</code>, which set the flood limits of
+ * the server (see {@link MockIrcd#setFloodLimits(int, int, int, int)}). The client's
+ * command limits (<code>limits.*</code>) are turned off unless given, they would drop
+ * most of the load.
+ * <br>
+ * Usage: LoadGenerator [users] [commands per second] [seconds] [warm-up seconds] [key=value ...]
+ * <br>
+ * Run it from the Suzy directory, the client loads plugins.conf, factoids.xml and parsers.xml
+ * from the working directory.
+ */
+public class LoadGenerator implements MockIrcd.Listener {
+    private static final String BOT = "suzy";
+    private static final String ADMIN_CHANNEL = "#load.admin";
+    private static final String CHANNEL = "#load";
+    private static final long REPLY_TIMEOUT = 30000;
+
+    private static final String[] COMMANDS = { "api", "see", "calc", "roll" };
+    private static final String[][] ARGUMENTS = {
+        { "String", "HashMap", "java.util.List", "Thread.sleep", "Integer.parseInt" },
+        { "ask", "tutorial", "faq", "rules", "nosuchfactoid" },
+        { "1+2", "3*(4+5)/2", "sqrt(2)", "2^10-1", "sin(pi/4)" },
+        { "2d6", "3d20", "d100", "4d{a,b,c}", "2d[5,10]" },
+    };
+    private static final String[] CHATTER = { "hello", "does anyone know why my HashMap is null",
+            "lol", "thanks", "use a StringBuilder", "read the tutorial", "it works now", "brb" };
+
+    private final int userCount;
+    private final MockIrcd ircd;
+    private final PrintStream out;
+    private final Random random = new Random(42);
+    private final long origin = System.nanoTime();
+    private volatile IrcClient client;
+
+    //guarded by this, must never be held while calling the server
+    private final User[] users;
+    private final Map<String, User> usersByNick = new HashMap<String, User>();
+    private final Latencies all = new Latencies();
+    private final Latencies[] byCommand = new Latencies[COMMANDS.length];
+    private long recordFrom = Long.MAX_VALUE;
+    private int sent = 0;
+    private int lost = 0;
+    private int skipped = 0;
+    private int extra = 0;
+    private int adminJoins = 0;
+    private int joins = 0;
+    private int nextNick = 0;
+
+    private LoadGenerator(PrintStream out, int userCount) throws Exception {
+        this.out = out;
+        this.userCount = userCount;
+        this.ircd = new MockIrcd(this);
+        users = new User[userCount];
+        for (int i = 0; i < byCommand.length; i++) {
+            byCommand[i] = new Latencies();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int warmUp = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        Properties options = new Properties();
+        options.setProperty("limits.user.rate", "0");
+        options.setProperty("limits.channel.rate", "0");
+        options.setProperty("limits.command.rate", "0");
+        Properties ircdOptions = new Properties();
+        for (int i = 4; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            String key = args[i].substring(0, separator).trim();
+            String value = args[i].substring(separator + 1).trim();
+            if (key.startsWith("ircd.")) {
+                ircdOptions.setProperty(key.substring(5), value);
+            } else {
+                options.setProperty(key, value);
+            }
+        }
+
+        PrintStream out = System.out;
+        //the client logs every line, keep that out of the measurement
+        System.setProperty("suzy.log.console", "false");
+        System.setProperty("suzy.log.dir", "");
+        //some plugins print to System.out
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        LoadGenerator generator = new LoadGenerator(out, users);
+        generator.ircd.setFloodLimits(Integer.parseInt(ircdOptions.getProperty("rate", "2048")),
+                Integer.parseInt(ircdOptions.getProperty("burst", "4096")),
+                Integer.parseInt(ircdOptions.getProperty("linePenalty", "64")),
+                Integer.parseInt(ircdOptions.getProperty("recvq", "8192")));
+        generator.run(options, rate, seconds, warmUp);
+        System.exit(0);
+    }
+
+    private void run(Properties options, double rate, int seconds, int warmUp)
+            throws InterruptedException {
+        ircd.start();
+        IrcClient client = new IrcClient("load", "127.0.0.1", ircd.getPort(), BOT, ADMIN_CHANNEL, "", 120,
+                "!", options);
+        synchronized (this) {
+            long until = System.currentTimeMillis() + 30000;
+            while (adminJoins == 0 && System.currentTimeMillis() < until) {
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            this.client = client;
+            client.send("JOIN " + CHANNEL);
+            while (joins == 0 && System.currentTimeMillis() < until) {
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            if (joins == 0) {
+                out.println("client did not join " + CHANNEL);
+                return;
+            }
+        }
+
+        out.println("adding " + userCount + " users");
+        for (int i = 0; i < userCount; i++) {
+            User user = new User(newNick());
+            synchronized (this) {
+                users[i] = user;
+                usersByNick.put(user.nick.toLowerCase(), user);
+            }
+            ircd.addUser(user.nick);
+            ircd.join(user.nick, CHANNEL);
+        }
+
+        out.println("running for " + seconds + " s at " + rate + " commands/s (" + warmUp + " s warm-up)");
+        long start = now();
+        long end = start + seconds * 1000000000L;
+        synchronized (this) {
+            recordFrom = start + warmUp * 1000000000L;
+        }
+        //chatter and churn come on top of the commands
+        double eventRate = rate * 3.1;
+        long next = start;
+        long nextTimeoutCheck = start;
+        while (next < end) {
+            long now = now();
+            if (now < next) {
+                long wait = (next - now) / 1000000;
+                if (wait > 1) {
+                    Thread.sleep(wait - 1);
+                } else {
+                    Thread.yield();
+                }
+                continue;
+            }
+            double kind = random.nextDouble() * 3.1;
+            if (kind < 1) {
+                sendCommand(now);
+            } else if (kind < 3) {
+                chatter();
+            } else {
+                churn();
+            }
+            next += (long) (-Math.log(1 - random.nextDouble()) / eventRate * 1e9);
+
+            if (now >= nextTimeoutCheck) {
+                expire(now);
+                nextTimeoutCheck = now + 1000000000L;
+            }
+        }
+        long duration = now() - recordFrom;
+
+        //wait for the replies still missing
+        long until = now() + REPLY_TIMEOUT * 1000000L;
+        while (now() < until && waiting() > 0) {
+            Thread.sleep(50);
+        }
+        expire(Long.MAX_VALUE);
+
+        report(rate, duration);
+    }
+
+    private void sendCommand(long now) {
+        User user = null;
+        String text;
+        synchronized (this) {
+            for (int i = 0; i < 10 && user == null; i++) {
+                User candidate = users[random.nextInt(users.length)];
+                if (candidate.sentAt == 0) {
+                    user = candidate;
+                }
+            }
+            if (user == null) {
+                if (now >= recordFrom) {
+                    skipped++;
+                }
+                return;
+            }
+            int command = random.nextInt(COMMANDS.length);
+            String[] arguments = ARGUMENTS[command];
+            text = "!" + COMMANDS[command] + " " + arguments[random.nextInt(arguments.length)];
+            user.command = command;
+            user.sentAt = now();
+            if (user.sentAt >= recordFrom) {
+                sent++;
+            }
+        }
+        ircd.message(user.nick, "PRIVMSG", BOT, text);
+    }
+
+    private void chatter() {
+        User user;
+        synchronized (this) {
+            user = users[random.nextInt(users.length)];
+        }
+        ircd.message(user.nick, "PRIVMSG", CHANNEL, CHATTER[random.nextInt(CHATTER.length)]);
+    }
+
+    /*
+     * one user leaves and comes back, or changes the nick. Only users not waiting for a
+     * reply take part, so replies can still be matched by nick.
+     */
+    private void churn() {
+        String oldNick;
+        String newNick = null;
+        int kind = random.nextInt(3);
+        synchronized (this) {
+            User user = users[random.nextInt(users.length)];
+            if (user.sentAt != 0) {
+                return;
+            }
+            oldNick = user.nick;
+            if (kind == 2) {
+                newNick = newNick();
+                usersByNick.remove(oldNick.toLowerCase());
+                user.nick = newNick;
+                usersByNick.put(newNick.toLowerCase(), user);
+            }
+            //keep the user from being picked until the server knows about the change
+            user.sentAt = -1;
+        }
+
+        if (kind == 0) {
+            ircd.part(oldNick, CHANNEL, "bye");
+            ircd.join(oldNick, CHANNEL);
+        } else if (kind == 1) {
+            ircd.quit(oldNick, "Quit: leaving");
+            ircd.addUser(oldNick);
+            ircd.join(oldNick, CHANNEL);
+        } else {
+            ircd.changeNick(oldNick, newNick);
+        }
+
+        synchronized (this) {
+            User user = usersByNick.get((newNick == null ? oldNick : newNick).toLowerCase());
+            user.sentAt = 0;
+        }
+    }
+
+    /*
+     * time in ns, always positive so 0 can mean "no command waiting"
+     */
+    private long now() {
+        return System.nanoTime() - origin + 1;
+    }
+
+    private synchronized String newNick() {
+        return "user" + nextNick++;
+    }
+
+    private synchronized int waiting() {
+        int waiting = 0;
+        for (User user : users) {
+            if (user.sentAt > 0) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    private synchronized void expire(long now) {
+        for (User user : users) {
+            if (user.sentAt > 0 && now - user.sentAt > REPLY_TIMEOUT * 1000000L) {
+                if (user.sentAt >= recordFrom) {
+                    lost++;
+                }
+                user.sentAt = 0;
+            }
+        }
+    }
+
+    private synchronized void report(double rate, long duration) {
+        out.println("commands sent: " + sent + ", answered: " + all.count + ", lost: " + lost
+                + ", skipped (users busy): " + skipped);
+        out.println("answers/s: " + String.format("%.1f", all.count / (duration / 1e9))
+                + " (offered: " + rate + ")");
+        out.println("extra reply lines: " + extra + ", flood kills: " + ircd.getKills()
+                + ", reconnects: " + (joins - 1));
+        out.println("reply cache hits: " + ReplyCache.getHits() + ", misses: " + ReplyCache.getMisses()
+                + ", coalesced: " + ReplyCache.getCoalesced());
+        out.println(String.format("%-8s %8s %10s %10s %10s %10s", "latency", "count", "p50 ms", "p99 ms",
+                "p999 ms", "max ms"));
+        all.print(out, "all");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            byCommand[i].print(out, COMMANDS[i]);
+        }        List<CommandTrace> slowest = client.getSlowCommands().get();
+        for (int i = 0; i < Math.min(3, slowest.size()); i++) {
+            out.println("slowest " + (i + 1) + ": " + slowest.get(i).format());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.bench.MockIrcd.Listener#joined(java.lang.String, java.lang.String)
+     */
+    public void joined(String nick, String channel) {
+        if (!nick.equals(BOT)) {
+            return;
+        }
+        synchronized (this) {
+            if (channel.equals(ADMIN_CHANNEL)) {
+                adminJoins++;
+                if (client != null) {
+                    //reconnected, join the channel the users are in again
+                    client.send("JOIN " + CHANNEL);
+                }
+            } else if (channel.equals(CHANNEL)) {
+                joins++;
+            }
+            notifyAll();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.bench.MockIrcd.Listener#message(java.lang.String, java.lang.String, java.lang.String, java.lang.String)
+     */
+    public void message(String nick, String command, String target, String text) {
+        long now = now();
+        synchronized (this) {
+            User user = usersByNick.get(target.toLowerCase());
+            if (user == null || user.sentAt <= 0) {
+                extra++;
+                return;
+            }
+            if (user.sentAt >= recordFrom) {
+                long latency = now - user.sentAt;
+                all.add(latency);
+                byCommand[user.command].add(latency);
+            }
+            user.sentAt = 0;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.bench.MockIrcd.Listener#killed(java.lang.String, java.lang.String)
+     */
+    public void killed(String nick, String reason) {
+        out.println(nick + " killed: " + reason);
+    }
+
+    /**
+     * A simulated user.
+     */
+    private static class User {
+        String nick;
+        /**
+         * when the command waiting for a reply was sent (see now()), 0 if none is
+         * waiting, -1 while the user is changing
+         */
+        long sentAt = 0;
+        int command;
+
+        User(String nick) {
+            this.nick = nick;
+        }
+    }
+
+    /**
+     * Collects latencies in ns.
+     */
+    private static class Latencies {
+        long[] values = new long[1024];
+        int count = 0;
+
+        void add(long latency) {
+            if (count == values.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(values, 0, grown, 0, count);
+                values = grown;
+            }
+            values[count++] = latency;
+        }
+
+        void print(PrintStream out, String name) {
+            if (count == 0) {
+                out.println(String.format("%-8s %8d", name, 0));
+                return;
+            }
+            long[] sorted = new long[count];
+            System.arraycopy(values, 0, sorted, 0, count);
+            Arrays.sort(sorted);
+            out.println(String.format("%-8s %8d %10.2f %10.2f %10.2f %10.2f", name, count,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[count - 1] / 1e6));
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
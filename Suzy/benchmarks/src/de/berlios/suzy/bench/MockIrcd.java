@@ -0,0 +1,784 @@
+package de.berlios.suzy.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A small irc server on the loopback interface, speaking enough of RFC 1459 to
+ * run a bot against it: registration (001-005, MOTD ending in 376), JOIN with
+ * 353/366, PART, QUIT, NICK, PRIVMSG and NOTICE to channels and nicks, PING and
+ * PONG. Other commands get a minimal answer or 421.
+ * <br>
+ * Besides the clients connected over tcp there are simulated users which exist only
+ * inside the server. They are controlled with {@link #addUser(String)},
+ * {@link #join(String, String)}, {@link #message(String, String, String, String)}
+ * and friends, everything sent to them is passed to the {@link Listener}.
+ * <br>
+ * Like a real server, lines from a connected client are processed at a limited rate
+ * (<code>rate</code> bytes per second after a burst of <code>burst</code> bytes, each line
+ * costing its length plus <code>linePenalty</code>). A client with more than
+ * <code>recvq</code> bytes waiting to be processed is killed with "Excess Flood", one
+ * not reading what is sent to it fast enough is killed with "SendQ exceeded".
+ */
+public class MockIrcd {
+    /**
+     * Name of the server, used as prefix of its replies.
+     */
+    public static final String SERVER_NAME = "mock.server";
+
+    private static final String STOP = new String("stop");
+
+    private final ServerSocket serverSocket;
+    private final Listener listener;
+    private final Map<String, Client> clients = new HashMap<String, Client>();
+    private final Map<String, Channel> channels = new HashMap<String, Channel>();
+
+    private volatile int rate = 2048;
+    private volatile int burst = 4096;
+    private volatile int linePenalty = 64;
+    private volatile int recvq = 8192;
+    private volatile int sendq = 4 * 1024 * 1024;
+
+    private volatile int kills = 0;
+
+    /**
+     * Creates a server listening on a free port of the loopback interface. It accepts
+     * clients once {@link #start()} has been called.
+     * @param listener receives everything sent to simulated users
+     * @throws IOException if the server socket cannot be opened
+     */
+    public MockIrcd(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Sets how fast lines from connected clients are processed.
+     * @param rate bytes per second, 0 for no limit
+     * @param burst bytes that are processed at once
+     * @param linePenalty bytes charged for each line on top of its length
+     * @param recvq bytes that may be waiting for processing before the client is killed
+     */
+    public void setFloodLimits(int rate, int burst, int linePenalty, int recvq) {
+        this.rate = rate;
+        this.burst = burst;
+        this.linePenalty = linePenalty;
+        this.recvq = recvq;
+    }
+
+    /**
+     * Sets how much may be waiting to be sent to a client before it is killed.
+     * @param sendq bytes
+     */
+    public void setSendq(int sendq) {
+        this.sendq = sendq;
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of clients killed for flooding.
+     * @return the number of kills
+     */
+    public int getKills() {
+        return kills;
+    }
+
+    /**
+     * Starts accepting clients in a daemon thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread("mockircd-accept") {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        new Connection(socket).start();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting clients. Connected clients are not closed.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a simulated user.
+     * @param nick nick of the user
+     * @return false if the nick is in use
+     */
+    public synchronized boolean addUser(String nick) {
+        if (clients.containsKey(lower(nick))) {
+            return false;
+        }
+        Client user = new Client();
+        user.nick = nick;
+        user.user = "~" + nick;
+        user.host = nick.toLowerCase() + ".users.example.org";
+        user.registered = true;
+        clients.put(lower(nick), user);
+        return true;
+    }
+
+    /**
+     * Lets a simulated user join a channel.
+     * @param nick nick of the user
+     * @param channel channel to join
+     */
+    public synchronized void join(String nick, String channel) {
+        Client user = clients.get(lower(nick));
+        if (user != null && !(user instanceof Connection)) {
+            join(user, channel);
+        }
+    }
+
+    /**
+     * Lets a simulated user leave a channel.
+     * @param nick nick of the user
+     * @param channel channel to leave
+     * @param reason part message
+     */
+    public synchronized void part(String nick, String channel, String reason) {
+        Client user = clients.get(lower(nick));
+        if (user != null && !(user instanceof Connection)) {
+            part(user, channel, reason);
+        }
+    }
+
+    /**
+     * Lets a simulated user quit. The nick may be used for a new user afterwards.
+     * @param nick nick of the user
+     * @param reason quit message
+     */
+    public synchronized void quit(String nick, String reason) {
+        Client user = clients.get(lower(nick));
+        if (user != null && !(user instanceof Connection)) {
+            quit(user, reason);
+        }
+    }
+
+    /**
+     * Changes the nick of a simulated user.
+     * @param nick current nick of the user
+     * @param newNick new nick
+     * @return false if the new nick is in use or there is no such user
+     */
+    public synchronized boolean changeNick(String nick, String newNick) {
+        Client user = clients.get(lower(nick));
+        if (user == null || user instanceof Connection || clients.containsKey(lower(newNick))) {
+            return false;
+        }
+        changeNick(user, newNick);
+        return true;
+    }
+
+    /**
+     * Lets a simulated user send a PRIVMSG or NOTICE.
+     * @param nick nick of the user
+     * @param command PRIVMSG or NOTICE
+     * @param target channel or nick
+     * @param text text of the message
+     */
+    public synchronized void message(String nick, String command, String target, String text) {
+        Client user = clients.get(lower(nick));
+        if (user != null && !(user instanceof Connection)) {
+            message(user, command, target, text);
+        }
+    }
+
+    /*
+     * state changes, always called with the lock held
+     */
+
+    private void join(Client client, String name) {
+        Channel channel = channels.get(lower(name));
+        if (channel == null) {
+            channel = new Channel(name);
+            channels.put(lower(name), channel);
+            channel.ops.add(client);
+        }
+        if (channel.members.contains(client)) {
+            return;
+        }
+        channel.members.add(client);
+        client.channels.add(channel);
+        sendToChannel(channel, ":" + client.mask() + " JOIN :" + channel.name, null);
+
+        if (client instanceof Connection) {
+            Connection connection = (Connection) client;
+            connection.numeric(331, channel.name + " :No topic is set");
+            StringBuilder names = new StringBuilder();
+            for (Client member : channel.members) {
+                if (names.length() > 400) {
+                    connection.numeric(353, "= " + channel.name + " :" + names);
+                    names.setLength(0);
+                }
+                if (names.length() > 0) {
+                    names.append(' ');
+                }
+                names.append(channel.ops.contains(member) ? "@" : "").append(member.nick);
+            }
+            connection.numeric(353, "= " + channel.name + " :" + names);
+            connection.numeric(366, channel.name + " :End of /NAMES list.");
+            listener.joined(client.nick, channel.name);
+        }
+    }
+
+    private void part(Client client, String name, String reason) {
+        Channel channel = channels.get(lower(name));
+        if (channel == null || !channel.members.contains(client)) {
+            if (client instanceof Connection) {
+                ((Connection) client).numeric(442, name + " :You're not on that channel");
+            }
+            return;
+        }
+        sendToChannel(channel, ":" + client.mask() + " PART " + channel.name
+                + (reason == null ? "" : " :" + reason), null);
+        leave(client, channel);
+    }
+
+    private void quit(Client client, String reason) {
+        String line = ":" + client.mask() + " QUIT :" + reason;
+        Set<Client> peers = new LinkedHashSet<Client>();
+        for (Channel channel : new ArrayList<Channel>(client.channels)) {
+            peers.addAll(channel.members);
+            leave(client, channel);
+        }
+        peers.remove(client);
+        for (Client peer : peers) {
+            peer.send(line);
+        }
+        if (clients.get(lower(client.nick)) == client) {
+            clients.remove(lower(client.nick));
+        }
+    }
+
+    private void changeNick(Client client, String newNick) {
+        String line = ":" + client.mask() + " NICK :" + newNick;
+        Set<Client> peers = new LinkedHashSet<Client>();
+        peers.add(client);
+        for (Channel channel : client.channels) {
+            peers.addAll(channel.members);
+        }
+        for (Client peer : peers) {
+            peer.send(line);
+        }
+        clients.remove(lower(client.nick));
+        client.nick = newNick;
+        clients.put(lower(newNick), client);
+    }
+
+    private void message(Client client, String command, String target, String text) {
+        String line = ":" + client.mask() + " " + command + " " + target + " :" + text;
+        if (target.startsWith("#") || target.startsWith("&")) {
+            Channel channel = channels.get(lower(target));
+            if (channel == null) {
+                if (client instanceof Connection && command.equals("PRIVMSG")) {
+                    ((Connection) client).numeric(403, target + " :No such channel");
+                }
+                return;
+            }
+            sendToChannel(channel, line, client);
+            if (client instanceof Connection) {
+                listener.message(client.nick, command, channel.name, text);
+            }
+            return;
+        }
+
+        Client to = clients.get(lower(target));
+        if (to == null) {
+            if (client instanceof Connection && command.equals("PRIVMSG")) {
+                ((Connection) client).numeric(401, target + " :No such nick/channel");
+            }
+            return;
+        }
+        if (to instanceof Connection) {
+            to.send(line);
+        } else if (client instanceof Connection) {
+            listener.message(client.nick, command, to.nick, text);
+        }
+    }
+
+    private void leave(Client client, Channel channel) {
+        channel.members.remove(client);
+        channel.ops.remove(client);
+        client.channels.remove(channel);
+        if (channel.members.isEmpty()) {
+            channels.remove(lower(channel.name));
+        }
+    }
+
+    private void sendToChannel(Channel channel, String line, Client except) {
+        for (Client member : channel.members) {
+            if (member != except) {
+                member.send(line);
+            }
+        }
+    }
+
+    /*
+     * rfc1459 casemapping
+     */
+    private static String lower(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= ']') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            } else if (c == '~') {
+                chars[i] = '^';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * A user, either simulated or connected.
+     */
+    private class Client {
+        String nick = "*";
+        String user;
+        String host;
+        boolean registered = false;
+        final Set<Channel> channels = new LinkedHashSet<Channel>();
+
+        String mask() {
+            return nick + "!" + user + "@" + host;
+        }
+
+        /*
+         * simulated users do not receive anything
+         */
+        void send(String line) {
+        }
+    }
+
+    /**
+     * A connected client. A reader thread queues incoming lines, a processing thread
+     * handles them as the flood limits allow and a writer thread sends the replies.
+     */
+    private class Connection extends Client {
+        private final Socket socket;
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        private final BlockingQueue<String> outgoing = new LinkedBlockingQueue<String>();
+        private int receivedBytes = 0;
+        private int outgoingBytes = 0;
+        private volatile boolean closed = false;
+        private boolean userGiven = false;
+
+        private double allowance = burst;
+        private long lastLine = System.nanoTime();
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.user = "unknown";
+            this.host = socket.getInetAddress().getHostAddress();
+        }
+
+        void start() {
+            startThread("mockircd-read", new Runnable() {
+                public void run() {
+                    read();
+                }
+            });
+            startThread("mockircd-process", new Runnable() {
+                public void run() {
+                    process();
+                }
+            });
+            startThread("mockircd-write", new Runnable() {
+                public void run() {
+                    write();
+                }
+            });
+        }
+
+        private void startThread(String name, Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void read() {
+            try {
+                BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    boolean flooded;
+                    synchronized (this) {
+                        receivedBytes += line.length() + 2;
+                        flooded = receivedBytes > recvq;
+                    }
+                    if (flooded) {
+                        kill("Excess Flood");
+                        return;
+                    }
+                    received.add(line);
+                }
+            } catch (IOException e) {
+                //closed
+            }
+            close("Connection reset by peer");
+        }
+
+        private void process() {
+            try {
+                while (true) {
+                    String line = received.take();
+                    if (line == STOP) {
+                        return;
+                    }
+                    throttle(line.length() + 2 + linePenalty);
+                    synchronized (this) {
+                        receivedBytes -= line.length() + 2;
+                    }
+                    synchronized (MockIrcd.this) {
+                        if (closed) {
+                            return;
+                        }
+                        handle(line);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //stop
+            }
+        }
+
+        private void throttle(int cost) throws InterruptedException {
+            int rate = MockIrcd.this.rate;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            allowance = Math.min(burst, allowance + (now - lastLine) / 1e9 * rate);
+            lastLine = now;
+            if (allowance < cost) {
+                long wait = (long) ((cost - allowance) * 1000 / rate);
+                Thread.sleep(wait);
+                allowance += wait / 1000.0 * rate;
+                lastLine = System.nanoTime();
+            }
+            allowance -= cost;
+        }
+
+        private void write() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                while (true) {
+                    String line = outgoing.take();
+                    if (line == STOP) {
+                        break;
+                    }
+                    out.write(line);
+                    out.write("\r\n");
+                    synchronized (this) {
+                        outgoingBytes -= line.length() + 2;
+                    }
+                    if (outgoing.isEmpty()) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                //closed
+            } catch (InterruptedException e) {
+                //stop
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see de.berlios.suzy.bench.MockIrcd.Client#send(java.lang.String)
+         */
+        void send(String line) {
+            if (closed) {
+                return;
+            }
+            boolean full;
+            synchronized (this) {
+                outgoingBytes += line.length() + 2;
+                full = outgoingBytes > sendq;
+            }
+            if (full) {
+                kill("SendQ exceeded");
+                return;
+            }
+            outgoing.add(line);
+        }
+
+        void numeric(int numeric, String text) {
+            send(":" + SERVER_NAME + " " + String.format("%03d", numeric) + " " + nick + " " + text);
+        }
+
+        private void kill(String reason) {
+            synchronized (MockIrcd.this) {
+                if (closed) {
+                    return;
+                }
+                kills++;
+                listener.killed(nick, reason);
+                closing("Closing Link: " + host + " (" + reason + ")", reason);
+            }
+        }
+
+        private void close(String reason) {
+            closing(null, reason);
+        }
+
+        /*
+         * sends an ERROR if given, lets the writer finish and removes the client
+         */
+        private void closing(String error, String reason) {
+            synchronized (MockIrcd.this) {
+                if (closed) {
+                    return;
+                }
+                if (error != null) {
+                    outgoing.add("ERROR :" + error);
+                }
+                closed = true;
+                received.add(STOP);
+                outgoing.add(STOP);
+                if (registered) {
+                    quit(this, reason);
+                }
+            }
+        }
+
+        /*
+         * called with the server's lock held
+         */
+        private void handle(String line) {
+            List<String> params = new ArrayList<String>();
+            String command = parse(line, params);
+            if (command == null) {
+                return;
+            }
+
+            if (command.equals("PING")) {
+                send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :" + (params.isEmpty() ? "" : params.get(0)));
+            } else if (command.equals("PONG") || command.equals("PASS")) {
+                //nothing to do
+            } else if (command.equals("CAP")) {
+                if (!params.isEmpty() && params.get(0).equalsIgnoreCase("LS")) {
+                    send(":" + SERVER_NAME + " CAP " + nick + " LS :");
+                }
+            } else if (command.equals("QUIT")) {
+                closing("Closing Link: " + host + " (Quit: " + (params.isEmpty() ? "" : params.get(0)) + ")",
+                        "Quit: " + (params.isEmpty() ? "" : params.get(0)));
+            } else if (command.equals("NICK")) {
+                handleNick(params);
+            } else if (command.equals("USER")) {
+                if (params.size() < 4) {
+                    numeric(461, "USER :Not enough parameters");
+                } else if (!registered) {
+                    user = "~" + params.get(0);
+                    userGiven = true;
+                    register();
+                }
+            } else if (!registered) {
+                numeric(451, ":You have not registered");
+            } else if (params.isEmpty() && !command.equals("MOTD")) {
+                numeric(461, command + " :Not enough parameters");
+            } else if (command.equals("JOIN")) {
+                for (String channel : params.get(0).split(",")) {
+                    if (channel.equals("0")) {
+                        for (Channel joined : new ArrayList<Channel>(channels)) {
+                            part(this, joined.name, null);
+                        }
+                    } else if (channel.startsWith("#") || channel.startsWith("&")) {
+                        MockIrcd.this.join(this, channel);
+                    } else {
+                        numeric(403, channel + " :No such channel");
+                    }
+                }
+            } else if (command.equals("PART")) {
+                for (String channel : params.get(0).split(",")) {
+                    MockIrcd.this.part(this, channel, params.size() > 1 ? params.get(1) : null);
+                }
+            } else if (command.equals("PRIVMSG") || command.equals("NOTICE")) {
+                if (params.size() < 2) {
+                    numeric(412, ":No text to send");
+                    return;
+                }
+                for (String target : params.get(0).split(",")) {
+                    MockIrcd.this.message(this, command, target, params.get(1));
+                }
+            } else if (command.equals("MODE")) {
+                Channel channel = MockIrcd.this.channels.get(lower(params.get(0)));
+                if (channel != null && params.size() == 1) {
+                    numeric(324, channel.name + " +nt");
+                }
+            } else if (command.equals("NAMES") || command.equals("WHO")) {
+                numeric(command.equals("WHO") ? 315 : 366, params.get(0) + " :End of /" + command + " list.");
+            } else if (command.equals("WHOIS")) {
+                numeric(318, params.get(params.size() - 1) + " :End of /WHOIS list.");
+            } else if (command.equals("MOTD")) {
+                motd();
+            } else {
+                numeric(421, command + " :Unknown command");
+            }
+        }
+
+        private void handleNick(List<String> params) {
+            if (params.isEmpty()) {
+                numeric(431, ":No nickname given");
+                return;
+            }
+            String newNick = params.get(0);
+            Client other = clients.get(lower(newNick));
+            if (other != null && other != this) {
+                send(":" + SERVER_NAME + " 433 " + nick + " " + newNick + " :Nickname is already in use.");
+                return;
+            }
+            if (registered) {
+                changeNick(this, newNick);
+                return;
+            }
+            nick = newNick;
+            if (userGiven) {
+                register();
+            }
+        }
+
+        private void register() {
+            if (nick.equals("*")) {
+                return;
+            }
+            registered = true;
+            clients.put(lower(nick), this);
+            numeric(1, ":Welcome to the mock network " + mask());
+            numeric(2, ":Your host is " + SERVER_NAME + ", running version mockircd");
+            numeric(3, ":This server was created today");
+            numeric(4, SERVER_NAME + " mockircd io nt");
+            numeric(5, "PREFIX=(ov)@+ CHANTYPES=#& CASEMAPPING=rfc1459 NETWORK=Mock :are supported by this server");
+            motd();
+        }
+
+        private void motd() {
+            numeric(375, ":- " + SERVER_NAME + " Message of the day -");
+            numeric(372, ":- This server exists for testing only.");
+            numeric(376, ":End of /MOTD command.");
+        }
+    }
+
+    /*
+     * splits a line into command and parameters, the prefix is ignored
+     */
+    private static String parse(String line, List<String> params) {
+        int i = 0;
+        if (line.startsWith(":")) {
+            i = line.indexOf(' ');
+            if (i == -1) {
+                return null;
+            }
+        }
+        while (i < line.length() && line.charAt(i) == ' ') {
+            i++;
+        }
+        int end = line.indexOf(' ', i);
+        if (i == line.length()) {
+            return null;
+        }
+        String command = (end == -1 ? line.substring(i) : line.substring(i, end)).toUpperCase();
+        while (end != -1) {
+            i = end;
+            while (i < line.length() && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == line.length()) {
+                break;
+            }
+            if (line.charAt(i) == ':') {
+                params.add(line.substring(i + 1));
+                break;
+            }
+            end = line.indexOf(' ', i);
+            params.add(end == -1 ? line.substring(i) : line.substring(i, end));
+        }
+        return command;
+    }
+
+    /**
+     * A channel with its members in the order they joined.
+     */
+    private static class Channel {
+        final String name;
+        final Set<Client> members = new LinkedHashSet<Client>();
+        final Set<Client> ops = new LinkedHashSet<Client>();
+
+        Channel(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Receives what the connected clients do. Called from the server's threads
+     * with the server's lock held, so implementations must not block.
+     */
+    public interface Listener {
+        /**
+         * A connected client has joined a channel, its names list has been sent.
+         * @param nick nick of the client
+         * @param channel the channel
+         */
+        public void joined(String nick, String channel);
+
+        /**
+         * A connected client sent a PRIVMSG or NOTICE to a channel or a simulated user.
+         * @param nick nick of the client
+         * @param command PRIVMSG or NOTICE
+         * @param target the channel or simulated user
+         * @param text text of the message
+         */
+        public void message(String nick, String command, String target, String text);
+
+        /**
+         * A connected client has been killed for flooding.
+         * @param nick nick of the client
+         * @param reason Excess Flood or SendQ exceeded
+         */
+        public void killed(String nick, String reason);
+    }
+}
@@ -0,0 +1,217 @@
+package de.berlios.suzy.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.berlios.suzy.irc.IrcMessage;
+
+/**
+ * Compares the old way of handling incoming lines (decode the line to a
+ * String, <code>split(" ", 4)</code>, <code>toUpperCase()</code> and a map lookup,
+ * then split the text of every PRIVMSG) with {@link IrcMessage}, which parses
+ * the bytes in place.
+ * <br>
+ * The input models a busy channel: mostly chatter, some joins, parts and quits,
+ * a few lines carrying IRCv3 tags and an occasional command for the bot.
+ * Reports the time and the bytes allocated per line, the latter is read from
+ * the thread's allocation counter (needs a HotSpot based vm).
+ * <br>
+ * Usage: ParserBenchmark [lines per round] [rounds]
+ */
+public class ParserBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final int[] starts;
+    private final int[] ends;
+
+    private final Map<String, Integer> legacyActions = new HashMap<String, Integer>();
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final IrcMessage message = new IrcMessage();
+    private final String[] commands = { "PING", "PONG", "ERROR", "JOIN", "QUIT", "NICK", "PART", "PRIVMSG" };
+    private final boolean[] numerics = new boolean[1000];
+
+    private long sink;
+
+    private ParserBenchmark(int lines) {
+        List<String> input = createInput(lines);
+        StringBuilder all = new StringBuilder();
+        for (String line : input) {
+            all.append(line).append('\n');
+        }
+        data = all.toString().getBytes(UTF8);
+
+        starts = new int[lines];
+        ends = new int[lines];
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                starts[line] = start;
+                ends[line] = i;
+                line++;
+                start = i + 1;
+            }
+        }
+
+        for (String command : new String[] { "PING", "PONG", "ERROR", "376", "433", "353", "JOIN", "QUIT",
+                "NICK", "PART", "PRIVMSG" }) {
+            legacyActions.put(command, legacyActions.size());
+        }
+        numerics[376] = numerics[433] = numerics[353] = true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        ParserBenchmark benchmark = new ParserBenchmark(lines);
+        //warm up
+        for (int i = 0; i < rounds; i++) {
+            benchmark.legacy();
+            benchmark.parser();
+        }
+
+        long[] legacy = benchmark.measure(true, rounds);
+        long[] parser = benchmark.measure(false, rounds);
+        System.out.println("lines per round: " + lines + ", rounds: " + rounds);
+        System.out.println("legacy: " + format(legacy[0], lines * (long) rounds) + " ns/line, "
+                + format(legacy[1], lines * (long) rounds) + " bytes/line");
+        System.out.println("parser: " + format(parser[0], lines * (long) rounds) + " ns/line, "
+                + format(parser[1], lines * (long) rounds) + " bytes/line");
+        System.out.println("(" + benchmark.sink + ")");
+    }
+
+    private long[] measure(boolean legacy, int rounds) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            if (legacy) {
+                legacy();
+            } else {
+                parser();
+            }
+        }
+        long time = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new long[] { time, allocated };
+    }
+
+    /*
+     * what IrcClient did before: decode, split, upper case, look up, then split the text again
+     */
+    private void legacy() {
+        for (int i = 0; i < starts.length; i++) {
+            String line;
+            try {
+                line = decoder.decode(ByteBuffer.wrap(data, starts[i], ends[i] - starts[i])).toString();
+            } catch (CharacterCodingException e) {
+                line = "";
+            }
+            String[] input = line.split(" ", 4);
+            Integer action = legacyActions.get(input[0].toUpperCase());
+            if (action == null && input.length > 1) {
+                action = legacyActions.get(input[1].toUpperCase());
+            }
+            if (action == null) {
+                continue;
+            }
+            if (input[1].equals("PRIVMSG")) {
+                String[] messageContent = input[3].trim().substring(1).split("\\s+", 2);
+                String nick = input[0].substring(1, input[0].indexOf("!"));
+                sink += messageContent[0].toLowerCase().length() + nick.length();
+            } else {
+                sink += action.intValue();
+            }
+        }
+    }
+
+    /*
+     * what IrcClient does now
+     */
+    private void parser() {
+        for (int i = 0; i < starts.length; i++) {
+            if (!message.parse(data, starts[i], ends[i])) {
+                continue;
+            }
+            int numeric = message.getNumeric();
+            if (numeric != -1) {
+                sink += numerics[numeric] ? numeric : 0;
+                continue;
+            }
+            for (int c = 0; c < commands.length; c++) {
+                if (message.isCommand(commands[c])) {
+                    if (c == 7) {
+                        if (message.paramStartsWith(1, "!") || message.paramContains(1, " !")) {
+                            sink += message.getParam(1).length() + message.getNick().length();
+                        }
+                    } else {
+                        sink += c;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static List<String> createInput(int lines) {
+        Random random = new Random(42);
+        String[] words = { "hello", "java", "is", "the", "String", "does", "anyone", "know", "why", "my",
+                "NullPointerException", "HashMap", "thread", "über", "naïve", "ok", "lol", "thanks" };
+        List<String> input = new ArrayList<String>(lines);
+        for (int i = 0; i < lines; i++) {
+            String nick = "user" + random.nextInt(200);
+            String prefix = ":" + nick + "!~" + nick + "@host" + random.nextInt(50) + ".example.org";
+            int kind = random.nextInt(100);
+            if (kind < 80) {
+                StringBuilder text = new StringBuilder();
+                int count = 3 + random.nextInt(15);
+                for (int w = 0; w < count; w++) {
+                    text.append(w == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+                }
+                String line = prefix + " PRIVMSG #java :" + text;
+                if (kind < 10) {
+                    line = "@time=2010-01-01T12:00:00.000Z;msgid=" + i + " " + line;
+                }
+                input.add(line);
+            } else if (kind < 83) {
+                input.add(prefix + " PRIVMSG #java :!api String");
+            } else if (kind < 88) {
+                input.add(prefix + " JOIN :#java");
+            } else if (kind < 93) {
+                input.add(prefix + " PART #java :bye");
+            } else if (kind < 96) {
+                input.add(prefix + " QUIT :Quit: leaving");
+            } else if (kind < 98) {
+                input.add(":server.example.org 353 suzy = #java :@op +voice " + nick);
+            } else {
+                input.add(prefix + " MODE #java +v " + nick);
+            }
+        }
+        return input;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static String format(long value, long lines) {
+        return String.format("%.1f", (double) value / lines);
+    }
+}
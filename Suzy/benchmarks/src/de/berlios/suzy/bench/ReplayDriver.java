@@ -0,0 +1,206 @@
+package de.berlios.suzy.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Properties;
+
+import de.berlios.suzy.irc.CommandTrace;
+import de.berlios.suzy.irc.IrcClient;
+import de.berlios.suzy.irc.TrafficCapture;
+import de.berlios.suzy.metrics.Histogram;
+import de.berlios.suzy.metrics.Metric;
+import de.berlios.suzy.metrics.Metrics;
+
+/**
+ * Replays a {@link TrafficCapture} into a real {@link IrcClient} with its plugins,
+ * so changes to the handling of lines and to the plugins can be measured with the
+ * traffic of a real network.
+ * <br>
+ * The driver is the server: it accepts the client on the loopback interface and sends
+ * it the captured lines, registration included, at the captured pace multiplied by
+ * the speed, or as fast as the socket takes them. Everything the client sends is read
+ * and counted, its pings are answered. At the end, a PING tells when the client has
+ * handled every line; the replies are done once the client has been quiet for a second.
+ * <br>
+ * Arguments of the form key=value are passed to the client as network options
+ * (see servers.conf). Command limits (<code>limits.*</code>) and flood control are
+ * turned off unless given.
+ * <br>
+ * Usage: ReplayDriver capture [speed|max] [key=value ...]
+ * <br>
+ * Run it from the Suzy directory, the client loads plugins.conf, factoids.xml and parsers.xml
+ * from the working directory.
+ */
+public class ReplayDriver {
+    private static final String END = "replay-end";
+    private static final long QUIET = 1000;
+    private static final long TIMEOUT = 60000;
+
+    private final PrintStream out;
+    private OutputStream toClient;
+
+    private int linesFromClient = 0;
+    private long lastFromClient;
+    private long endAcknowledged = 0;
+
+    private ReplayDriver(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: ReplayDriver capture [speed|max] [key=value ...]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        double speed = args.length < 2 || args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+
+        Properties options = new Properties();
+        options.setProperty("limits.user.rate", "0");
+        options.setProperty("limits.channel.rate", "0");
+        options.setProperty("limits.command.rate", "0");
+        options.setProperty("flood.burst", "65536");
+        options.setProperty("flood.rate", "1048576");
+        options.setProperty("flood.maxRate", "1048576");
+        options.setProperty("flood.recvq", "1048576");
+        for (int i = 2; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            options.setProperty(args[i].substring(0, separator).trim(), args[i].substring(separator + 1).trim());
+        }
+
+        PrintStream out = System.out;
+        //the client logs every line, keep that out of the measurement
+        System.setProperty("suzy.log.console", "false");
+        System.setProperty("suzy.log.dir", "");
+        //some plugins print to System.out
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        new ReplayDriver(out).run(file, speed, options);
+        System.exit(0);
+    }
+
+    private void run(File file, double speed, Properties options) throws IOException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        IrcClient client = new IrcClient("replay", "127.0.0.1", serverSocket.getLocalPort(), "suzy",
+                "#replay.admin", "", 600, "!", options);
+        final Socket socket = serverSocket.accept();
+        serverSocket.close();
+        toClient = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        Thread reader = new Thread("replay-reader") {
+            public void run() {
+                read(socket);
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        out.println("replaying " + file + (speed == 0 ? " as fast as possible" : " at " + speed + "x"));
+        TrafficCapture.Reader capture = new TrafficCapture.Reader(file);
+        long lines = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        while (capture.next()) {
+            if (speed > 0) {
+                long wait = start + (long) (capture.getTime() * 1000 / speed) - System.nanoTime();
+                if (wait > 1000000) {
+                    synchronized (this) {
+                        toClient.flush();
+                    }
+                    Thread.sleep(wait / 1000000);
+                }
+            }
+            synchronized (this) {
+                toClient.write(capture.getData(), 0, capture.getLength());
+                toClient.write('\r');
+                toClient.write('\n');
+            }
+            lines++;
+            bytes += capture.getLength() + 2;
+        }
+        long captured = capture.getTime();
+        capture.close();
+        long sent = System.nanoTime();
+        send("PING :" + END);
+
+        //the client handles lines in order, the answer comes after the last line has been handled
+        synchronized (this) {
+            long until = System.currentTimeMillis() + TIMEOUT;
+            while (endAcknowledged == 0 && System.currentTimeMillis() < until) {
+                wait(Math.max(1, until - System.currentTimeMillis()));
+            }
+            while (System.currentTimeMillis() - lastFromClient < QUIET && System.currentTimeMillis() < until) {
+                wait(QUIET);
+            }
+        }
+        report(client, lines, bytes, captured, start, sent);
+    }
+
+    private synchronized void send(String line) throws IOException {
+        toClient.write((line + "\r\n").getBytes("UTF-8"));
+        toClient.flush();
+    }
+
+    private void read(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("PING ")) {
+                    send(":" + MockIrcd.SERVER_NAME + " PONG " + MockIrcd.SERVER_NAME + " " + line.substring(5));
+                }
+                synchronized (this) {
+                    linesFromClient++;
+                    lastFromClient = System.currentTimeMillis();
+                    if (line.startsWith("PONG") && line.endsWith(END)) {
+                        endAcknowledged = System.nanoTime();
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            out.println("connection lost: " + e);
+        }
+    }
+
+    private synchronized void report(IrcClient client, long lines, long bytes, long captured, long start,
+            long sent) {
+        if (endAcknowledged == 0) {
+            out.println("the client did not handle all lines within " + TIMEOUT / 1000 + " s");
+            return;
+        }
+        double seconds = (endAcknowledged - start) / 1e9;
+        out.println("lines replayed: " + lines + " (" + bytes / 1024 + " KiB), captured over "
+                + String.format("%.1f", captured / 1e6) + " s");
+        out.println("handled in " + String.format("%.3f", seconds) + " s ("
+                + String.format("%.0f", lines / seconds) + " lines/s), last line sent after "
+                + String.format("%.3f", (sent - start) / 1e9) + " s");
+        out.println("lines from the client: " + linesFromClient);
+        out.println(String.format("%-24s %8s %10s %10s %10s", "plugin", "count", "p50 ms", "p99 ms", "max ms"));
+        for (Metric metric : Metrics.getMetrics("replay")) {
+            String name = metric.getName();
+            if (metric instanceof Histogram && name.startsWith("commands.") && name.endsWith(".time")) {
+                Histogram histogram = (Histogram) metric;
+                out.println(String.format("%-24s %8d %10.2f %10.2f %10.2f",
+                        name.substring(9, name.length() - 5), histogram.getCount(),
+                        histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                        histogram.getMax() / 1000.0));
+            }
+        }
+        List<CommandTrace> slowest = client.getSlowCommands().get();
+        for (int i = 0; i < Math.min(3, slowest.size()); i++) {
+            out.println("slowest " + (i + 1) + ": " + slowest.get(i).format());
+        }
+    }
+}
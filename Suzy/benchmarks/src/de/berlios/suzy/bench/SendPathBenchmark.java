@@ -0,0 +1,152 @@
+package de.berlios.suzy.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.berlios.suzy.irc.IrcClient;
+import de.berlios.suzy.irc.MessageTypes;
+
+/**
+ * Measures the send path of an {@link IrcClient}: the client is connected to a
+ * fake server on the loopback interface, messages carry the time they were
+ * handed to {@link IrcClient#sendMessageTo(String, MessageTypes, String)} and
+ * the server measures when they arrive.
+ * <br>
+ * Two things are measured: the latency of single replies sent at a low rate and
+ * the number of lines per second when a burst is queued at once.
+ * <br>
+ * Usage: SendPathBenchmark [single replies] [burst size] [ms between single replies]
+ * <br>
+ * Run it from an otherwise empty directory, the client will try to load plugins.conf.
+ */
+public class SendPathBenchmark {
+    private static final String CHANNEL = "#bench";
+
+    private final ServerSocket serverSocket;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile long[] latencies;
+    private volatile CountDownLatch received;
+    private volatile int expected = 0;
+
+    private SendPathBenchmark() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int singles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int interval = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        PrintStream out = System.out;
+        //the client logs every line, keep that out of the measurement
+        System.setProperty("suzy.log.console", "false");
+        System.setProperty("suzy.log.dir", "");
+
+        new SendPathBenchmark().run(out, singles, burst, interval);
+        System.exit(0);
+    }
+
+    private void run(PrintStream out, int singles, int burst, int interval) throws Exception {
+        IrcClient client = new IrcClient("bench", "127.0.0.1", serverSocket.getLocalPort(), "bench",
+                CHANNEL, "", 120, "!");
+        final Socket socket = serverSocket.accept();
+        Thread server = new Thread() {
+            public void run() {
+                serve(socket);
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        if (!ready.await(30, TimeUnit.SECONDS)) {
+            out.println("client did not register");
+            return;
+        }
+
+        //single replies at a low rate
+        long[] single = measure(client, singles, interval);
+        Arrays.sort(single);
+        out.println("single replies: " + singles);
+        out.println("  mean latency: " + format(mean(single)) + " ms");
+        out.println("  p50 latency:  " + format(single[single.length / 2]) + " ms");
+        out.println("  p99 latency:  " + format(single[(int) (single.length * 0.99)]) + " ms");
+        out.println("  max latency:  " + format(single[single.length - 1]) + " ms");
+
+        //burst
+        long start = System.nanoTime();
+        long[] bursted = measure(client, burst, 0);
+        long duration = System.nanoTime() - start;
+        Arrays.sort(bursted);
+        out.println("burst: " + burst + " lines");
+        out.println("  lines/s:      " + (long) (burst / (duration / 1e9)));
+        out.println("  last line:    " + format(bursted[bursted.length - 1]) + " ms");
+    }
+
+    private long[] measure(IrcClient client, int count, long interval) throws InterruptedException {
+        latencies = new long[count];
+        expected = 0;
+        received = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            client.sendMessageTo(CHANNEL, MessageTypes.PRIVMSG, i + " " + System.nanoTime());
+            if (interval > 0) {
+                Thread.sleep(interval);
+            }
+        }
+        if (!received.await(5 * 60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("lines got lost: " + received.getCount() + " missing");
+        }
+        return latencies;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            PrintWriter pw = new PrintWriter(socket.getOutputStream());
+            String line;
+            while ((line = br.readLine()) != null) {
+                long now = System.nanoTime();
+                if (line.startsWith("NICK ")) {
+                    pw.print(":bench.server 001 bench :Welcome\r\n");
+                    pw.print(":bench.server 376 bench :End of /MOTD command.\r\n");
+                    pw.flush();
+                } else if (line.startsWith("PING ")) {
+                    pw.print(":bench.server PONG bench.server " + line.substring(5) + "\r\n");
+                    pw.flush();
+                } else if (line.startsWith("JOIN " + CHANNEL)) {
+                    ready.countDown();
+                } else if (line.startsWith("PRIVMSG " + CHANNEL + " :")) {
+                    String[] content = line.substring(line.indexOf(':') + 1).split(" ");
+                    int seq = Integer.parseInt(content[0]);
+                    if (seq != expected++) {
+                        throw new IllegalStateException("out of order: " + seq);
+                    }
+                    latencies[seq] = now - Long.parseLong(content[1]);
+                    received.countDown();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double mean(long[] values) {
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static String format(double nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -3,6 +3,7 @@ package de.berlios.suzy;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Properties;
 import java.util.Scanner;
 
 import de.berlios.suzy.irc.IrcClient;
@@ -49,7 +50,16 @@ public class Suzy {
                 int timeout = Integer.parseInt(config.get(index++));
                 String commandModifier = config.get(index++);
 
-                new IrcClient(network, server, port, nickName, adminChannel, adminChannelPassword, timeout, commandModifier);
+                //optional "key = value" lines following the fixed ones
+                Properties options = new Properties();
+                while (index < config.size() && config.get(index).indexOf('=') != -1) {
+                    String option = config.get(index++);
+                    int separator = option.indexOf('=');
+                    options.setProperty(option.substring(0, separator).trim(), option.substring(separator + 1).trim());
+                }
+
+                new IrcClient(network, server, port, nickName, adminChannel, adminChannelPassword, timeout,
+                        commandModifier, options);
             }
 
 
@@ -0,0 +1,28 @@
+package de.berlios.suzy.irc;
+
+/**
+ * A plugin with commands whose replies depend on nothing but their arguments,
+ * like looking up a class in the api.
+ * <br>
+ * The replies of these commands are kept in the {@link ReplyCache}, shared by all
+ * networks, and sent again when the same command with the same arguments is
+ * given, without calling the plugin. A reply is not kept if it is sent anywhere
+ * but to the channel or user the command came from, if it mentions the user, or if
+ * the plugin sends raw lines while handling the command.
+ */
+public interface CacheablePlugin extends Plugin {
+    /**
+     * The commands whose replies may be cached. Each command has to be plain
+     * text without any prefixes, as in {@link #getCommands()}.
+     * @return a list of commands
+     */
+    public String[] getCacheableCommands();
+
+    /**
+     * The commands that change what the cacheable commands reply, e.g. reloading
+     * data. All cached replies of this plugin are dropped once one of them was
+     * executed.
+     * @return a list of commands, restricted ones included
+     */
+    public String[] getInvalidatingCommands();
+}
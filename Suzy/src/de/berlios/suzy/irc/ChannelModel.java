@@ -0,0 +1,588 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the client knows about the channels it is in: their members with their
+ * prefixes (op, voice, ...) and hostmasks, and the channel modes.
+ * <br>
+ * The model is kept up to date by the client from the names list (353/366), the
+ * channel modes (324), JOIN, PART, KICK, QUIT, NICK and MODE, using the PREFIX,
+ * CHANMODES and CASEMAPPING the server announces (005). There is one {@link User}
+ * per user, no matter in how many of the channels it is.
+ * <br>
+ * Updates happen on the client's event loop only, queries may be made from any
+ * thread (e.g. by plugins) and take constant time. A query sees every change up to
+ * some recent line from the server, but several queries together are not an atomic
+ * snapshot.
+ */
+public final class ChannelModel {
+    private static final int ASCII = 0;
+    private static final int RFC1459 = 1;
+    private static final int STRICT_RFC1459 = 2;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+    private final Map<String, User> users = new ConcurrentHashMap<String, User>();
+
+    //set from 005 on the loop, read anywhere
+    private volatile String prefixModes = "ov";
+    private volatile String prefixChars = "@+";
+    private volatile String listModes = "beI";
+    private volatile String paramModes = "k";
+    private volatile String setParamModes = "l";
+    private volatile int caseMapping = RFC1459;
+
+    private volatile String nick = "";
+
+    /*
+     * queries, from any thread
+     */
+
+    /**
+     * Returns a channel the client is in.
+     * @param name name of the channel (case is ignored as the server does)
+     * @return the channel, null if the client is not in it
+     */
+    public Channel getChannel(String name) {
+        return channels.get(fold(name));
+    }
+
+    /**
+     * Returns all channels the client is in.
+     * @return the channels
+     */
+    public Collection<Channel> getChannels() {
+        return Collections.unmodifiableCollection(channels.values());
+    }
+
+    /**
+     * Returns a user that is in at least one of the channels the client is in.
+     * @param nick nick of the user
+     * @return the user, null if unknown
+     */
+    public User getUser(String nick) {
+        return users.get(fold(nick));
+    }
+
+    /**
+     * Whether or not the user is in the channel.
+     * @param channel name of the channel
+     * @param nick nick of the user
+     * @return true if the user is in the channel and the client is too
+     */
+    public boolean isOn(String channel, String nick) {
+        return getMember(channel, nick) != null;
+    }
+
+    /**
+     * Whether or not the user is a channel operator (or higher, like an owner).
+     * @param channel name of the channel
+     * @param nick nick of the user
+     * @return true if the user is an operator of the channel
+     */
+    public boolean isOp(String channel, String nick) {
+        return hasRank(channel, nick, 'o');
+    }
+
+    /**
+     * Whether or not the user has voice (or any higher prefix).
+     * @param channel name of the channel
+     * @param nick nick of the user
+     * @return true if the user has voice in the channel
+     */
+    public boolean hasVoice(String channel, String nick) {
+        return hasRank(channel, nick, 'v');
+    }
+
+    /**
+     * Returns the highest prefix of the user, as shown in names lists.
+     * @param channel name of the channel
+     * @param nick nick of the user
+     * @return the prefix (e.g. "@"), an empty String if there is none, null if the user is not in the channel
+     */
+    public String getPrefix(String channel, String nick) {
+        Member member = getMember(channel, nick);
+        if (member == null) {
+            return null;
+        }
+        int prefixes = member.prefixes;
+        String chars = prefixChars;
+        for (int i = 0; i < chars.length(); i++) {
+            if ((prefixes & (1 << i)) != 0) {
+                return chars.substring(i, i + 1);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns the nick of the client, as known to the model.
+     * @return the nick
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Converts a nick or channel name to lower case as the server does.
+     * @param name nick or channel name
+     * @return the name in lower case
+     */
+    public String fold(String name) {
+        int mapping = caseMapping;
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char lower = c;
+            if (c >= 'A' && c <= 'Z') {
+                lower = (char) (c + ('a' - 'A'));
+            } else if (mapping != ASCII && c >= '[' && c <= ']') {
+                lower = (char) (c + ('{' - '['));
+            } else if (mapping == RFC1459 && c == '~') {
+                lower = '^';
+            }
+            if (lower != c) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = lower;
+            }
+        }
+        return chars == null ? name : new String(chars);
+    }
+
+    private Member getMember(String channel, String nick) {
+        Channel c = channels.get(fold(channel));
+        return c == null ? null : c.members.get(fold(nick));
+    }
+
+    /*
+     * whether the user has the prefix of the given mode or one ranked higher
+     */
+    private boolean hasRank(String channel, String nick, char mode) {
+        Member member = getMember(channel, nick);
+        if (member == null) {
+            return false;
+        }
+        int rank = prefixModes.indexOf(mode);
+        if (rank == -1) {
+            return false;
+        }
+        return (member.prefixes & ((2 << rank) - 1)) != 0;
+    }
+
+    /*
+     * updates, on the loop only
+     */
+
+    /**
+     * Forgets everything, e.g. after a reconnect.
+     * @param nick the nick the client registers with
+     */
+    void clear(String nick) {
+        channels.clear();
+        users.clear();
+        this.nick = nick;
+    }
+
+    /**
+     * Sets the nick of the client.
+     * @param nick the nick
+     */
+    void setNick(String nick) {
+        this.nick = nick;
+    }
+
+    /**
+     * Reads a token of the server's 005 reply.
+     * @param token e.g. PREFIX=(ov)@+
+     */
+    void isupport(String token) {
+        int separator = token.indexOf('=');
+        if (separator == -1) {
+            return;
+        }
+        String key = token.substring(0, separator);
+        String value = token.substring(separator + 1);
+        if (key.equals("PREFIX")) {
+            int close = value.indexOf(')');
+            if (value.startsWith("(") && close != -1 && value.length() - close - 1 == close - 1
+                    && close - 1 <= 31) {
+                prefixModes = value.substring(1, close);
+                prefixChars = value.substring(close + 1);
+            }
+        } else if (key.equals("CHANMODES")) {
+            String[] types = value.split(",", -1);
+            if (types.length >= 3) {
+                listModes = types[0];
+                paramModes = types[1];
+                setParamModes = types[2];
+            }
+        } else if (key.equals("CASEMAPPING")) {
+            if (value.equals("ascii")) {
+                caseMapping = ASCII;
+            } else if (value.equals("strict-rfc1459")) {
+                caseMapping = STRICT_RFC1459;
+            } else {
+                caseMapping = RFC1459;
+            }
+        }
+    }
+
+    /**
+     * Adds the users of a names reply (353).
+     * @param channel the channel
+     * @param names space separated nicks with prefixes, optionally nick!user@host
+     */
+    void names(String channel, String names) {
+        Channel c = channels.get(fold(channel));
+        if (c == null) {
+            return;
+        }
+        int start = 0;
+        while (start < names.length()) {
+            int end = names.indexOf(' ', start);
+            if (end == -1) {
+                end = names.length();
+            }
+            int prefixes = 0;
+            int nickStart = start;
+            int prefix;
+            while (nickStart < end && (prefix = prefixChars.indexOf(names.charAt(nickStart))) != -1) {
+                prefixes |= 1 << prefix;
+                nickStart++;
+            }
+            if (nickStart < end) {
+                String name = names.substring(nickStart, end);
+                int bang = name.indexOf('!');
+                int at = name.indexOf('@');
+                Member member;
+                if (bang != -1 && at > bang) {
+                    member = join(c, name.substring(0, bang), name.substring(bang + 1, at), name.substring(at + 1));
+                } else {
+                    member = join(c, name, null, null);
+                }
+                member.prefixes = prefixes;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * The names list of a channel is complete (366).
+     * @param channel the channel
+     */
+    void namesEnd(String channel) {
+        Channel c = channels.get(fold(channel));
+        if (c != null) {
+            c.synced = true;
+        }
+    }
+
+    /**
+     * Somebody joined a channel.
+     * @param channel the channel
+     * @param nick nick of the user
+     * @param user user name, null if unknown
+     * @param host host, null if unknown
+     */
+    void joined(String channel, String nick, String user, String host) {
+        if (fold(nick).equals(fold(this.nick))) {
+            Channel old = channels.remove(fold(channel));
+            if (old != null) {
+                leave(old);
+            }
+            channels.put(fold(channel), new Channel(channel));
+        }
+        Channel c = channels.get(fold(channel));
+        if (c != null) {
+            join(c, nick, user, host);
+        }
+    }
+
+    /**
+     * Somebody left a channel, by PART or KICK.
+     * @param channel the channel
+     * @param nick nick of the user
+     */
+    void parted(String channel, String nick) {
+        Channel c = channels.get(fold(channel));
+        if (c == null) {
+            return;
+        }
+        if (fold(nick).equals(fold(this.nick))) {
+            channels.remove(fold(channel));
+            leave(c);
+            return;
+        }
+        Member member = c.members.remove(fold(nick));
+        if (member != null) {
+            left(member.user, c);
+        }
+    }
+
+    /**
+     * Somebody quit.
+     * @param nick nick of the user
+     */
+    void quit(String nick) {
+        User user = users.remove(fold(nick));
+        if (user == null) {
+            return;
+        }
+        String key = fold(nick);
+        for (Channel c : user.channels) {
+            c.members.remove(key);
+        }
+        user.channels.clear();
+    }
+
+    /**
+     * Somebody changed the nick.
+     * @param oldNick old nick
+     * @param newNick new nick
+     */
+    void nickChanged(String oldNick, String newNick) {
+        if (fold(oldNick).equals(fold(nick))) {
+            nick = newNick;
+        }
+        User user = users.remove(fold(oldNick));
+        if (user == null) {
+            return;
+        }
+        user.nick = newNick;
+        users.put(fold(newNick), user);
+        for (Channel c : user.channels) {
+            Member member = c.members.remove(fold(oldNick));
+            if (member != null) {
+                c.members.put(fold(newNick), member);
+            }
+        }
+    }
+
+    /**
+     * Modes of a channel were changed (MODE) or are reported (324).
+     * @param channel the channel
+     * @param params the mode string followed by its arguments
+     * @param reset true if the params list all modes of the channel (324)
+     */
+    void modes(String channel, List<String> params, boolean reset) {
+        Channel c = channels.get(fold(channel));
+        if (c == null || params.isEmpty()) {
+            return;
+        }
+        TreeMap<Character, String> modes = new TreeMap<Character, String>();
+        if (!reset) {
+            modes.putAll(c.modes);
+        }
+        String modeString = params.get(0);
+        int argument = 1;
+        boolean add = true;
+        for (int i = 0; i < modeString.length(); i++) {
+            char mode = modeString.charAt(i);
+            if (mode == '+' || mode == '-') {
+                add = mode == '+';
+                continue;
+            }
+            int prefix = prefixModes.indexOf(mode);
+            if (prefix != -1) {
+                if (argument < params.size()) {
+                    Member member = c.members.get(fold(params.get(argument++)));
+                    if (member != null) {
+                        member.prefixes = add ? member.prefixes | (1 << prefix) : member.prefixes & ~(1 << prefix);
+                    }
+                }
+            } else if (listModes.indexOf(mode) != -1) {
+                //bans and the like are not kept
+                argument++;
+            } else if (paramModes.indexOf(mode) != -1 || (add && setParamModes.indexOf(mode) != -1)) {
+                String value = argument < params.size() ? params.get(argument++) : "";
+                if (add) {
+                    modes.put(Character.valueOf(mode), value);
+                } else {
+                    modes.remove(Character.valueOf(mode));
+                }
+            } else if (add) {
+                modes.put(Character.valueOf(mode), "");
+            } else {
+                modes.remove(Character.valueOf(mode));
+            }
+        }
+        c.modes = Collections.unmodifiableMap(modes);
+    }
+
+    private Member join(Channel c, String nick, String userName, String host) {
+        String key = fold(nick);
+        User user = users.get(key);
+        if (user == null) {
+            user = new User(nick);
+            users.put(key, user);
+        }
+        if (userName != null) {
+            user.user = userName;
+            user.host = host;
+        }
+        Member member = c.members.get(key);
+        if (member == null) {
+            member = new Member(user);
+            c.members.put(key, member);
+            user.channels.add(c);
+        }
+        return member;
+    }
+
+    /*
+     * the client left the channel: its members are only kept if they share another channel
+     */
+    private void leave(Channel c) {
+        for (Member member : c.members.values()) {
+            left(member.user, c);
+        }
+        c.members.clear();
+    }
+
+    private void left(User user, Channel c) {
+        user.channels.remove(c);
+        if (user.channels.isEmpty()) {
+            users.remove(fold(user.nick));
+        }
+    }
+
+    /**
+     * A channel the client is in.
+     */
+    public static final class Channel {
+        private final String name;
+        private final Map<String, Member> members = new ConcurrentHashMap<String, Member>();
+        private volatile Map<Character, String> modes = Collections.emptyMap();
+        private volatile boolean synced = false;
+
+        private Channel(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of the channel.
+         * @return the name as given when the client joined
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of users in the channel, the client included.
+         * @return the number of users
+         */
+        public int size() {
+            return members.size();
+        }
+
+        /**
+         * Returns the users in the channel.
+         * @return the users, in no particular order
+         */
+        public List<User> getUsers() {
+            List<User> users = new ArrayList<User>(members.size());
+            for (Member member : members.values()) {
+                users.add(member.user);
+            }
+            return users;
+        }
+
+        /**
+         * Returns the channel modes without lists like bans.
+         * @return the modes and their parameters ("" for modes without one)
+         */
+        public Map<Character, String> getModes() {
+            return modes;
+        }
+
+        /**
+         * Whether or not a channel mode is set.
+         * @param mode the mode, e.g. 'm'
+         * @return true if set
+         */
+        public boolean hasMode(char mode) {
+            return modes.containsKey(Character.valueOf(mode));
+        }
+
+        /**
+         * Whether or not the complete names list has been received.
+         * @return true once the members are known
+         */
+        public boolean isSynced() {
+            return synced;
+        }
+    }
+
+    /**
+     * A user in one or more of the client's channels.
+     */
+    public static final class User {
+        private volatile String nick;
+        private volatile String user;
+        private volatile String host;
+        //channels shared with the client, changed on the loop only
+        private final List<Channel> channels = new ArrayList<Channel>(1);
+
+        private User(String nick) {
+            this.nick = nick;
+        }
+
+        /**
+         * Returns the current nick.
+         * @return the nick
+         */
+        public String getNick() {
+            return nick;
+        }
+
+        /**
+         * Returns the user name (ident).
+         * @return the user name, null if unknown
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * Returns the host.
+         * @return the host, null if unknown
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Returns the hostmask.
+         * @return nick!user@host, only the nick if user and host are unknown
+         */
+        public String getHostmask() {
+            String user = this.user;
+            String host = this.host;
+            if (user == null || host == null) {
+                return nick;
+            }
+            return nick + "!" + user + "@" + host;
+        }
+    }
+
+    /*
+     * a user in one channel
+     */
+    private static final class Member {
+        final User user;
+        //bits are indices into the PREFIX modes
+        volatile int prefixes = 0;
+
+        Member(User user) {
+            this.user = user;
+        }
+    }
+}
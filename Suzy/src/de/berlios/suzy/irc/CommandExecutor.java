@@ -0,0 +1,441 @@
+package de.berlios.suzy.irc;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.berlios.suzy.log.Logger;
+import de.berlios.suzy.metrics.Counter;
+import de.berlios.suzy.metrics.Histogram;
+import de.berlios.suzy.metrics.Metrics;
+
+/**
+ * Runs plugin commands of one client off the event loop, so a slow plugin
+ * neither stops the client from reading from the server nor keeps other plugins
+ * from answering.
+ * <br>
+ * The threads are shared by all clients: a fixed pool of <code>suzy.commandThreads</code>
+ * threads (default: twice the number of processors, at least 4), or a virtual thread
+ * per task if the system property <code>suzy.virtualThreads</code> is true and the vm
+ * supports them. At most <code>suzy.commandQueue</code> (default: 256) tasks may be
+ * waiting in addition to the running ones, of all clients together.
+ * <br>
+ * Every plugin has its own limits, set in the network's options:
+ * <code>commands.maxConcurrent</code> tasks of a plugin run at the same time (default: 1,
+ * so plugins need not be thread safe), <code>commands.maxQueued</code> more may wait
+ * (default: 8). Both can be set for a single plugin by appending its class name, e.g.
+ * <code>commands.maxConcurrent.DicePlugin = 4</code>. Tasks of a plugin run in the order
+ * they were submitted; tasks beyond the limits are rejected.
+ * <br>
+ * A command has <code>commands.timeout</code> ms (default: 20000) from being submitted
+ * until it must be done, which can be set per plugin or per command, e.g.
+ * <code>commands.timeout.ExtApiPlugin</code> or <code>commands.timeout.apireload</code>
+ * (0 for no limit). A timeout set for a command also applies to its aliases with a
+ * parser's name appended, like <code>apireload.javadoc</code>. <code>apireload</code>
+ * has no limit unless one is set, rebuilding an index may take minutes.
+ * <br>
+ * A command that is still waiting when its time is up is dropped, a running one is
+ * interrupted. Its plugin runs the next command only once the interrupted one has
+ * returned, in the meantime another thread takes its place in the pool.
+ * <br>
+ * Events are delivered to a plugin one at a time, in their own queue next to the plugin's
+ * commands: <code>events.maxQueued</code> (default: 64, can be set per plugin as well)
+ * more may wait, further ones are dropped. They have no deadline and count neither
+ * toward the limit of all clients nor as rejected commands.
+ * <br>
+ * For every plugin, the time its tasks wait for a thread and the time they run are
+ * recorded as <code>commands.&lt;name&gt;.wait</code> and <code>commands.&lt;name&gt;.time</code>,
+ * the tasks that failed are counted as <code>commands.&lt;name&gt;.errors</code>. The same is
+ * recorded for events as <code>events.&lt;name&gt;.*</code>, together with the events dropped
+ * as <code>events.&lt;name&gt;.dropped</code>.
+ */
+class CommandExecutor {
+    private static final int THREADS = Integer.getInteger("suzy.commandThreads",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors())).intValue();
+    private static final int QUEUE = Integer.getInteger("suzy.commandQueue", 256).intValue();
+    private static final Logger log = Logger.getLogger("commands");
+    private static final String[][] DEFAULT_TIMEOUTS = {
+        {"apireload", "0"}
+    };
+
+    private static ExecutorService pool;
+    private static ScheduledExecutorService deadlines;
+    private static final AtomicInteger inFlight = new AtomicInteger();
+
+    private final String network;
+    private final Properties options;
+    private final int defaultConcurrent;
+    private final int defaultQueued;
+    private final long defaultTimeout;
+    private final int defaultEventsQueued;
+    //keys are plugins, their queues go away when they are unloaded
+    private final Map<Object, TaskQueue> queues = new WeakHashMap<Object, TaskQueue>();
+    private final Map<Object, TaskQueue> eventQueues = new WeakHashMap<Object, TaskQueue>();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Creates an executor for one client.
+     * @param network name of the network, used for the metrics
+     * @param options the network's options, used for commands.*
+     */
+    CommandExecutor(String network, Properties options) {
+        this.network = network;
+        this.options = options;
+        this.defaultConcurrent = Integer.parseInt(options.getProperty("commands.maxConcurrent", "1").trim());
+        this.defaultQueued = Integer.parseInt(options.getProperty("commands.maxQueued", "8").trim());
+        this.defaultTimeout = Long.parseLong(options.getProperty("commands.timeout", "20000").trim());
+        this.defaultEventsQueued = Integer.parseInt(options.getProperty("events.maxQueued", "64").trim());
+    }
+
+    /**
+     * Runs the task on a worker thread once the limits of its plugin allow it.
+     * @param key the plugin the task belongs to
+     * @param name name used for the limits and in log messages, usually the plugin's class name
+     * @param command the command, used for its timeout
+     * @param task task to run
+     * @param timeout run instead of the task if it is not done in time, may be run while the
+     * task is still running
+     * @return false if the task was rejected because too many tasks are waiting
+     */
+    boolean execute(Object key, String name, String command, Runnable task, Runnable timeout) {
+        return submit(key, name, task, getTimeout(name, command), timeout, false);
+    }
+
+    /**
+     * Runs the task on a worker thread after the tasks submitted before with the same key.
+     * The task is never rejected and has no deadline.
+     * @param key key to serialize tasks on
+     * @param name name used in log messages
+     * @param task task to run
+     */
+    void executeAlways(Object key, String name, Runnable task) {
+        submit(key, name, task, 0, null, true);
+    }
+
+    /**
+     * Runs the task on a worker thread after the events delivered to the plugin before.
+     * The task has no deadline and is not counted as a command.
+     * @param key the plugin the event is delivered to
+     * @param name name used for the limits and the metrics, usually the plugin's class name
+     * @param task task to run
+     * @return false if the event was dropped because too many events are waiting
+     */
+    synchronized boolean deliver(Object key, String name, Runnable task) {
+        TaskQueue queue = eventQueues.get(key);
+        if (queue == null) {
+            queue = new TaskQueue("events", name);
+            eventQueues.put(key, queue);
+        }
+        if (queue.running >= queue.maxConcurrent && queue.waiting.size() >= queue.maxQueued) {
+            queue.dropped.increment();
+            //logged once until an event gets through again
+            if (!queue.dropping) {
+                queue.dropping = true;
+                log.debug("Dropping events for " + name + ": " + queue.waiting.size() + " waiting");
+            }
+            return false;
+        }
+        queue.dropping = false;
+        start(queue, new Task(queue, task, null));
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks that have been run to the end.
+     * @return the number of completed tasks
+     */
+    long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of tasks that were not accepted.
+     * @return the number of rejected tasks
+     */
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of tasks that were not done in time.
+     * @return the number of timeouts
+     */
+    long getTimedOut() {
+        return timedOut.get();
+    }
+
+    private long getTimeout(String name, String command) {
+        String timeout = options.getProperty("commands.timeout." + command);
+        //api.javadoc is api with the parser to use
+        int dot = command.indexOf('.');
+        String base = dot == -1 ? command : command.substring(0, dot);
+        if (timeout == null && dot != -1) {
+            timeout = options.getProperty("commands.timeout." + base);
+        }
+        if (timeout == null) {
+            timeout = options.getProperty("commands.timeout." + name);
+        }
+        if (timeout == null) {
+            timeout = "" + defaultTimeout;
+            for (String[] t : DEFAULT_TIMEOUTS) {
+                if (t[0].equals(base)) {
+                    timeout = t[1];
+                }
+            }
+        }
+        return Long.parseLong(timeout.trim());
+    }
+
+    private synchronized boolean submit(Object key, String name, Runnable body, long timeout,
+            Runnable onTimeout, boolean force) {
+        TaskQueue queue = queues.get(key);
+        if (queue == null) {
+            queue = new TaskQueue("commands", name);
+            queues.put(key, queue);
+        }
+
+        boolean full = queue.running >= queue.maxConcurrent && queue.waiting.size() >= queue.maxQueued;
+        if (!force && (full || inFlight.get() >= THREADS + QUEUE)) {
+            rejected.incrementAndGet();
+            log.info("Rejected a task of " + name + ": " + queue.running + " running, "
+                    + queue.waiting.size() + " waiting, " + inFlight.get() + " in all");
+            return false;
+        }
+        inFlight.incrementAndGet();
+        Task task = new Task(queue, body, onTimeout);
+        if (timeout > 0) {
+            task.deadline = deadlines().schedule(task.new Expiry(), timeout, TimeUnit.MILLISECONDS);
+        }
+        start(queue, task);
+        return true;
+    }
+
+    /*
+     * runs the task or lets it wait for its turn. Called with the lock held.
+     */
+    private void start(TaskQueue queue, Task task) {
+        if (queue.running < queue.maxConcurrent) {
+            queue.running++;
+            task.dispatch();
+        } else {
+            queue.waiting.add(task);
+        }
+    }
+
+    /*
+     * the task gave up its place: let the next one of its plugin run. Called with the lock held.
+     */
+    private void release(TaskQueue queue) {
+        if (!queue.events) {
+            inFlight.decrementAndGet();
+        }
+        if (queue.waiting.isEmpty()) {
+            queue.running--;
+        } else {
+            queue.waiting.removeFirst().dispatch();
+        }
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            if (Boolean.getBoolean("suzy.virtualThreads")) {
+                try {
+                    pool = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                            .invoke(null);
+                    log.info("Running commands on virtual threads");
+                } catch (Exception e) {
+                    log.warn("Virtual threads are not available - using " + THREADS + " threads");
+                }
+            }
+            if (pool == null) {
+                final AtomicInteger count = new AtomicInteger();
+                pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "suzy-commands-" + count.getAndIncrement());
+                    }
+                });
+            }
+        }
+        return pool;
+    }
+
+    /*
+     * adds or removes a thread of the pool, to replace one that is stuck in a task
+     */
+    private static synchronized void resizePool(int change) {
+        if (!(pool instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+        if (change > 0) {
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() + change);
+            executor.setCorePoolSize(executor.getCorePoolSize() + change);
+        } else {
+            executor.setCorePoolSize(executor.getCorePoolSize() + change);
+            executor.setMaximumPoolSize(executor.getMaximumPoolSize() + change);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService deadlines() {
+        if (deadlines == null) {
+            deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "suzy-deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return deadlines;
+    }
+
+    /*
+     * the commands or the events of one plugin
+     */
+    private class TaskQueue {
+        final String name;
+        final boolean events;
+        final int maxConcurrent;
+        final int maxQueued;
+        final LinkedList<Task> waiting = new LinkedList<Task>();
+        final Histogram waitTime;
+        final Histogram runTime;
+        final Counter errors;
+        final Counter dropped;
+        int running = 0;
+        boolean dropping = false;
+
+        TaskQueue(String kind, String name) {
+            this.name = name;
+            this.events = kind.equals("events");
+            this.waitTime = Metrics.histogram(network, kind + "." + name + ".wait");
+            this.runTime = Metrics.histogram(network, kind + "." + name + ".time");
+            this.errors = Metrics.counter(network, kind + "." + name + ".errors");
+            if (events) {
+                //one at a time, so they are handled in order
+                this.dropped = Metrics.counter(network, "events." + name + ".dropped");
+                this.maxConcurrent = 1;
+                this.maxQueued = Math.max(0, Integer.parseInt(options.getProperty(
+                        "events.maxQueued." + name, "" + defaultEventsQueued).trim()));
+            } else {
+                this.dropped = null;
+                this.maxConcurrent = Math.max(1, Integer.parseInt(options.getProperty(
+                        "commands.maxConcurrent." + name, "" + defaultConcurrent).trim()));
+                this.maxQueued = Math.max(0, Integer.parseInt(options.getProperty(
+                        "commands.maxQueued." + name, "" + defaultQueued).trim()));
+            }
+        }
+    }
+
+    /*
+     * a submitted task. The state is guarded by the executor's lock.
+     */
+    private class Task implements Runnable {
+        final TaskQueue queue;
+        final Runnable body;
+        final Runnable onTimeout;
+        final long submitted = System.nanoTime();
+        ScheduledFuture<?> deadline;
+        Thread thread;
+        boolean dispatched = false;
+        boolean done = false;
+        boolean expired = false;
+
+        Task(TaskQueue queue, Runnable body, Runnable onTimeout) {
+            this.queue = queue;
+            this.body = body;
+            this.onTimeout = onTimeout;
+        }
+
+        /*
+         * hands the task to the pool, called with the lock held
+         */
+        void dispatch() {
+            dispatched = true;
+            pool().execute(this);
+        }
+
+        public void run() {
+            synchronized (CommandExecutor.this) {
+                if (expired) {
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            long started = System.nanoTime();
+            queue.waitTime.record(started - submitted);
+            try {
+                body.run();
+            } catch (Throwable t) {
+                log.error("Task of " + queue.name + " failed", t);
+                queue.errors.increment();
+            } finally {
+                queue.runTime.record(System.nanoTime() - started);
+                synchronized (CommandExecutor.this) {
+                    done = true;
+                    thread = null;
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
+                    if (expired) {
+                        //finished late, its replacement is no longer needed
+                        resizePool(-1);
+                        log.info("Task of " + queue.name + " finished after its timeout");
+                    } else if (!queue.events) {
+                        completed.incrementAndGet();
+                    }
+                    release(queue);
+                }
+                //the interrupt may have come too late to be noticed
+                Thread.interrupted();
+            }
+        }
+
+        /*
+         * runs on the deadline thread when the time is up
+         */
+        class Expiry implements Runnable {
+            public void run() {
+                synchronized (CommandExecutor.this) {
+                    if (done) {
+                        return;
+                    }
+                    expired = true;
+                    if (thread != null) {
+                        //the plugin keeps its place until the thread returns, the pool does not
+                        thread.interrupt();
+                        resizePool(1);
+                    } else if (dispatched) {
+                        //not started yet, will do nothing when it is
+                        release(queue);
+                    } else {
+                        queue.waiting.remove(Task.this);
+                        inFlight.decrementAndGet();
+                    }
+                }
+                timedOut.incrementAndGet();
+                log.info("Task of " + queue.name + " timed out");
+                if (onTimeout != null) {
+                    try {
+                        onTimeout.run();
+                    } catch (Throwable t) {
+                        log.error("Timeout handler of " + queue.name + " failed", t);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package de.berlios.suzy.irc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Decides whether a command may be passed on to its plugin, so that a single
+ * user, a flood in one channel or a botnet repeating one command cannot keep
+ * the plugins busy.
+ * <br>
+ * There are token buckets per user (by user@host, so changing the nick does not
+ * help), per channel and per command. A command is admitted only if all three have
+ * enough tokens for its cost, and then takes them from all three. Commands that
+ * are expensive to answer cost more: <code>exec</code> 5, <code>api</code>,
+ * <code>class</code>, <code>method</code>, <code>field</code> and <code>google</code> 3
+ * and everything else 1 by default. A command with a parser's name appended, like
+ * <code>api.javadoc</code>, costs the same as the command unless it has a cost of its own.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>Options (servers.conf)</CAPTION>
+ *   <TR><TH>limits.user.burst<TD>5<TD>tokens a user may use at once
+ *   <TR><TH>limits.user.rate<TD>10<TD>tokens a user gets back per minute
+ *   <TR><TH>limits.channel.burst<TD>20<TD>tokens all users of a channel may use at once
+ *   <TR><TH>limits.channel.rate<TD>60<TD>tokens a channel gets back per minute
+ *   <TR><TH>limits.command.burst<TD>30<TD>tokens that may be used for one command at once
+ *   <TR><TH>limits.command.rate<TD>120<TD>tokens a command gets back per minute
+ *   <TR><TH>limits.cost.&lt;command&gt;<TD>1<TD>tokens the command costs
+ * </table>
+ * A rate of 0 turns off that kind of limit. Not thread safe, it is used on the
+ * client's event loop only.
+ */
+class CommandLimiter {
+    private static final String[][] DEFAULT_COSTS = {
+        {"exec", "5"}, {"api", "3"}, {"class", "3"}, {"method", "3"}, {"field", "3"}, {"google", "3"}
+    };
+    private static final long SWEEP_INTERVAL = 60000;
+
+    /**
+     * What to do with a command.
+     */
+    enum Decision {
+        /** pass it on to the plugin */
+        ADMIT,
+        /** drop it silently */
+        DROP,
+        /** drop it and tell the user, the first command dropped after an admitted one */
+        WARN
+    }
+
+    private final Properties options;
+    private final Limit users;
+    private final Limit channels;
+    private final Limit commands;
+    private final Map<String, Integer> costs = new HashMap<String, Integer>();
+    private long lastSweep;
+
+    /**
+     * Creates a limiter for one client.
+     * @param options the network's options, used for limits.*
+     */
+    CommandLimiter(Properties options) {
+        this.options = options;
+        users = new Limit("user", 5, 10);
+        channels = new Limit("channel", 20, 60);
+        commands = new Limit("command", 30, 120);
+        for (String[] cost : DEFAULT_COSTS) {
+            costs.put(cost[0], Integer.valueOf(options.getProperty("limits.cost." + cost[0], cost[1]).trim()));
+        }
+    }
+
+    /**
+     * Takes the tokens for a command if there are enough.
+     * @param hostmask user@host of the sender
+     * @param channel channel the command was sent to, null for private messages
+     * @param command the command (without namespace)
+     * @param now current time in ms
+     * @return whether the command may be executed, and if not, whether the user should be told
+     */
+    Decision admit(String hostmask, String channel, String command, long now) {
+        if (now - lastSweep > SWEEP_INTERVAL) {
+            users.sweep(now);
+            channels.sweep(now);
+            commands.sweep(now);
+            lastSweep = now;
+        }
+
+        int cost = getCost(command);
+        Bucket user = users.get(hostmask, now);
+        Bucket chan = channel == null ? null : channels.get(channel, now);
+        Bucket cmd = commands.get(command, now);
+        if (!has(user, cost) || !has(chan, cost) || !has(cmd, cost)) {
+            //a user is told once, not for every command that is dropped
+            if (user != null && !user.warned) {
+                user.warned = true;
+                return Decision.WARN;
+            }
+            return Decision.DROP;
+        }
+        take(user, cost);
+        take(chan, cost);
+        take(cmd, cost);
+        if (user != null) {
+            user.warned = false;
+        }
+        return Decision.ADMIT;
+    }
+
+    private int getCost(String command) {
+        Integer cost = costs.get(command);
+        if (cost == null) {
+            //api.javadoc costs what api costs unless it has a cost of its own
+            int dot = command.indexOf('.');
+            String value = options.getProperty("limits.cost." + command);
+            if (value == null && dot != -1) {
+                Integer base = costs.get(command.substring(0, dot));
+                value = base != null ? base.toString()
+                        : options.getProperty("limits.cost." + command.substring(0, dot));
+            }
+            cost = Integer.valueOf(value == null ? "1" : value.trim());
+            costs.put(command, cost);
+        }
+        return cost.intValue();
+    }
+
+    private static boolean has(Bucket bucket, int cost) {
+        //a command costing more than the burst can be afforded with a full bucket
+        return bucket == null || bucket.tokens >= Math.min(cost, bucket.limit.burst);
+    }
+
+    private static void take(Bucket bucket, int cost) {
+        if (bucket != null) {
+            bucket.tokens -= cost;
+        }
+    }
+
+    /*
+     * the buckets of one kind
+     */
+    private class Limit {
+        final double burst;
+        final double rate;
+        final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+        Limit(String name, int defaultBurst, int defaultRate) {
+            burst = Integer.parseInt(options.getProperty("limits." + name + ".burst", "" + defaultBurst).trim());
+            rate = Integer.parseInt(options.getProperty("limits." + name + ".rate", "" + defaultRate).trim())
+                    / 60000.0;
+        }
+
+        /*
+         * the refilled bucket for the key, null if this kind is turned off
+         */
+        Bucket get(String key, long now) {
+            if (rate <= 0) {
+                return null;
+            }
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(this, now);
+                buckets.put(key, bucket);
+            } else {
+                bucket.refill(now);
+            }
+            return bucket;
+        }
+
+        /*
+         * a full bucket is the same as none
+         */
+        void sweep(long now) {
+            for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext();) {
+                Bucket bucket = i.next();
+                bucket.refill(now);
+                if (bucket.tokens >= burst) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+        final Limit limit;
+        double tokens;
+        long lastRefill;
+        boolean warned = false;
+
+        Bucket(Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.burst;
+            this.lastRefill = now;
+        }
+
+        void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(limit.burst, tokens + (now - lastRefill) * limit.rate);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable table of the commands of all loaded plugins, built whenever
+ * plugins are loaded or unloaded.
+ * <br>
+ * Commands can be given
+ * <ul>
+ * <li>plain, e.g. <code>method</code>,</li>
+ * <li>with the namespace of their plugin, e.g. <code>extapi:method</code> (the
+ * plugin's class name without "Plugin", in lower case), which is needed to reach
+ * a command that more than one plugin offers,</li>
+ * <li>abbreviated, e.g. <code>met</code>, as long as the abbreviation leads to one
+ * command only. Commands that merely extend that command (like <code>method.suzy</code>
+ * for <code>method</code>) do not make it ambiguous.</li>
+ * </ul>
+ * A lookup walks a trie and does not create any objects.
+ */
+public final class CommandTable {
+    /**
+     * A table without any commands.
+     */
+    public static final CommandTable EMPTY = new CommandTable(new TreeMap<String, Plugin>(),
+            new TreeMap<String, Plugin>());
+
+    private final Node root;
+    private final int size;
+
+    /**
+     * Builds a table. Keys of the maps are commands, either plain or
+     * namespace:command for commands that are offered by more than one plugin.
+     * A command found in both maps is not restricted.
+     * @param commands commands anybody may use
+     * @param restrictedCommands commands for admins only
+     */
+    public CommandTable(Map<String, Plugin> commands, Map<String, Plugin> restrictedCommands) {
+        //sorted, so the trie does not depend on the order of the maps
+        TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+        add(entries, restrictedCommands, true);
+        add(entries, commands, false);
+
+        root = new Node();
+        for (Entry entry : entries.values()) {
+            Node node = root;
+            for (int i = 0; i < entry.name.length(); i++) {
+                node = node.child(entry.name.charAt(i));
+            }
+            node.entry = entry;
+        }
+        root.seal();
+        size = entries.size();
+    }
+
+    private static void add(TreeMap<String, Entry> entries, Map<String, Plugin> commands, boolean restricted) {
+        for (Map.Entry<String, Plugin> command : commands.entrySet()) {
+            String name = command.getKey().toLowerCase();
+            String plain = name.substring(name.indexOf(':') + 1);
+            Plugin plugin = command.getValue();
+            entries.put(name, new Entry(name, plain, plugin, restricted));
+
+            //every command can be reached with the namespace of its plugin
+            String namespaced = getNamespace(plugin) + ":" + plain;
+            Entry existing = entries.get(namespaced);
+            if (existing == null || existing.restricted) {
+                entries.put(namespaced, new Entry(namespaced, plain, plugin, restricted));
+            }
+        }
+    }
+
+    private static boolean contains(String[] commands, String command) {
+        if (commands != null) {
+            for (String c : commands) {
+                if (c.equalsIgnoreCase(command)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the namespace of a plugin's commands.
+     * @param plugin the plugin
+     * @return the plugin's class name without a trailing "Plugin", in lower case
+     */
+    public static String getNamespace(Plugin plugin) {
+        String name = plugin.getClass().getSimpleName().toLowerCase();
+        if (name.endsWith("plugin") && name.length() > "plugin".length()) {
+            name = name.substring(0, name.length() - "plugin".length());
+        }
+        return name;
+    }
+
+    /**
+     * Looks up a command.
+     * @param command the command, plain, namespaced or abbreviated (case is ignored)
+     * @return the command, null if there is no such command or the abbreviation is ambiguous
+     */
+    public Entry find(CharSequence command) {
+        return find(command, 0, command.length());
+    }
+
+    /**
+     * Looks up a command that is part of a longer text.
+     * @param text text containing the command
+     * @param start index of the first character of the command
+     * @param end index after the last character of the command
+     * @return the command, null if there is no such command or the abbreviation is ambiguous
+     */
+    public Entry find(CharSequence text, int start, int end) {
+        if (start >= end) {
+            return null;
+        }
+        Node node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.get(Character.toLowerCase(text.charAt(i)));
+        }
+        if (node == null) {
+            return null;
+        }
+        return node.entry != null ? node.entry : node.unique;
+    }
+
+    /**
+     * Returns the number of names commands can be reached with, namespaced ones included.
+     * @return number of commands
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A command and the plugin executing it.
+     */
+    public static final class Entry {
+        private final String name;
+        private final String command;
+        private final Plugin plugin;
+        private final boolean restricted;
+        private final boolean cacheable;
+        private final boolean invalidating;
+
+        private Entry(String name, String command, Plugin plugin, boolean restricted) {
+            this.name = name;
+            this.command = command;
+            this.plugin = plugin;
+            this.restricted = restricted;
+            if (plugin instanceof CacheablePlugin) {
+                CacheablePlugin cacheablePlugin = (CacheablePlugin) plugin;
+                cacheable = contains(cacheablePlugin.getCacheableCommands(), command);
+                invalidating = contains(cacheablePlugin.getInvalidatingCommands(), command);
+            } else {
+                cacheable = false;
+                invalidating = false;
+            }
+        }
+
+        /**
+         * Returns the name the command was found with in full, e.g. extapi:method.
+         * @return the full name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the command without namespace, as it is passed to the plugin.
+         * @return the command
+         */
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * Returns the plugin executing the command.
+         * @return the plugin
+         */
+        public Plugin getPlugin() {
+            return plugin;
+        }
+
+        /**
+         * Whether or not only admins may use this command.
+         * @return true if restricted
+         */
+        public boolean isRestricted() {
+            return restricted;
+        }
+
+        /**
+         * Whether or not the replies of this command may be cached.
+         * @return true if the plugin declared the command cacheable
+         * @see CacheablePlugin
+         */
+        public boolean isCacheable() {
+            return cacheable;
+        }
+
+        /**
+         * Whether or not this command changes what cacheable commands of its plugin reply.
+         * @return true if cached replies of the plugin have to be dropped after this command
+         */
+        public boolean isInvalidating() {
+            return invalidating;
+        }
+    }
+
+    /*
+     * a node of the trie. Children are kept in sorted arrays once the trie is built.
+     */
+    private static class Node {
+        private List<Node> childList = new ArrayList<Node>();
+        private char[] keys;
+        private Node[] children;
+        private char key;
+        private Entry entry;
+        //the only command reachable from here, if there is one
+        private Entry unique;
+
+        Node child(char c) {
+            for (Node child : childList) {
+                if (child.key == c) {
+                    return child;
+                }
+            }
+            Node child = new Node();
+            child.key = c;
+            childList.add(child);
+            return child;
+        }
+
+        /*
+         * converts the children to arrays and determines the unique entries, bottom up
+         */
+        void seal() {
+            TreeMap<Character, Node> sorted = new TreeMap<Character, Node>();
+            for (Node child : childList) {
+                sorted.put(Character.valueOf(child.key), child);
+            }
+            keys = new char[sorted.size()];
+            children = new Node[sorted.size()];
+            int i = 0;
+            for (Node child : sorted.values()) {
+                child.seal();
+                keys[i] = child.key;
+                children[i] = child;
+                i++;
+            }
+            childList = null;
+
+            if (entry != null) {
+                unique = entry;
+            } else if (children.length == 1) {
+                unique = children[0].unique;
+            }
+        }
+
+        Node get(char c) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < c) {
+                    low = middle + 1;
+                } else if (keys[middle] > c) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+    }
+}
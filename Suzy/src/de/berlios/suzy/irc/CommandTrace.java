@@ -0,0 +1,220 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.berlios.suzy.metrics.Metrics;
+
+/**
+ * Where the time of one command went, from reading its line to writing the last
+ * line of its reply:
+ * <pre>
+ * read -&gt; dispatched -&gt; started -&gt; finished -&gt; sent
+ *      handling   queue     plugin     send
+ * </pre>
+ * Handling is the time the event loop took to parse the line, check the limits and
+ * the cache, queue is the wait for a command thread, send is the time the reply
+ * waited in the send queue after the plugin was done, mostly for the flood controller.
+ * <br>
+ * Lines sent from the thread running the command belong to its trace, like the
+ * replies recorded by the {@link ReplyCache}. A trace is done when the plugin has
+ * returned and all of these lines have been written, then it is offered to the
+ * {@link Slowest} traces of its client. Traces of commands that were rejected, timed
+ * out or whose lines were dropped are never done and simply forgotten.
+ */
+public final class CommandTrace {
+    private static final ThreadLocal<CommandTrace> current = new ThreadLocal<CommandTrace>();
+
+    private final Slowest slowest;
+    private final String nick;
+    private final String target;
+    private final String command;
+    private final long created;
+    private final long read;
+    private volatile long dispatched;
+    private volatile long started;
+    private volatile long finished;
+    private volatile long sent;
+    //the plugin counts as one until it returns, then one per line not written yet
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger lines = new AtomicInteger();
+
+    CommandTrace(Slowest slowest, String nick, String target, String command, long read) {
+        this.slowest = slowest;
+        this.nick = nick;
+        this.target = target;
+        this.command = command;
+        this.created = System.currentTimeMillis();
+        this.read = read;
+    }
+
+    /*
+     * returns the trace of the command running on this thread, if any
+     */
+    static CommandTrace current() {
+        return current.get();
+    }
+
+    /*
+     * sets the trace of the command running on this thread, null when it is done
+     */
+    static void setCurrent(CommandTrace trace) {
+        if (trace == null) {
+            current.remove();
+        } else {
+            current.set(trace);
+        }
+    }
+
+    void dispatched() {
+        dispatched = System.nanoTime();
+    }
+
+    void started() {
+        started = System.nanoTime();
+    }
+
+    void finished() {
+        finished = System.nanoTime();
+        if (pending.decrementAndGet() == 0) {
+            slowest.offer(this);
+        }
+    }
+
+    /*
+     * a line of the reply has been queued
+     */
+    void queued() {
+        lines.incrementAndGet();
+        pending.incrementAndGet();
+    }
+
+    /*
+     * a line of the reply has been written
+     */
+    void sent(long now) {
+        sent = now;
+        if (pending.decrementAndGet() == 0) {
+            slowest.offer(this);
+        }
+    }
+
+    /**
+     * Returns when the command was given.
+     * @return time in ms
+     */
+    public long getTime() {
+        return created;
+    }
+
+    /**
+     * Returns who gave the command.
+     * @return the nick
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Returns the command with its arguments.
+     * @return the command, e.g. "api String"
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the time from reading the line to writing the last line of the reply,
+     * or to the end of the plugin if it did not reply.
+     * @return the total time in µs
+     */
+    public long getTotal() {
+        return (getEnd() - read) / 1000;
+    }
+
+    private long getEnd() {
+        return lines.get() == 0 ? finished : Math.max(sent, finished);
+    }
+
+    /**
+     * Returns the times of the stages in a short, readable form.
+     * @return e.g. "api String (Honk in #java): 1.2 s - handling 80 µs, queue 3.1 ms, plugin 900 ms, send 290 ms, 3 lines"
+     */
+    public String format() {
+        return command + " (" + nick + (target == null ? "" : " in " + target) + "): "
+                + Metrics.formatMicros(getTotal())
+                + " - handling " + Metrics.formatMicros((dispatched - read) / 1000)
+                + ", queue " + Metrics.formatMicros((started - dispatched) / 1000)
+                + ", plugin " + Metrics.formatMicros((finished - started) / 1000)
+                + ", send " + Metrics.formatMicros((getEnd() - finished) / 1000)
+                + ", " + lines.get() + (lines.get() == 1 ? " line" : " lines");
+    }
+
+    /**
+     * The slowest traces of a client. Traces faster than all of them are turned
+     * away without taking the lock.
+     */
+    public static final class Slowest {
+        private final CommandTrace[] traces;
+        private int size = 0;
+        //total of the fastest trace kept once full
+        private volatile long threshold = -1;
+
+        Slowest(int capacity) {
+            traces = new CommandTrace[capacity];
+        }
+
+        /*
+         * whether traces are kept at all
+         */
+        boolean isEnabled() {
+            return traces.length > 0;
+        }
+
+        void offer(CommandTrace trace) {
+            long total = trace.getTotal();
+            if (total <= threshold) {
+                return;
+            }
+            synchronized (this) {
+                //slowest first
+                int i = size < traces.length ? size++ : size - 1;
+                if (i == traces.length - 1 && traces[i] != null && traces[i].getTotal() >= total) {
+                    return;
+                }
+                while (i > 0 && traces[i - 1].getTotal() < total) {
+                    traces[i] = traces[i - 1];
+                    i--;
+                }
+                traces[i] = trace;
+                if (size == traces.length) {
+                    threshold = traces[size - 1].getTotal();
+                }
+            }
+        }
+
+        /**
+         * Returns the traces kept.
+         * @return the traces, slowest first
+         */
+        public synchronized List<CommandTrace> get() {
+            List<CommandTrace> list = new ArrayList<CommandTrace>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(traces[i]);
+            }
+            return list;
+        }
+
+        /**
+         * Forgets all traces.
+         */
+        public synchronized void clear() {
+            for (int i = 0; i < size; i++) {
+                traces[i] = null;
+            }
+            size = 0;
+            threshold = -1;
+        }
+    }
+}
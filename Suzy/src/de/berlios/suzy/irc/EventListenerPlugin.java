@@ -0,0 +1,36 @@
+package de.berlios.suzy.irc;
+
+/**
+ * A plugin that wants to see what happens on irc apart from commands,
+ * e.g. to remember when somebody was last seen or to detect floods.
+ * <br>
+ * The plugin declares the message types it is interested in, and optionally
+ * the channels, when it is loaded. Only messages of these types are turned
+ * into {@link IrcEvent}s and only for the plugins that want them, so other
+ * traffic costs nothing. Events are handled on the command threads, one at a
+ * time and in the order they were received. They have a queue of their own, so
+ * they may be handled at the same time as a command of the plugin: state shared
+ * with the commands must be synchronized. When more than <code>events.maxQueued</code>
+ * events are waiting for the plugin, further ones are dropped until it catches up.
+ */
+public interface EventListenerPlugin extends Plugin {
+    /**
+     * The message types this plugin wants to receive, e.g. JOIN, NICK or 366.
+     * @return a list of irc commands or three digit numerics, in upper case
+     */
+    public String[] getEventTypes();
+
+    /**
+     * The channels this plugin wants to receive events from. Events that do
+     * not belong to a channel (like QUIT or NICK) are always delivered.
+     * @return a list of channels, null for all channels
+     */
+    public String[] getEventChannels();
+
+    /**
+     * This method will be called for every message of the declared types
+     * and channels.
+     * @param event the message received
+     */
+    public void handleIrcEvent(IrcEvent event);
+}
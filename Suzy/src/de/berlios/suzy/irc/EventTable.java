@@ -0,0 +1,135 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An immutable table of which {@link EventListenerPlugin}s want which messages,
+ * built whenever plugins are loaded or unloaded.
+ * <br>
+ * A lookup does not create any objects, so messages nobody subscribed to cost
+ * nothing but the lookup.
+ */
+public final class EventTable {
+    /**
+     * A table without any subscriptions.
+     */
+    public static final EventTable EMPTY = new EventTable(new ArrayList<EventListenerPlugin>());
+
+    private final Subscription[][] numerics = new Subscription[1000][];
+    private final String[] commands;
+    private final Subscription[][] commandSubscriptions;
+
+    /**
+     * Builds a table.
+     * @param listeners the loaded plugins that listen for events
+     */
+    public EventTable(Collection<EventListenerPlugin> listeners) {
+        Map<String, List<Subscription>> byType = new TreeMap<String, List<Subscription>>();
+        for (EventListenerPlugin listener : listeners) {
+            Subscription subscription = new Subscription(listener);
+            String[] types = listener.getEventTypes();
+            if (types == null) {
+                continue;
+            }
+            Set<String> seen = new TreeSet<String>();
+            for (String type : types) {
+                type = type.trim().toUpperCase();
+                if (!seen.add(type)) {
+                    continue;
+                }
+                List<Subscription> list = byType.get(type);
+                if (list == null) {
+                    list = new ArrayList<Subscription>();
+                    byType.put(type, list);
+                }
+                list.add(subscription);
+            }
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<Subscription[]> subscriptions = new ArrayList<Subscription[]>();
+        for (Map.Entry<String, List<Subscription>> entry : byType.entrySet()) {
+            String type = entry.getKey();
+            Subscription[] array = entry.getValue().toArray(new Subscription[entry.getValue().size()]);
+            if (type.length() == 3 && Character.isDigit(type.charAt(0)) && Character.isDigit(type.charAt(1))
+                    && Character.isDigit(type.charAt(2))) {
+                numerics[Integer.parseInt(type)] = array;
+            } else {
+                names.add(type);
+                subscriptions.add(array);
+            }
+        }
+        commands = names.toArray(new String[names.size()]);
+        commandSubscriptions = subscriptions.toArray(new Subscription[subscriptions.size()][]);
+    }
+
+    /**
+     * Returns the plugins that want a message.
+     * @param message the message received
+     * @return the subscriptions for the type of the message (not yet checked for the channel),
+     * null if there are none
+     */
+    public Subscription[] find(IrcMessage message) {
+        int numeric = message.getNumeric();
+        if (numeric != -1) {
+            return numerics[numeric];
+        }
+        for (int i = 0; i < commands.length; i++) {
+            if (message.isCommand(commands[i])) {
+                return commandSubscriptions[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A plugin and the channels it wants events from.
+     */
+    public static final class Subscription {
+        private final EventListenerPlugin plugin;
+        private final String[] channels;
+
+        private Subscription(EventListenerPlugin plugin) {
+            this.plugin = plugin;
+            String[] channels = plugin.getEventChannels();
+            if (channels != null) {
+                channels = channels.clone();
+                for (int i = 0; i < channels.length; i++) {
+                    channels[i] = channels[i].trim();
+                }
+            }
+            this.channels = channels;
+        }
+
+        /**
+         * Returns the plugin.
+         * @return the plugin receiving the events
+         */
+        public EventListenerPlugin getPlugin() {
+            return plugin;
+        }
+
+        /**
+         * Whether or not the plugin wants events from a channel.
+         * @param channel the channel, null for events that do not belong to one
+         * @return true if the event should be delivered
+         */
+        public boolean wants(String channel) {
+            if (channels == null || channel == null) {
+                return true;
+            }
+            for (String c : channels) {
+                if (c.equalsIgnoreCase(channel)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package de.berlios.suzy.irc;
+
+/**
+ * Decides when the {@link IrcClient} may write the next line to the server.
+ * <br>
+ * The client asks for a {@link #delay(int, long)} before each line and reports
+ * every line written. To learn how busy the server is, the controller may ask
+ * for lag probes (PINGs sent in line with the normal traffic); the answer to a
+ * probe tells how long the server took to process everything sent before it.
+ * <br>
+ * An implementation can be chosen per network with the <code>flood</code>
+ * option in servers.conf. Implementations must either offer a constructor
+ * taking the network's options as {@link java.util.Properties} or a default
+ * constructor. All methods are called from the client's event loop.
+ * @see TokenBucketFloodController
+ */
+public interface FloodController {
+    /**
+     * Returns the time the line has to wait before it may be sent.
+     * @param bytes length of the line in bytes
+     * @param now current time in ms
+     * @return 0 if the line may be sent now, the delay in ms otherwise or
+     * Long.MAX_VALUE if a lag probe has to be answered first
+     */
+    public long delay(int bytes, long now);
+
+    /**
+     * A line has been written.
+     * @param bytes length of the line in bytes
+     * @param now current time in ms
+     */
+    public void sent(int bytes, long now);
+
+    /**
+     * Whether or not a lag probe should be sent now.
+     * @param now current time in ms
+     * @return true if the client should send a probe
+     */
+    public boolean wantsProbe(long now);
+
+    /**
+     * A lag probe has been written.
+     * @param now current time in ms
+     * @return a mark that is handed back to {@link #acknowledged(long, long, long)}
+     * when the probe is answered
+     */
+    public long probeSent(long now);
+
+    /**
+     * A lag probe has been answered, so the server has processed everything sent before it.
+     * @param mark the mark returned by {@link #probeSent(long)} for this probe
+     * @param rtt time between sending the probe and receiving the answer in ms
+     * @param now current time in ms
+     */
+    public void acknowledged(long mark, long rtt, long now);
+
+    /**
+     * The server closed the connection because we sent too much.
+     * @param now current time in ms
+     */
+    public void excessFlood(long now);
+
+    /**
+     * A new connection has been established, nothing is in flight.
+     * @param now current time in ms
+     */
+    public void reset(long now);
+}
@@ -1,205 +1,458 @@
 package de.berlios.suzy.irc;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.berlios.suzy.irc.plugin.LoaderPlugin;
+import de.berlios.suzy.log.Level;
+import de.berlios.suzy.log.Logger;
+import de.berlios.suzy.metrics.Counter;
+import de.berlios.suzy.metrics.Gauge;
+import de.berlios.suzy.metrics.Management;
+import de.berlios.suzy.metrics.Metrics;
 
 /**
  * This class is an IRC client. It will connect to the specified host and port.
  * The client will try to reconnect if it gets disconnected.
  * <br>
+ * All network i/o, timers and protocol handling run on a shared {@link IrcEventLoop},
+ * so clients for several networks do not need threads of their own. Commands are
+ * executed off the loop by a {@link CommandExecutor}, so a slow plugin does not block
+ * reading from the server or other plugins.
+ * <br>
  * Plugins are used to handle commands that start with the COMMAND_MODIFIER.
+ * <br>
+ * Every client is registered as an {@link IrcClientMBean}.
+ * <br>
+ * The <code>trace.slowest</code> (default: 10, 0 for none) slowest commands are kept
+ * as {@link CommandTrace}s.
+ * <br>
+ * If the option <code>capture.file</code> is set, every line received is recorded
+ * to that file by a {@link TrafficCapture}.
+ * <br>
+ * PINGs of the server are answered at once from a reused buffer, ahead of the send
+ * queue, so keep-alives neither allocate nor wait behind long answers. Keep-alives
+ * are logged at TRACE.
  *
  *
  * @author honk
  */
 public class IrcClient {
+    private static final String CHANNEL_PREFIXES = "#&+!";
+    private static final byte[] PONG = { 'P', 'O', 'N', 'G', ' ', ':' };
+
+    private String network;
     private String commandModifier;
+    private String inlineCommandModifier;
     private String adminChannel;
     private String adminChannelPassword;
     private long timeout;
+    private long probeAfter;
+    private long closeAfter;
 
-    //reconnect throttling
-    long lastConnectTry = 0;
-    final int steps = 10;
-    final int minWait = 5;
-    final int maxWait = 60;
-    int badTries = 0;
+    private ServerList servers;
+    private Reconnector reconnector;
+    private long connectTimeout;
 
-
-    private String server;
-    private String nickName;
+    private volatile String nickName;
     private String desiredNickName;
-    private int port;
-    private Socket sock;
-    private BufferedReader br;
-    private PrintWriter pw;
+    private IrcEventLoop loop;
+    private IrcConnection connection;
+    private CommandExecutor commandExecutor;
+    //the tasks run on connect have a queue of their own, not the one of LoaderPlugin
+    private final Object connectTasks = new Object();
+    private String busyReply;
+    private CommandLimiter commandLimiter;
+    private String limitReply;
     private LoaderPlugin loaderPlugin;
-    private ConnectThread connectThread;
+    private CommandTrace.Slowest slowCommands;
+    private TrafficCapture capture;
+    private NickRecovery nickRecovery;
+
+    private Sender sender;
+    private FloodController floodController;
+    private SendQueue sendQueue;
 
-    private SendThread sendThread;
-    private static int SEND_BUFFER = 1024;
-    //private Queue<String> sendQueue = new LinkedList<String>();
-    private Set<String> sendQueue = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private ChannelModel channelModel = new ChannelModel();
 
-    private Set<String> admins = new TreeSet<String>();
+    private Logger log;
+    private Logger traffic;
 
+    private Counter linesIn;
+    private Counter bytesIn;
+    private Counter linesOut;
+    private Counter bytesOut;
+    private Counter floodStalls;
+    private Counter reconnects;
 
     /**
      * Creates a new IrcClient which will cause plugins to be loaded.
      * @param network name of the network (used for config files e.g.)
-     * @param server address of the irc server
-     * @param port port of the irc server
+     * @param server address of the irc server, or a comma separated list of host[:port] to choose from
+     * @param port port of the irc server (used for hosts given without a port)
      * @param nickName the bot's name on irc
      * @param adminChannel a channel which is used for determining administrator status
      * @param adminChannelPassword the password for the adminChannel
-     * @param timeout timeout after which the bot will reconnect to the irc server in seconds (120 seconds should be a good value)
+     * @param timeout the bot will reconnect if nothing has been received from the server for this many seconds (120 seconds should be a good value)
      * @param commandModifier prefix the bot will look for when searching for commands from users (e.g. "!" if you want the bot to react to "!help")
      */
     public IrcClient(String network, String server, int port, String nickName, String adminChannel,
             String adminChannelPassword, int timeout, String commandModifier) {
-        this.server = server;
-        this.port = port;
+        this(network, server, port, nickName, adminChannel, adminChannelPassword, timeout, commandModifier,
+                new Properties());
+    }
+
+    /**
+     * Creates a new IrcClient which will cause plugins to be loaded.
+     * @param network name of the network (used for config files e.g.)
+     * @param server address of the irc server, or a comma separated list of host[:port] to choose from
+     * @param port port of the irc server (used for hosts given without a port)
+     * @param nickName the bot's name on irc
+     * @param adminChannel a channel which is used for determining administrator status
+     * @param adminChannelPassword the password for the adminChannel
+     * @param timeout the bot will reconnect if nothing has been received from the server for this many seconds (120 seconds should be a good value)
+     * @param commandModifier prefix the bot will look for when searching for commands from users (e.g. "!" if you want the bot to react to "!help")
+     * @param options additional options for this network (key = value lines in servers.conf)
+     */
+    public IrcClient(final String network, String server, int port, String nickName, String adminChannel,
+            String adminChannelPassword, int timeout, String commandModifier, Properties options) {
+        this.network = network;
+        this.log = Logger.getLogger("irc", network);
+        this.traffic = Logger.getLogger("traffic", network);
+        this.servers = new ServerList(server, port, options);
+        this.connectTimeout = Long.parseLong(options.getProperty("reconnect.connectTimeout", "30000").trim());
         this.nickName = nickName;
         this.desiredNickName = nickName;
         this.adminChannel = adminChannel;
         this.adminChannelPassword = adminChannelPassword;
         this.timeout = timeout * 1000; //store as ms instead of second
+        this.probeAfter = Long.parseLong(options.getProperty("idle.probe", "" + this.timeout / 4).trim());
+        long pongTimeout = Long.parseLong(options.getProperty("idle.pongTimeout", "" + this.timeout / 4).trim());
+        this.closeAfter = Math.min(this.timeout, probeAfter + pongTimeout);
         this.commandModifier = commandModifier;
+        this.inlineCommandModifier = " " + commandModifier;
+        this.floodController = createFloodController(options);
+        this.sendQueue = new SendQueue(options);
 
         loaderPlugin = new LoaderPlugin(network);
 
-        connectThread = new ConnectThread();
-        sendThread = new SendThread();
-        connect();
+        commandExecutor = new CommandExecutor(network, options);
+        busyReply = options.getProperty("commands.busyReply", "Sorry, I am too busy right now - please try again later.");
+        commandLimiter = new CommandLimiter(options);
+        limitReply = options.getProperty("limits.reply", "You are sending commands too fast - please slow down.");
+        slowCommands = new CommandTrace.Slowest(Integer.parseInt(options.getProperty("trace.slowest", "10").trim()));
+        createMetrics();
+        loop = IrcEventLoop.next();
+        nickRecovery = new NickRecovery();
+        reconnector = new Reconnector();
+        sender = new Sender();
+        Management.register("IrcClient", network, null, new Bean(), IrcClientMBean.class);
+        final String captureFile = options.getProperty("capture.file", "").trim();
+        loop.execute(new Runnable() {
+            public void run() {
+                if (captureFile.length() != 0) {
+                    startCapture(captureFile);
+                }
+                reconnector.connectNext();
+                nickRecovery.start();
+            }
+        });
+    }
 
-        new Thread(connectThread).start();
-        new Thread(sendThread).start();
+    private void createMetrics() {
+        linesIn = Metrics.counter(network, "irc.linesIn");
+        bytesIn = Metrics.counter(network, "irc.bytesIn");
+        linesOut = Metrics.counter(network, "irc.linesOut");
+        bytesOut = Metrics.counter(network, "irc.bytesOut");
+        floodStalls = Metrics.counter(network, "irc.floodStalls");
+        reconnects = Metrics.counter(network, "irc.reconnects");
+        Metrics.gauge(network, "irc.sendQueue", new Gauge.Value() {
+            public long get() {
+                return sendQueue.size();
+            }
+        });
+        Metrics.gauge(network, "commands.completed", new Gauge.Value() {
+            public long get() {
+                return commandExecutor.getCompleted();
+            }
+        });
+        Metrics.gauge(network, "commands.rejected", new Gauge.Value() {
+            public long get() {
+                return commandExecutor.getRejected();
+            }
+        });
+        Metrics.gauge(network, "commands.timedOut", new Gauge.Value() {
+            public long get() {
+                return commandExecutor.getTimedOut();
+            }
+        });
     }
 
-    private void connect() {
+    /*
+     * starts recording the lines received, replacing a running capture. Runs on the loop.
+     */
+    private void startCapture(String file) {
+        stopCapture();
         try {
-            admins.clear();
-            sendThread.clear();
+            capture = new TrafficCapture(new File(file), loop);
+            log.info("Capturing to " + file);
+        } catch (IOException e) {
+            log.warn("Cannot capture to " + file, e);
+        }
+    }
 
-            sock = new Socket(server, port);
-            sock.setKeepAlive(true);
-            br = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            pw = new PrintWriter(sock.getOutputStream());
+    private void stopCapture() {
+        if (capture != null) {
+            capture.close();
+            capture = null;
+        }
+    }
 
-            new IrcHandler().start();
+    private void connect(final ServerList.Server server) {
+        channelModel.clear(nickName);
+        sender.clear();
 
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException ie) {
-            }
+        final IrcHandler handler = new IrcHandler();
+        connection = handler.connection;
+        connection.setIdleTimeouts(probeAfter, closeAfter);
 
-            send("USER suzy 0 0 :Suzy Api Bot");
-            send("NICK " + nickName);
+        InetAddress cached = server.getAddress(System.currentTimeMillis(), false);
+        if (cached != null) {
+            connect(handler, server, cached);
             return;
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        loop.resolve(server.getHost(), new IrcEventLoop.Callback<InetAddress>() {
+            public void done(InetAddress address) {
+                if (connection != handler.connection) {
+                    return; //given up on this one already
+                }
+                long now = System.currentTimeMillis();
+                if (address != null) {
+                    server.setAddress(address, now);
+                } else {
+                    address = server.getAddress(now, true);
+                    if (address == null) {
+                        handler.connection.close(null);
+                        return;
+                    }
+                    log.warn("Cannot resolve " + server.getHost() + " - using the last known address " + address);
+                }
+                connect(handler, server, address);
+            }
+        });
     }
 
+    private void connect(IrcHandler handler, ServerList.Server server, InetAddress address) {
+        try {
+            handler.connection.connect(new InetSocketAddress(address, server.getPort()));
+        } catch (IOException e) {
+            log.warn("Cannot connect to " + server, e);
+            handler.connection.close(e);
+        }
+    }
 
-    private void handleJoinedChanel(String[] cmd) {
-
-        String channel = cmd[3].split(" ")[1];
+    private void register() {
+        send("USER suzy 0 0 :Suzy Api Bot");
+        send("NICK " + nickName);
+    }
 
-        if (channel.equals(adminChannel)) {
-            String message = cmd[3];
-            String userString = message.substring(message.indexOf(':') + 1);
 
-            String[] users = userString.replaceAll("[@\\+]", "").split(" ");
+    private void handleWelcome(IrcMessage message) {
+        //:server 001 nick :Welcome to the network
+        if (message.getParamCount() > 1) {
+            nickName = message.getParam(0);
+            channelModel.setNick(nickName);
+        }
+    }
 
-            System.out.println("channel: " + channel + " users " + Arrays.toString(users));
+    private void handleISupport(IrcMessage message) {
+        //:server 005 nick PREFIX=(ov)@+ CHANMODES=beI,k,l,imnpst :are supported by this server
+        for (int i = 1; i < message.getParamCount() - 1; i++) {
+            channelModel.isupport(message.getParam(i));
+        }
+    }
 
-            for (String user : users) {
-                admins.add(user);
-            }
+    private void handleNames(IrcMessage message) {
+        //:server 353 me = #channel :@op +voice user
+        if (message.getParamCount() < 3) {
+            return;
         }
+        channelModel.names(message.getParam(message.getParamCount() - 2), message.getLastParam());
     }
 
+    private void handleNamesEnd(IrcMessage message) {
+        //:server 366 me #channel :End of /NAMES list.
+        if (message.getParamCount() > 1) {
+            channelModel.namesEnd(message.getParam(1));
+        }
+    }
 
-    private void handleNickInUse(String[] cmd) {
-        String myNick = cmd[2];
+    private void handleChannelModes(IrcMessage message) {
+        //:server 324 me #channel +nt
+        if (message.getParamCount() > 2) {
+            channelModel.modes(message.getParam(1), getParams(message, 2), true);
+        }
+    }
 
-        if (myNick.equals("*")) {
-            String nickInUse = cmd[3].substring(0, cmd[3].indexOf(' '));
+    private void handleNickInUse(IrcMessage message) {
+        //:server 433 * nick :Nickname is already in use.
+        if (message.paramStartsWith(0, "*") && message.getParamCount() > 1) {
+            String nickInUse = message.getParam(1);
             String newNickName = nickName + (int) (Math.random() * 10);
-            System.out.println("Nickname " + nickInUse + " in use, changing to: " + newNickName);
+            log.info("Nickname " + nickInUse + " in use, changing to: " + newNickName);
             send("NICK " + newNickName);
             this.nickName = newNickName;
+            channelModel.setNick(newNickName);
         }
     }
 
-    private void handleQuit(String[] cmd) {
-        String target = parseHostToNick(cmd[0]);
-        admins.remove(target);
+    private void handleQuit(IrcMessage message) {
+        if (message.getNick() != null) {
+            channelModel.quit(message.getNick());
+        }
     }
 
-    private void handleNick(String[] cmd) {
+    private void handleNick(IrcMessage message) {
         //:_biO_!~bio@peon.workwork.de NICK :_bio_
-        String from = parseHostToNick(cmd[0]);
-        String to = cmd[2].substring(1);
-        if (admins.contains(from)) {
-            admins.remove(from);
-            admins.add(to);
+        String from = message.getNick();
+        String to = message.getParam(0);
+        if (from == null || to == null) {
+            return;
         }
+        channelModel.nickChanged(from, to);
 
         if (from.equals(nickName)) {
             nickName = to;
         }
     }
 
-    private void handleJoin(String[] cmd) {
-        String[] channels = cmd[2].split("[:,]");
-        for (String channel : channels) {
-            if (channel.equals(adminChannel)) {
-                String target = parseHostToNick(cmd[0]);
-                admins.add(target);
+    private void handleJoin(IrcMessage message) {
+        //:nick!user@host JOIN #channel[,#channel]
+        String prefix = message.getPrefix();
+        String channels = message.getParam(0);
+        if (prefix == null || channels == null) {
+            return;
+        }
+        String nick = message.getNick();
+        int bang = prefix.indexOf('!');
+        int at = prefix.indexOf('@');
+        String user = null;
+        String host = null;
+        if (bang != -1 && at > bang) {
+            user = prefix.substring(bang + 1, at);
+            host = prefix.substring(at + 1);
+        }
+        boolean self = nick.equals(nickName);
+        for (String channel : channels.split(",")) {
+            channelModel.joined(channel, nick, user, host);
+            if (self) {
+                send("MODE " + channel);
             }
         }
     }
 
-    private void handlePart(String[] cmd) {
-        String[] channels = cmd[2].split("[:,]");
-        for (String channel : channels) {
-            if (channel.equals(adminChannel)) {
-                String target = parseHostToNick(cmd[0]);
-                admins.remove(target);
-            }
+    private void handlePart(IrcMessage message) {
+        //:nick!user@host PART #channel[,#channel] :reason
+        String channels = message.getParam(0);
+        if (channels == null || message.getNick() == null) {
+            return;
+        }
+        for (String channel : channels.split(",")) {
+            channelModel.parted(channel, message.getNick());
         }
     }
 
+    private void handleKick(IrcMessage message) {
+        //:op!user@host KICK #channel nick :reason
+        if (message.getParamCount() > 1) {
+            channelModel.parted(message.getParam(0), message.getParam(1));
+        }
+    }
+
+    private void handleMode(IrcMessage message) {
+        //:op!user@host MODE #channel +o-v nick nick
+        if (message.getParamCount() > 1) {
+            channelModel.modes(message.getParam(0), getParams(message, 1), false);
+        }
+    }
+
+    private static List<String> getParams(IrcMessage message, int start) {
+        List<String> params = new ArrayList<String>(message.getParamCount() - start);
+        for (int i = start; i < message.getParamCount(); i++) {
+            params.add(message.getParam(i));
+        }
+        return params;
+    }
+
+    /**
+     * Whether or not the user is an administrator, i.e. in the admin channel.
+     * @param nick nick of the user
+     * @return true if the user is an admin
+     */
+    public boolean isAdmin(String nick) {
+        return channelModel.isOn(adminChannel, nick);
+    }
+
+    /**
+     * Returns the members and modes of the channels the client is in.
+     * @return the channel model
+     */
+    public ChannelModel getChannelModel() {
+        return channelModel;
+    }
+
+    /**
+     * Returns the slowest commands given on this network.
+     * @return the slowest commands
+     */
+    public CommandTrace.Slowest getSlowCommands() {
+        return slowCommands;
+    }
+
+    /**
+     * Returns the name of the network the client connects to.
+     * @return name of the network
+     */
+    public String getNetwork() {
+        return network;
+    }
+
     /**
      * Sends this text to the irc server.
-     * If the text has more than 511 chars, it will be cut off.
+     * If the text has more than 511 bytes, it will be cut off.
      * A linefeed will be added to the end of the String.
      * @param text text to send
      */
     public void send(String text) {
-        System.out.println("- > " + text);
-        text = text.substring(0, Math.min(511, text.length()));
+        ReplyCache.sentRaw();
+        enqueue(text);
+    }
+
+    private void enqueue(String text) {
+        if (traffic.isEnabled(Level.TRACE)) {
+            traffic.trace("- > " + text);
+        }
+        text = IrcConnection.truncate(text, 511);
         text = text + "\n";
 
-        sendQueue.add(text);
+        CommandTrace trace = CommandTrace.current();
+        if (trace != null) {
+            trace.queued();
+        }
+        sendQueue.add(text, trace);
+        sender.wakeUp();
     }
 
 
@@ -207,380 +460,869 @@ public class IrcClient {
      * dirty fix for inline commands (requested by soulreaper) 
      * currently only first hit search and restricted to admins
      */
-    private void handlePrivmsg(String[] cmd) {
-        String[] messageContent = cmd[3].trim().substring(1).split("\\s+", 2);
-        IrcTarget target = getTarget(cmd);
-        String command = messageContent[0].toLowerCase();
-        String message = messageContent.length > 1 ? messageContent[1] : "";
-        if (command.startsWith(commandModifier)) {
+    private void handlePrivmsg(IrcMessage ircMessage) {
+        if (ircMessage.getParamCount() < 2 || ircMessage.getNick() == null) {
+            return;
+        }
+        //most lines on a busy channel are no commands, drop them before creating any Strings
+        if (!ircMessage.paramStartsWith(1, commandModifier)
+                && !ircMessage.paramContains(1, inlineCommandModifier)) {
+            return;
+        }
+
+        String text = ircMessage.getParam(1).trim();
+        IrcTarget target = getTarget(ircMessage.getNick(), ircMessage.getParam(0));
+        int commandStart;
+        if (text.startsWith(commandModifier)) {
             // standard cmd
-            command = messageContent[0].substring(commandModifier.length()).toLowerCase();
-            if (command.length() == 0) {
-                // return at once no need to process
+            commandStart = commandModifier.length();
+        } else if (isAdmin(target.getUser())) {
+            // could be inline cmd, only the first one is used
+            int pos = text.indexOf(inlineCommandModifier);
+            if (pos == -1) {
                 return;
             }
-        } else if (admins.contains(target.getUser())) {
-            // could be inline cmd
-            // grab whole msg
-            String content = cmd[3].trim().substring(1);
-            int pos;
-            if ((pos = content.indexOf(" "+commandModifier)) == -1) {
-                return;
-            }
-            
-            content = content.substring(pos+2);
-            // message one word only:
-            // String[] tmp = content.split("\\s+",3); 
-            String[] tmp = content.split("\\s+", 2);
-            command = tmp[0];
-            if (tmp.length >= 2) {
-                message = tmp[1];
-            } else {
-                message = "";
-            }
-            
-
+            commandStart = pos + inlineCommandModifier.length();
         } else {
             return;
         }
-
-        boolean restricted = false;
-        Plugin plugin = loaderPlugin.getPluginList().get(command);
-        if (plugin == null) {
-            // restricted?
-            plugin = loaderPlugin.getRestrictedPluginList().get(command);
-            if (plugin != null) {
-                restricted = true;
-            } else {
-                // we could be using a namespace
-                int colonIndex;
-                if ((colonIndex = command.indexOf(':')) != -1) {
-                    String pluginName = command.substring(0, colonIndex);
-                    command = command.substring(colonIndex + 1);
-                    plugin = loaderPlugin.getPluginList().get(command);
-                    if (plugin == null) {
-                        // restricted?
-                        plugin = loaderPlugin.getRestrictedPluginList().get(command);
-                        if (plugin != null) {
-                            restricted = true;
-                        } else {
-                            return; // no handler
-                        }
-                    }
-                    String adjustedClassName = pluginName + "plugin";
-                    String actualClassName = plugin.getClass().getSimpleName().toLowerCase();
-                    if (!adjustedClassName.equals(actualClassName)) {
-                        return; // incorrect namespace
-                    }
-                } else {
-                    return; // or maybe there is just no handler
-                }
-            }
+        int commandEnd = commandStart;
+        while (commandEnd < text.length() && !Character.isWhitespace(text.charAt(commandEnd))) {
+            commandEnd++;
         }
 
-        // command could be still using namespace (case of duplicates)
-        int colonIndex;
-        if ((colonIndex = command.indexOf(':')) != -1) {
-            command = command.substring(colonIndex + 1);
+        CommandTable.Entry entry = loaderPlugin.getCommandTable().find(text, commandStart, commandEnd);
+        if (entry == null) {
+            return; // no handler or ambiguous
         }
+        String command = entry.getCommand();
+        String message = text.substring(commandEnd).trim();
 
-        if (restricted) {
-            if (admins.contains(target.getUser())) {
+        if (entry.isRestricted()) {
+            if (isAdmin(target.getUser())) {
             } else {
                 sendMessageTo(target.getUser(), MessageTypes.PRIVMSG, "Sorry, you do not have access to this command.");
                 return;
             }
         }
 
-        IrcCommandEvent ircCmdEvent = new IrcCommandEvent(this, target, commandModifier, command, message);
+        //admins are trusted, everybody else only gets what the limits allow
+        if (!isAdmin(target.getUser())) {
+            String prefix = ircMessage.getPrefix();
+            String hostmask = prefix.substring(prefix.indexOf('!') + 1);
+            String channel = target.isPrivate() ? null : channelModel.fold(target.getChannel());
+            CommandLimiter.Decision decision = commandLimiter.admit(hostmask, channel, command,
+                    System.currentTimeMillis());
+            if (decision != CommandLimiter.Decision.ADMIT) {
+                log.debug("Dropped " + command + " from " + prefix);
+                if (decision == CommandLimiter.Decision.WARN && limitReply.length() != 0) {
+                    sendMessageTo(target.getUser(), MessageTypes.NOTICE, limitReply);
+                }
+                return;
+            }
+        }
 
-        try {
-            plugin.handleEvent(ircCmdEvent);
-        } catch (Throwable t) {
-            sendMessageTo(ircCmdEvent.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Execution failed: "
-                    + t.getClass().getName() + ": " + t.getMessage());
-            t.printStackTrace();
+        final IrcCommandEvent ircCmdEvent = new IrcCommandEvent(this, target, commandModifier, command, message);
+        final Plugin handler = entry.getPlugin();
+        CommandTrace trace = null;
+        if (slowCommands.isEnabled()) {
+            trace = new CommandTrace(slowCommands, target.getUser(), target.isPrivate() ? null : target.getChannel(),
+                    message.length() == 0 ? command : command + " " + message, ircMessage.getReceived());
+        }
+        if (!entry.isCacheable()) {
+            execute(ircCmdEvent, handler, null, null, entry.isInvalidating(), trace);
+            return;
         }
 
+        String cacheKey = ReplyCache.key(handler, commandModifier, command, message);
+        ReplyCache.Reply reply = ReplyCache.get(cacheKey, System.currentTimeMillis());
+        if (reply != null) {
+            if (trace != null) {
+                trace.dispatched();
+                trace.started();
+                CommandTrace.setCurrent(trace);
+            }
+            try {
+                reply.send(this, target);
+            } finally {
+                if (trace != null) {
+                    CommandTrace.setCurrent(null);
+                    trace.finished();
+                }
+            }
+            return;
+        }
+        //the same command may be running already, its reply is sent here too
+        ReplyCache.Flight flight = ReplyCache.takeOff(cacheKey, this, target, new Runnable() {
+            public void run() {
+                execute(ircCmdEvent, handler, null, null, false, null);
+            }
+        });
+        if (flight != null) {
+            execute(ircCmdEvent, handler, cacheKey, flight, entry.isInvalidating(), trace);
+        }
+    }
+
+    /*
+     * runs a command on the command threads. If a cache key is given, the reply is recorded
+     * for the cache and the requests waiting on the flight. If a trace is given, the lines
+     * sent while the plugin runs are added to it.
+     */
+    private void execute(final IrcCommandEvent ircCmdEvent, final Plugin handler, final String cacheKey,
+            final ReplyCache.Flight flight, final boolean invalidating, final CommandTrace trace) {
+        Runnable task = new Runnable() {
+            public void run() {
+                if (trace != null) {
+                    trace.started();
+                    CommandTrace.setCurrent(trace);
+                }
+                ReplyCache.Recorder recorder = null;
+                if (cacheKey != null) {
+                    recorder = ReplyCache.record(cacheKey, flight, ircCmdEvent.getTarget().getDefaultTarget(),
+                            ircCmdEvent.getTarget().getUser());
+                }
+                boolean completed = false;
+                try {
+                    handler.handleEvent(ircCmdEvent);
+                    completed = true;
+                } catch (Throwable t) {
+                    sendMessageTo(ircCmdEvent.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Execution failed: "
+                            + t.getClass().getName() + ": " + t.getMessage());
+                    log.warn("Plugin failed: " + ircCmdEvent.getCommand(), t);
+                    Metrics.counter(network, "commands." + handler.getClass().getSimpleName() + ".errors").increment();
+                } finally {
+                    if (trace != null) {
+                        //replies to the requests waiting on the flight are not part of it
+                        CommandTrace.setCurrent(null);
+                        trace.finished();
+                    }
+                    if (recorder != null) {
+                        //an interrupted command may have replied only partly
+                        recorder.finish(completed, Thread.currentThread().isInterrupted());
+                    }
+                    if (invalidating) {
+                        ReplyCache.invalidate(handler.getClass().getName());
+                    }
+                }
+            }
+        };
+        Runnable timedOut = new Runnable() {
+            public void run() {
+                sendMessageTo(ircCmdEvent.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG,
+                        commandModifier + ircCmdEvent.getCommand() + " timed out.");
+                if (flight != null) {
+                    flight.land(null);
+                }
+            }
+        };
+        if (trace != null) {
+            trace.dispatched();
+        }
+        boolean accepted = commandExecutor.execute(handler, handler.getClass().getSimpleName(),
+                ircCmdEvent.getCommand(), task, timedOut);
+        if (!accepted) {
+            if (busyReply.length() != 0) {
+                sendMessageTo(ircCmdEvent.getTarget().getUser(), MessageTypes.PRIVMSG, busyReply);
+            }
+            if (flight != null) {
+                flight.land(null);
+            }
+        }
     }
 
 
-    private IrcTarget getTarget(String[] cmd) {
-        if (cmd[2].equals(nickName) || cmd[2].equals(desiredNickName)) {
-            return new IrcTarget(parseHostToNick(cmd[0]), null, true);
+    private IrcTarget getTarget(String from, String to) {
+        if (to.equals(nickName) || to.equals(desiredNickName)) {
+            return new IrcTarget(from, null, true);
         } else {
-            return new IrcTarget(parseHostToNick(cmd[0]), cmd[2], false);
+            return new IrcTarget(from, to, false);
         }
     }
 
 
-    //:Hapi!~h@p5481B69C.dip0.t-ipconnect.de
-    // -> Hapi
-    private String parseHostToNick(String host) {
-        return host.substring(1, host.indexOf("!"));
-    }
+    /*
+     * hands a message to the plugins that subscribed to its type, on the command threads
+     */
+    private void dispatchEvent(IrcMessage message, EventTable.Subscription[] subscriptions) {
+        String[] params = new String[message.getParamCount()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = message.getParam(i);
+        }
+        //the channel is the first parameter naming one, the text of a message is not looked at
+        String channels = null;
+        int last = params.length == 1 ? 1 : params.length - 1;
+        for (int i = 0; i < last && channels == null; i++) {
+            if (params[i].length() > 0 && CHANNEL_PREFIXES.indexOf(params[i].charAt(0)) != -1) {
+                channels = params[i];
+            }
+        }
 
-    private void disconnect() {
-        if (pw != null) { //bypass spam protection, we're quitting anyway
-            pw.write("QUIT\n");
-            pw.flush();
+        String type = message.getCommand();
+        String prefix = message.getPrefix();
+        long now = System.currentTimeMillis();
+        if (channels == null) {
+            dispatchEvent(new IrcEvent(this, type, prefix, null, params, now), subscriptions);
+        } else {
+            for (String channel : channels.split(",")) {
+                dispatchEvent(new IrcEvent(this, type, prefix, channel, params, now), subscriptions);
+            }
         }
+    }
 
-        try {
-            sock.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void dispatchEvent(final IrcEvent event, EventTable.Subscription[] subscriptions) {
+        for (EventTable.Subscription subscription : subscriptions) {
+            if (!subscription.wants(event.getChannel())) {
+                continue;
+            }
+            final EventListenerPlugin listener = subscription.getPlugin();
+            Runnable task = new Runnable() {
+                public void run() {
+                    listener.handleIrcEvent(event);
+                }
+            };
+            commandExecutor.deliver(listener, listener.getClass().getSimpleName(), task);
         }
     }
 
+    private static ByteBuffer encode(String text) {
+        return IrcConnection.CHARSET.encode(text);
+    }
+
     private interface IrcAction {
-        public void run(String[] cmd);
+        public void run(IrcMessage message);
     }
 
     private void handleConnected() {
-        for (PerformOnConnectPlugin p : loaderPlugin.getPerformOnConnectList()) {
-            p.perform(this);
-        }
+        reconnector.registered();
 
-        send("JOIN " + adminChannel + " " + adminChannelPassword);
-        connectThread.connectSucceeded();
+        //plugins are called from the command threads only
+        commandExecutor.executeAlways(connectTasks, "connect", new Runnable() {
+            public void run() {
+                for (PerformOnConnectPlugin p : loaderPlugin.getPerformOnConnectList()) {
+                    try {
+                        p.perform(IrcClient.this);
+                    } catch (Throwable t) {
+                        log.warn("Perform on connect failed: " + p.getClass().getName(), t);
+                    }
+                }
+
+                send("JOIN " + adminChannel + " " + adminChannelPassword);
+            }
+        });
     }
 
-    private class IrcHandler extends Thread {
+    /*
+     * receives everything that happens on one connection, events of
+     * connections that have been replaced are ignored
+     */
+    private class IrcHandler implements IrcConnection.Listener {
 
-        private Map<String, IrcAction> actionMap = new HashMap<String, IrcAction>();
+        private IrcAction[] numericActions = new IrcAction[1000];
+        private List<String> commands = new ArrayList<String>();
+        private List<IrcAction> commandActions = new ArrayList<IrcAction>();
+        private IrcConnection connection = new IrcConnection(loop, this);
 
         public IrcHandler() {
-            actionMap.put("PING", new IrcAction() {
-                public void run(String[] cmd) {
-                    send("PONG " + cmd[1]);
+            on("PING", new IrcAction() {
+                public void run(IrcMessage message) {
+                    sender.pong(message);
                 }
             });
-            actionMap.put("PONG", new IrcAction() {
-                public void run(String[] cmd) {
-                    connectThread.pongReceived();
-                    if (cmd[3].trim().equals(":floodcheck")) {
-                        sendThread.pongReceived();
+            on("PONG", new IrcAction() {
+                public void run(IrcMessage message) {
+                    sender.pongReceived(message);
+                }
+            });
+            on("ERROR", new IrcAction() {
+                public void run(IrcMessage message) {
+                    if (message.paramContains(message.getParamCount() - 1, "Excess Flood")) {
+                        sender.excessFlood();
                     }
                 }
             });
-            actionMap.put("376", new IrcAction() {
-                public void run(String[] cmd) {
+            on("376", new IrcAction() {
+                public void run(IrcMessage message) {
                     handleConnected();
                 }
             });
-            actionMap.put("433", new IrcAction() {
-                public void run(String[] cmd) {
-                    handleNickInUse(cmd);
+            on("422", new IrcAction() { //no motd
+                public void run(IrcMessage message) {
+                    handleConnected();
                 }
             });
-            actionMap.put("353", new IrcAction() {
-                public void run(String[] cmd) {
-                    handleJoinedChanel(cmd);
+            on("433", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleNickInUse(message);
                 }
             });
-            actionMap.put("JOIN", new IrcAction() {
-                public void run(String[] cmd) {
-                    handleJoin(cmd);
+            on("001", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleWelcome(message);
                 }
             });
-            actionMap.put("QUIT", new IrcAction() {
-                public void run(String[] cmd) {
-                    handleQuit(cmd);
+            on("005", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleISupport(message);
                 }
             });
-            actionMap.put("NICK", new IrcAction() {
-                public void run(String[] cmd) {
-                    handleNick(cmd);
+            on("324", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleChannelModes(message);
                 }
             });
-            actionMap.put("PART", new IrcAction() {
-                public void run(String[] cmd) {
-                    handlePart(cmd);
+            on("353", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleNames(message);
                 }
             });
-            actionMap.put("PRIVMSG", new IrcAction() {
-                public void run(String[] cmd) {
-                    handlePrivmsg(cmd);
+            on("366", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleNamesEnd(message);
+                }
+            });
+            on("JOIN", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleJoin(message);
+                }
+            });
+            on("QUIT", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleQuit(message);
+                }
+            });
+            on("NICK", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleNick(message);
+                }
+            });
+            on("PART", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handlePart(message);
+                }
+            });
+            on("KICK", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleKick(message);
+                }
+            });
+            on("MODE", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handleMode(message);
+                }
+            });
+            on("PRIVMSG", new IrcAction() {
+                public void run(IrcMessage message) {
+                    handlePrivmsg(message);
                 }
             });
         }
 
-        public void run() {
-            String line;
-            try {
-                while (true) {
-                    line = br.readLine();
-                    System.out.println("<-- " + line);
-                    if (line == null) {
-                        break;
-                    }
-                    handle(line);
+        private void on(String command, IrcAction action) {
+            if (Character.isDigit(command.charAt(0))) {
+                numericActions[Integer.parseInt(command)] = action;
+            } else {
+                commands.add(command);
+                commandActions.add(action);
+            }
+        }
+
+        private boolean isCurrent() {
+            return IrcClient.this.connection == connection;
+        }
+
+        public void connected() {
+            if (isCurrent()) {
+                reconnector.socketConnected();
+                register();
+            }
+        }
+
+        public void messageReceived(IrcMessage message) {
+            linesIn.increment();
+            bytesIn.add(message.getEnd() - message.getStart());
+            log(message);
+            if (isCurrent()) {
+                if (capture != null) {
+                    capture.record(message.getData(), message.getStart(), message.getEnd(), message.getReceived());
+                }
+                try {
+                    handle(message);
+                } catch (RuntimeException e) {
+                    log.error("Cannot handle " + message, e);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
-            System.err.println("Connection lost - reconnecting");
-            connectThread.disconnected();
         }
 
-        private void handle(String line) {
-            String[] input = line.split(" ", 4);
+        public void idle() {
+            if (isCurrent()) {
+                send("PING :idle");
+            }
+        }
 
-            IrcAction cmd = actionMap.get(input[0].toUpperCase());
-            if (cmd != null) {
-                cmd.run(input);
+        public void disconnected(Throwable cause) {
+            if (isCurrent()) {
+                log.warn("Connection lost - reconnecting", cause);
+                reconnector.disconnected();
+            }
+        }
+
+        private void handle(IrcMessage message) {
+            IrcAction action = null;
+            int numeric = message.getNumeric();
+            if (numeric != -1) {
+                action = numericActions[numeric];
             } else {
-                cmd = actionMap.get(input[1].toUpperCase());
-                if (cmd != null) {
-                    cmd.run(input);
+                for (int i = 0; i < commands.size(); i++) {
+                    if (message.isCommand(commands.get(i))) {
+                        action = commandActions.get(i);
+                        break;
+                    }
                 }
             }
+            if (action != null) {
+                action.run(message);
+            }
+
+            EventTable.Subscription[] subscriptions = loaderPlugin.getEventTable().find(message);
+            if (subscriptions != null) {
+                dispatchEvent(message, subscriptions);
+            }
+        }
+
+        private void log(IrcMessage message) {
+            //the raw line is decoded by the log writer. Logging copies the line, which keep-alives should not cost
+            Level level = isKeepAlive(message) ? Level.TRACE : Level.DEBUG;
+            traffic.log(level, "<-- ", message.getData(), message.getStart(), message.getEnd() - message.getStart());
+        }
+
+        private boolean isKeepAlive(IrcMessage message) {
+            return message.getNumeric() == -1 && (message.isCommand("PING") || message.isCommand("PONG"));
         }
     }
 
     /**
      * Sends this text to the target (user/channel) specified.
-     * If the text has more than 511 chars, it will be cut off.
+     * If the text has more than 511 bytes, it will be cut off.
      * A linefeed will be added to the end of the String.
      * @param target specifies where the text should be send to
      * @param type type of the message to send (message or notice)
      * @param text text to send
      */
     public void sendMessageTo(String target, MessageTypes type, String text) {
-        send(type.getMessage(target, text));
+        ReplyCache.sent(target, type, text);
+        enqueue(type.getMessage(target, text));
     }
 
 
-    private class ConnectThread implements Runnable {
-        private long lastPingReceived;
-        private boolean connected = false;
+    /*
+     * tries to get the desired nick name back. Runs as a timer on the loop.
+     */
+    private class NickRecovery implements Runnable {
+        public void start() {
+            loop.schedule(this, timeout / 5);
+        }
 
-        public ConnectThread() {
-            restartTimer();
+        public void run() {
+            if (reconnector.isConnected() && !desiredNickName.equals(nickName)) {
+                send("NICK :" + desiredNickName);
+            }
+            loop.schedule(this, timeout / 5);
         }
+    }
+
+    private enum ReconnectState {
+        WAITING, CONNECTING, REGISTERING, CONNECTED
+    }
 
-        private void restartTimer() {
-            lastPingReceived = System.currentTimeMillis();
+    /*
+     * connects and reconnects, runs on the loop:
+     * WAITING -> CONNECTING (socket) -> REGISTERING (USER/NICK) -> CONNECTED (end of motd).
+     * Losing the connection or not getting through within connectTimeout goes
+     * back to WAITING, which connects at once if the ServerList has a server that
+     * may be tried now or sets a timer for when the backoff of the first one is over.
+     */
+    private class Reconnector implements Runnable {
+        //read by the management bean
+        private volatile ReconnectState state = ReconnectState.WAITING;
+        private volatile ServerList.Server current;
+        private IrcEventLoop.Timer timer;
+
+        public boolean isConnected() {
+            return state == ReconnectState.CONNECTED;
+        }
+
+        public void connectNext() {
+            cancelTimer();
+            long now = System.currentTimeMillis();
+            ServerList.Server server = servers.next(now);
+            if (server.getRetryAt() > now) {
+                state = ReconnectState.WAITING;
+                log.info("waiting " + (server.getRetryAt() - now) + " ms before connecting to " + server);
+                timer = loop.schedule(this, server.getRetryAt() - now);
+                return;
+            }
+
+            log.info("connecting to " + server);
+            current = server;
+            server.attempt(now);
+            state = ReconnectState.CONNECTING;
+            timer = loop.schedule(this, connectTimeout);
+            connect(server);
+        }
+
+        public void socketConnected() {
+            state = ReconnectState.REGISTERING;
+        }
+
+        public void registered() {
+            if (state == ReconnectState.CONNECTED) {
+                return;
+            }
+            cancelTimer();
+            state = ReconnectState.CONNECTED;
+            current.connected(System.currentTimeMillis());
+            log.info("connected to " + current);
         }
 
         public void disconnected() {
-            connected = false;
+            reconnects.increment();
+            if (current != null) {
+                current.failed(System.currentTimeMillis());
+            }
+            state = ReconnectState.WAITING;
+            connectNext();
         }
 
-        public void connectSucceeded() {
-            connected = true;
+        public void run() {
+            timer = null;
+            if (state == ReconnectState.WAITING) {
+                connectNext();
+            } else if (state != ReconnectState.CONNECTED) {
+                log.warn("Connecting to " + current + " timed out");
+                connection.close(null); //causes disconnected()
+            }
         }
 
-        public void pongReceived() {
-            restartTimer();
+        private void cancelTimer() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+
+    private FloodController createFloodController(Properties options) {
+        String className = options.getProperty("flood", TokenBucketFloodController.class.getName());
+        try {
+            Class<?> c = Class.forName(className);
+            try {
+                Constructor<?> constructor = c.getConstructor(Properties.class);
+                return (FloodController) constructor.newInstance(new Object[] {options});
+            } catch (NoSuchMethodException nme) {
+                return (FloodController) c.getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception e) {
+            log.error("Cannot create flood controller " + className + " - using default", e);
+            return new TokenBucketFloodController(options);
+        }
+    }
+
+    /*
+     * writes the queued lines to the connection. Enqueuing a line wakes the
+     * sender on the loop, which writes as much as the flood controller allows
+     * and sets a timer for the rest.
+     */
+    private class Sender implements Runnable {
+        private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+        private final LinkedList<Probe> probes = new LinkedList<Probe>();
+        private final byte[] pong = new byte[512];
+        private final ByteBuffer pongBuffer = ByteBuffer.wrap(pong);
+        private int probeCount = 0;
+        private IrcEventLoop.Timer timer;
+        //written on the loop only, read by the management bean
+        private volatile long sentBytes;
+        private volatile long checkedBytes;
+        private volatile long lag;
+
+        /**
+         * Causes the queue to be flushed on the loop. May be called from any thread.
+         */
+        public void wakeUp() {
+            if (wakeUpPending.compareAndSet(false, true)) {
+                loop.execute(this);
+            }
         }
 
         public void run() {
-            while (true) {
-                if (connected) {
-                    if (System.currentTimeMillis() - lastPingReceived > timeout) {
-                        System.err.println("Timeout - forcing reconnect");
-                        disconnect();
-                        connected = false;
-                        continue;
-                    }
+            wakeUpPending.set(false);
+            flush();
+        }
 
-                    send("PING :livecheck");
+        private void flush() {
+            if (connection == null || !connection.isConnected()) {
+                return;
+            }
 
-                    if (!IrcClient.this.desiredNickName.equals(IrcClient.this.nickName)) {
-                        send("NICK :" + desiredNickName);
-                    }
+            long now = System.currentTimeMillis();
+            SendQueue.Entry out;
+            while ((out = sendQueue.peek(now)) != null) {
+                if (floodController.wantsProbe(now)) {
+                    sendProbe(now);
+                }
 
-                    try {
-                        Thread.sleep(timeout / 5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                ByteBuffer data = encode(out.getText());
+                long delay = floodController.delay(data.remaining(), now);
+                if (delay > 0) {
+                    floodStalls.increment();
+                    if (delay != Long.MAX_VALUE) {
+                        flushLater(delay);
                     }
-                } else {
-                    throttleReconnect();
-                    if (!connected) {
-                        disconnect();
-                        connect();
-                    }
-                    restartTimer();
+                    break;
                 }
+
+                sendQueue.remove(out);
+                floodController.sent(data.remaining(), now);
+                this.send(out.getText(), data);
+                out.sent();
+            }
+
+            if (floodController.wantsProbe(now)) {
+                sendProbe(now);
             }
         }
 
-    }
+        private void flushLater(long delay) {
+            if (timer != null) {
+                timer.cancel();
+            }
+            timer = loop.schedule(new Runnable() {
+                public void run() {
+                    timer = null;
+                    flush();
+                }
+            }, delay);
+        }
 
-    private class SendThread implements Runnable {
-        private int bytesSent;
-        private final String testCommand = "PING :floodcheck\n";
-        private boolean waitForTestCommand = false;
+        private void sendProbe(long now) {
+            String probe = "PING :flood" + (probeCount++) + "\n";
+            ByteBuffer data = encode(probe);
+            probes.add(new Probe(probe.substring(6, probe.length() - 1), now, floodController.probeSent(now),
+                    sentBytes + data.remaining()));
+            this.send(probe, data);
+        }
 
-        public void run() {
-            while (true) {
-                if (pw == null) {
-                    System.err.println("Trying to send without being connected.");
-                } else if (!waitForTestCommand) { //skip if waiting for permission to send more
-                    Iterator<String> it = sendQueue.iterator();
-
-                    if (it.hasNext()) {
-                        String out = it.next();
-                        if (out.length() + bytesSent + testCommand.length() < SEND_BUFFER) {
-                            this.send(out);
-                            sendQueue.remove(out);
-                        } else {
-                            waitForTestCommand = true;
-                            this.send(testCommand);
-                        }
-                    }
+        /**
+         * Answers a PING of the server at once, ahead of the send queue and without
+         * waiting for the flood control, which is still charged for it. The answer is
+         * built from the raw token, in a buffer that is reused.
+         */
+        public void pong(IrcMessage ping) {
+            if (connection == null || !connection.isConnected()) {
+                return;
+            }
+            System.arraycopy(PONG, 0, pong, 0, PONG.length);
+            int length = PONG.length;
+            if (ping.getParamCount() > 0) {
+                length = ping.copyParam(ping.getParamCount() - 1, pong, length);
+            }
+            if (length == pong.length) {
+                length--; //cut off like other lines, the line feed has to fit
+            }
+            pong[length++] = '\n';
 
-                }
+            floodController.sent(length, System.currentTimeMillis());
+            if (traffic.isEnabled(Level.TRACE)) {
+                traffic.log(Level.TRACE, "--> ", pong, 0, length - 1);
+            }
+            linesOut.increment();
+            bytesOut.add(length);
+            sentBytes += length;
+            pongBuffer.clear();
+            pongBuffer.limit(length);
+            connection.writeNow(pongBuffer);
+        }
 
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        /**
+         * Handles a PONG of the server. Only answers to our probes matter, the
+         * others are dropped without decoding the token.
+         */
+        public void pongReceived(IrcMessage pong) {
+            //:server PONG server :token
+            if (!pong.paramStartsWith(1, "flood")) {
+                return;
+            }
+            boolean known = false;
+            for (Probe probe : probes) {
+                known |= pong.paramEquals(1, probe.token);
+            }
+            if (!known) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            while (!probes.isEmpty()) {
+                //answers come in order, earlier probes are acknowledged as well
+                Probe probe = probes.removeFirst();
+                floodController.acknowledged(probe.mark, now - probe.time, now);
+                checkedBytes = probe.bytes;
+                if (pong.paramEquals(1, probe.token)) {
+                    lag = now - probe.time;
+                    break;
                 }
             }
+            flush();
         }
 
-        public void pongReceived() {
-            System.out.println("--- Pong received - starting to spam some more");
-            bytesSent = 0;
-            waitForTestCommand = false;
+        public void excessFlood() {
+            log.warn("Killed for excess flood - slowing down");
+            floodController.excessFlood(System.currentTimeMillis());
         }
 
         public void clear() {
-            bytesSent = 0;
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            probes.clear();
+            sentBytes = 0;
+            checkedBytes = 0;
+            floodController.reset(System.currentTimeMillis());
             sendQueue.clear();
         }
 
-        private void send(String text) {
-            bytesSent += text.length();
-            System.out.print("--> " + text);
-            pw.write(text);
-            pw.flush();
+        public long getUnchecked() {
+            return sentBytes - checkedBytes;
+        }
+
+        public long getLag() {
+            return lag;
+        }
+
+        private void send(String text, ByteBuffer data) {
+            if (traffic.isEnabled(Level.DEBUG)) {
+                traffic.debug("--> " + text.substring(0, text.length() - 1));
+            }
+            linesOut.increment();
+            bytesOut.add(data.remaining());
+            sentBytes += data.remaining();
+            connection.write(data);
         }
     }
 
-    private void throttleReconnect() {
-        int timeSinceLastTry = (int) ((System.currentTimeMillis() - lastConnectTry) / 1000);
-        if (timeSinceLastTry < maxWait) {
-            badTries++;
-        } else {
-            badTries = 0;
+    private static class Probe {
+        private final String token;
+        private final long time;
+        private final long mark;
+        private final long bytes;
+
+        public Probe(String token, long time, long mark, long bytes) {
+            this.token = token;
+            this.time = time;
+            this.mark = mark;
+            this.bytes = bytes;
         }
+    }
 
+    /*
+     * the management interface, called from JMX threads. Reads only, or hands the work to the loop.
+     */
+    private class Bean implements IrcClientMBean {
+        public String getNetwork() {
+            return network;
+        }
 
-        try {
-            int sleepModifier = badTries * maxWait / steps + minWait;
-            sleepModifier = Math.min(sleepModifier, maxWait);
-            System.out.println("--- throttling for " + sleepModifier + "s");
-            Thread.sleep(sleepModifier * 1000);
-            System.out.println("--- done throttling");
-        } catch (InterruptedException e1) {
-            e1.printStackTrace();
-        }
-        lastConnectTry = System.currentTimeMillis();
+        public String getNick() {
+            return nickName;
+        }
+
+        public String getConnectionState() {
+            return reconnector.state.name();
+        }
+
+        public String getServer() {
+            ServerList.Server server = reconnector.current;
+            return server == null ? null : server.toString();
+        }
+
+        public long getLag() {
+            return sender.getLag();
+        }
+
+        public int getSendQueueSize() {
+            return sendQueue.size();
+        }
+
+        public long getBytesSinceFloodCheck() {
+            return sender.getUnchecked();
+        }
+
+        public long getReconnects() {
+            return reconnects.get();
+        }
+
+        public long getLinesIn() {
+            return linesIn.get();
+        }
+
+        public long getLinesOut() {
+            return linesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getCommandsCompleted() {
+            return commandExecutor.getCompleted();
+        }
+
+        public long getCommandsRejected() {
+            return commandExecutor.getRejected();
+        }
+
+        public long getCommandsTimedOut() {
+            return commandExecutor.getTimedOut();
+        }
+
+        public int flushSendQueue() {
+            int dropped = sendQueue.size();
+            sendQueue.clear();
+            log.info("Send queue flushed by JMX, " + dropped + " lines dropped");
+            return dropped;
+        }
+
+        public void startCapture(final String file) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    IrcClient.this.startCapture(file);
+                }
+            });
+        }
+
+        public void stopCapture() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    IrcClient.this.stopCapture();
+                }
+            });
+        }
+
+        public void reconnect() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    log.info("Reconnect requested by JMX");
+                    if (reconnector.state == ReconnectState.WAITING) {
+                        reconnector.connectNext();
+                    } else {
+                        connection.close(null); //causes disconnected()
+                    }
+                }
+            });
+        }
     }
 
     /**
@@ -0,0 +1,120 @@
+package de.berlios.suzy.irc;
+
+/**
+ * The management interface of an {@link IrcClient}, registered as
+ * <code>de.berlios.suzy:type=IrcClient,network=&lt;network&gt;</code>.
+ */
+public interface IrcClientMBean {
+    /**
+     * Returns the name of the network.
+     * @return name of the network
+     */
+    public String getNetwork();
+
+    /**
+     * Returns the nick the bot has on irc.
+     * @return the current nick
+     */
+    public String getNick();
+
+    /**
+     * Returns the state of the connection.
+     * @return WAITING, CONNECTING, REGISTERING or CONNECTED
+     */
+    public String getConnectionState();
+
+    /**
+     * Returns the server connected to or being connected to.
+     * @return host:port of the server, null before the first attempt
+     */
+    public String getServer();
+
+    /**
+     * Returns the round trip time of the last flood probe.
+     * @return the lag in ms
+     */
+    public long getLag();
+
+    /**
+     * Returns the number of lines waiting to be sent.
+     * @return length of the send queue
+     */
+    public int getSendQueueSize();
+
+    /**
+     * Returns the number of bytes sent that the server has not acknowledged yet.
+     * @return bytes sent since the last answered flood probe
+     */
+    public long getBytesSinceFloodCheck();
+
+    /**
+     * Returns the number of times the connection was lost.
+     * @return the number of reconnects
+     */
+    public long getReconnects();
+
+    /**
+     * Returns the number of lines received.
+     * @return lines received
+     */
+    public long getLinesIn();
+
+    /**
+     * Returns the number of lines sent.
+     * @return lines sent
+     */
+    public long getLinesOut();
+
+    /**
+     * Returns the number of bytes received.
+     * @return bytes received
+     */
+    public long getBytesIn();
+
+    /**
+     * Returns the number of bytes sent.
+     * @return bytes sent
+     */
+    public long getBytesOut();
+
+    /**
+     * Returns the number of commands that have been run to the end.
+     * @return the number of completed commands
+     */
+    public long getCommandsCompleted();
+
+    /**
+     * Returns the number of commands rejected because too many were waiting.
+     * @return the number of rejected commands
+     */
+    public long getCommandsRejected();
+
+    /**
+     * Returns the number of commands that were not done in time.
+     * @return the number of timeouts
+     */
+    public long getCommandsTimedOut();
+
+    /**
+     * Drops all lines waiting to be sent.
+     * @return the number of lines dropped
+     */
+    public int flushSendQueue();
+
+    /**
+     * Starts recording every line received, see {@link TrafficCapture}.
+     * A running capture is stopped first.
+     * @param file file to write to, replaced if it exists
+     */
+    public void startCapture(String file);
+
+    /**
+     * Stops recording the lines received and completes the file.
+     */
+    public void stopCapture();
+
+    /**
+     * Closes the connection and connects to the next server.
+     */
+    public void reconnect();
+}
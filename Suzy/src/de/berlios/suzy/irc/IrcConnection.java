@@ -0,0 +1,399 @@
+package de.berlios.suzy.irc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+import de.berlios.suzy.log.Logger;
+
+/**
+ * A non-blocking connection to an irc server. Reading, writing and
+ * connecting is done by the {@link IrcEventLoop} the connection belongs to,
+ * all callbacks to the {@link Listener} will happen on that loop.
+ * <br>
+ * Incoming data is split into lines which are parsed in place into an
+ * {@link IrcMessage}, outgoing data is buffered until the socket accepts it.
+ * <br>
+ * The connection watches itself: if nothing has been received for a while, the
+ * listener is asked to send a probe ({@link Listener#idle()}), if still nothing
+ * arrives the connection is closed. Busy connections cause no extra traffic.
+ */
+class IrcConnection implements IrcEventLoop.Handler {
+    /**
+     * Charset used on the wire.
+     */
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int READ_BUFFER = 16384;
+    private static final Logger log = Logger.getLogger("connection");
+
+    private final IrcEventLoop loop;
+    private final Listener listener;
+    private final IrcMessage message = new IrcMessage();
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+    private LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private boolean closeAfterWrite = false;
+    private boolean closed = false;
+
+    private long probeAfter = Long.MAX_VALUE;
+    private long closeAfter = Long.MAX_VALUE;
+    private long lastReceived;
+    private long readTime;
+    private boolean probed = false;
+    private IrcEventLoop.Timer watchdog;
+
+    /**
+     * Returns the number of bytes the text takes on the wire.
+     * @param text text to measure
+     * @return length of the text in UTF-8
+     */
+    static int byteLength(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Cuts the text so it takes at most maxBytes bytes on the wire.
+     * Characters are never split.
+     * @param text text to cut
+     * @param maxBytes maximum length in UTF-8
+     * @return the text or the longest prefix of it that fits
+     */
+    static String truncate(String text, int maxBytes) {
+        if (text.length() * 3 <= maxBytes) {
+            return text;
+        }
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int length = 1;
+            if (c >= 0x80) {
+                length = c < 0x800 ? 2 : 3;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length = 4;
+            }
+            if (bytes + length > maxBytes) {
+                return text.substring(0, i);
+            }
+            bytes += length;
+            if (length == 4) {
+                i++;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Creates a new unconnected connection.
+     * @param loop loop that will handle all i/o for this connection
+     * @param listener receives lines and state changes
+     */
+    IrcConnection(IrcEventLoop loop, Listener listener) {
+        this.loop = loop;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the idle timeouts. Must be called before {@link #connect(InetSocketAddress)}.
+     * @param probeAfter ms without receiving anything after which {@link Listener#idle()} is called
+     * @param closeAfter ms without receiving anything after which the connection is closed
+     */
+    void setIdleTimeouts(long probeAfter, long closeAfter) {
+        this.probeAfter = probeAfter;
+        this.closeAfter = closeAfter;
+    }
+
+    /**
+     * Starts connecting to the given address. Must be called from the loop.
+     * {@link Listener#connected()} will be called once the connection is established.
+     * @param address address to connect to
+     * @throws IOException if the connect cannot be started
+     */
+    void connect(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setKeepAlive(true);
+        channel.socket().setTcpNoDelay(true);
+        if (channel.connect(address)) {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            established();
+        } else {
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * Queues the data for writing. Must be called from the loop.
+     * @param data data to write
+     */
+    void write(ByteBuffer data) {
+        if (closed || closeAfterWrite) {
+            return;
+        }
+        writeQueue.add(data);
+        if (key != null && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the data at once if nothing else is waiting to be written. Unlike
+     * {@link #write(ByteBuffer)} no reference to the data is kept, so the caller may
+     * reuse the buffer; it is only copied if the socket does not take all of it.
+     * Must be called from the loop.
+     * @param data data to write
+     */
+    void writeNow(ByteBuffer data) {
+        if (closed || closeAfterWrite) {
+            return;
+        }
+        if (writeQueue.isEmpty() && key != null && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+            try {
+                channel.write(data);
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
+            if (!data.hasRemaining()) {
+                return;
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data);
+        copy.flip();
+        write(copy);
+    }
+
+    /**
+     * Whether or not all queued data has been handed to the socket.
+     * @return true if nothing is waiting to be written
+     */
+    boolean isWriteQueueEmpty() {
+        return writeQueue.isEmpty();
+    }
+
+    /**
+     * Whether or not the connection is established and open.
+     * @return true if connected
+     */
+    boolean isConnected() {
+        return !closed && channel != null && channel.isConnected();
+    }
+
+    /**
+     * Closes the connection once all queued data has been written.
+     * Must be called from the loop.
+     */
+    void closeAfterWrite() {
+        closeAfterWrite = true;
+        if (writeQueue.isEmpty()) {
+            close(null);
+        }
+    }
+
+    /**
+     * Closes the connection at once. The listener will be notified if the connection
+     * was open. Must be called from the loop.
+     * @param cause cause of the close or null if the close was requested
+     */
+    void close(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (watchdog != null) {
+            watchdog.cancel();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Cannot close connection", e);
+        }
+        listener.disconnected(cause);
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.IrcEventLoop.Handler#ready(java.nio.channels.SelectionKey)
+     */
+    public void ready(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            established();
+            flush();
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.IrcEventLoop.Handler#failed(java.lang.Throwable)
+     */
+    public void failed(Throwable t) {
+        close(t);
+    }
+
+    private void established() {
+        lastReceived = System.currentTimeMillis();
+        if (closeAfter != Long.MAX_VALUE) {
+            watchdog = loop.schedule(new Watchdog(), Math.min(probeAfter, closeAfter));
+        }
+        listener.connected();
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close(null);
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+        readTime = System.nanoTime();
+        probed = false;
+
+        readBuffer.flip();
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                dispatchLine(lineStart, i);
+                lineStart = i + 1;
+                if (closed) {
+                    return;
+                }
+            }
+        }
+
+        if (lineStart == readBuffer.position() && readBuffer.limit() == readBuffer.capacity()) {
+            //line too long, handle what we have
+            dispatchLine(lineStart, readBuffer.limit());
+            lineStart = readBuffer.limit();
+        }
+        readBuffer.position(lineStart);
+        readBuffer.compact();
+    }
+
+    private void dispatchLine(int start, int end) {
+        if (end > start && readBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (message.parse(readBuffer.array(), start, end)) {
+            message.setReceived(readTime);
+            listener.messageReceived(message);
+        }
+    }
+
+    private void flush() {
+        try {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buffer = writeQueue.getFirst();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                writeQueue.removeFirst();
+            }
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+
+        if (writeQueue.isEmpty()) {
+            if (closeAfterWrite) {
+                close(null);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /*
+     * runs when the connection may have become idle. Reads only record the time,
+     * so the timer is moved to the next deadline here instead of on every read.
+     */
+    private class Watchdog implements Runnable {
+        public void run() {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long idle = now - lastReceived;
+            if (idle >= closeAfter) {
+                close(new IOException("Nothing received for " + idle + " ms"));
+                return;
+            }
+            if (idle >= probeAfter && !probed) {
+                probed = true;
+                listener.idle();
+            }
+            long next = probed || idle >= probeAfter ? closeAfter : Math.min(probeAfter, closeAfter);
+            watchdog = loop.schedule(this, lastReceived + next - now);
+        }
+    }
+
+    /**
+     * Receives the lines and state changes of a connection. All methods are called on
+     * the loop thread.
+     */
+    interface Listener {
+        /**
+         * The connection has been established.
+         */
+        public void connected();
+
+        /**
+         * A line has been read and parsed. Empty lines are skipped.
+         * @param message the line, only valid during this call
+         */
+        public void messageReceived(IrcMessage message);
+
+        /**
+         * Nothing has been received for a while. The listener should send
+         * something the server will answer.
+         */
+        public void idle();
+
+        /**
+         * The connection was closed (by us or the other side).
+         * @param cause the exception that caused the close, null if closed normally
+         */
+        public void disconnected(Throwable cause);
+    }
+}
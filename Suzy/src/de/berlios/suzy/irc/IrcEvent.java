@@ -0,0 +1,147 @@
+package de.berlios.suzy.irc;
+
+/**
+ * A message received from the irc server, as passed to {@link EventListenerPlugin}s.
+ * Everything is parsed already, events are immutable and may be kept.
+ * <br>
+ * A JOIN or PART of several channels at once is split into one event per channel.
+ */
+public final class IrcEvent {
+    private final IrcClient source;
+    private final String type;
+    private final String nick;
+    private final String user;
+    private final String host;
+    private final String channel;
+    private final String[] params;
+    private final long time;
+
+    /**
+     * Creates a new event.
+     * @param source the client that received the message
+     * @param type the irc command or numeric
+     * @param prefix the prefix of the message (nick!user@host or a server), may be null
+     * @param channel the channel the message belongs to, may be null
+     * @param params the parameters of the message
+     * @param time time the message was received in ms
+     */
+    public IrcEvent(IrcClient source, String type, String prefix, String channel, String[] params, long time) {
+        this.source = source;
+        this.type = type;
+        this.channel = channel;
+        this.params = params;
+        this.time = time;
+
+        String nick = prefix;
+        String user = null;
+        String host = null;
+        if (prefix != null) {
+            int bang = prefix.indexOf('!');
+            int at = prefix.indexOf('@');
+            if (bang != -1 && at > bang) {
+                nick = prefix.substring(0, bang);
+                user = prefix.substring(bang + 1, at);
+                host = prefix.substring(at + 1);
+            } else if (at != -1) {
+                nick = prefix.substring(0, at);
+                host = prefix.substring(at + 1);
+            }
+        }
+        this.nick = nick;
+        this.user = user;
+        this.host = host;
+    }
+
+    /**
+     * returns the client that received the message, e.g. to answer it
+     * @return the source of this event
+     */
+    public IrcClient getSource() {
+        return source;
+    }
+
+    /**
+     * returns the type of the message
+     * @return the irc command (e.g. JOIN) or the three digit numeric (e.g. 366)
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * returns the nick of the sender
+     * @return the nick, or the name of the server if the message came from a server; null if unknown
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * returns the user name (ident) of the sender
+     * @return the user name, null if unknown
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * returns the host of the sender
+     * @return the host, null if unknown
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * returns the channel the message belongs to
+     * @return the channel, null if the message does not belong to a channel
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * returns the number of parameters
+     * @return the number of parameters, including the trailing one
+     */
+    public int getParamCount() {
+        return params.length;
+    }
+
+    /**
+     * returns a parameter
+     * @param index index of the parameter, starting at 0
+     * @return the parameter, null if there is no such parameter
+     */
+    public String getParam(int index) {
+        return index < params.length ? params[index] : null;
+    }
+
+    /**
+     * returns the last parameter, e.g. the text of a PRIVMSG or the reason of a QUIT
+     * @return the last parameter, null if there are no parameters
+     */
+    public String getText() {
+        return params.length == 0 ? null : params[params.length - 1];
+    }
+
+    /**
+     * returns the time the message was received
+     * @return the time in ms
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(" from ").append(nick);
+        if (channel != null) {
+            sb.append(" in ").append(channel);
+        }
+        return sb.toString();
+    }
+}
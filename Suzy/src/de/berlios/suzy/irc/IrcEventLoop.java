@@ -0,0 +1,284 @@
+package de.berlios.suzy.irc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.berlios.suzy.log.Level;
+import de.berlios.suzy.log.Logger;
+
+/**
+ * A single threaded selector loop. All network I/O of the {@link IrcClient}s
+ * assigned to a loop happens on its thread, so a bot connected to many
+ * networks only needs a few threads.
+ * <br>
+ * Besides selecting, a loop runs tasks handed to it by {@link #execute(Runnable)}
+ * and timers registered with {@link #schedule(Runnable, long)}.
+ * <br>
+ * Loops are created lazily, up to one per available processor (can be
+ * changed with the system property <code>suzy.ioThreads</code>).
+ */
+class IrcEventLoop implements Runnable {
+    private static final int MAX_LOOPS = Integer.getInteger("suzy.ioThreads",
+            Runtime.getRuntime().availableProcessors()).intValue();
+    private static final Logger log = Logger.getLogger("loop");
+    private static final List<IrcEventLoop> loops = new ArrayList<IrcEventLoop>();
+    private static int nextLoop = 0;
+
+    private static ExecutorService resolver;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timerSequence = 0;
+
+    /**
+     * Returns the loop a new connection should be assigned to. Loops are
+     * used round robin, new loops are started until the maximum is reached.
+     * @return an event loop
+     */
+    static synchronized IrcEventLoop next() {
+        if (loops.size() < Math.max(1, MAX_LOOPS)) {
+            try {
+                IrcEventLoop loop = new IrcEventLoop("suzy-io-" + loops.size());
+                loops.add(loop);
+                return loop;
+            } catch (IOException e) {
+                if (loops.size() == 0) {
+                    throw new IllegalStateException("Cannot open selector", e);
+                }
+                log.error("Cannot open selector - using the existing loops", e);
+            }
+        }
+        IrcEventLoop loop = loops.get(nextLoop % loops.size());
+        nextLoop++;
+        return loop;
+    }
+
+    private IrcEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Whether or not the calling thread is the thread of this loop.
+     * @return true if called from within the loop
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread. The task will be run at once if
+     * this is called from the loop, else it will be queued.
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after the given delay.
+     * @param task task to run
+     * @param delay delay in ms
+     * @return a handle that can be used to cancel the task
+     */
+    Timer schedule(final Runnable task, long delay) {
+        final Timer timer = new Timer(task, System.currentTimeMillis() + Math.max(0, delay));
+        execute(new Runnable() {
+            public void run() {
+                timer.sequence = timerSequence++;
+                timers.add(timer);
+            }
+        });
+        return timer;
+    }
+
+    /**
+     * Registers the channel with this loop's selector. Must be called from the loop.
+     * @param channel channel to register
+     * @param ops initial interest set
+     * @param handler handler that will be attached to the key
+     * @return the selection key
+     * @throws ClosedChannelException if the channel was closed
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Resolves the host name without blocking the loop. The callback will be
+     * run on the loop once the address is known (or null if it is unknown).
+     * @param host host to resolve
+     * @param callback receives the result on the loop thread
+     */
+    void resolve(final String host, final Callback<InetAddress> callback) {
+        resolver().execute(new Runnable() {
+            public void run() {
+                InetAddress address = null;
+                try {
+                    address = InetAddress.getByName(host);
+                } catch (UnknownHostException e) {
+                    log.warn("Unknown host " + host, e);
+                }
+                final InetAddress result = address;
+                execute(new Runnable() {
+                    public void run() {
+                        callback.done(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized ExecutorService resolver() {
+        if (resolver == null) {
+            resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "suzy-resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return resolver;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                long wait = runTimers();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.select();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (Throwable t) {
+                        log.log(Level.DEBUG, "I/O failed", t); //the handler reports it
+                        handler.failed(t);
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        log.error("Task failed", t);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Select failed", e);
+            }
+        }
+    }
+
+    /*
+     * runs all timers that are due and returns the time until the next one
+     * (0 if there is none)
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            Timer timer = timers.peek();
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long wait = timer.when - System.currentTimeMillis();
+            if (wait > 0) {
+                return wait;
+            }
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (Throwable t) {
+                log.error("Timer failed", t);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Implemented by everything that registers a channel with a loop.
+     */
+    interface Handler {
+        /**
+         * Called on the loop when the key is ready for one of its interest ops.
+         * @param key the selected key
+         * @throws IOException if the operation failed
+         */
+        public void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop if {@link #ready(SelectionKey)} threw.
+         * @param t the cause
+         */
+        public void failed(Throwable t);
+    }
+
+    /**
+     * Receives the result of an asynchronous operation on the loop thread.
+     * @param <T> type of the result
+     */
+    interface Callback<T> {
+        public void done(T result);
+    }
+
+    /**
+     * A task scheduled with {@link IrcEventLoop#schedule(Runnable, long)}.
+     */
+    static class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long when;
+        private long sequence;
+        private volatile boolean cancelled;
+
+        private Timer(Runnable task, long when) {
+            this.task = task;
+            this.when = when;
+        }
+
+        /**
+         * Prevents the task from running if it did not run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        public int compareTo(Timer o) {
+            if (when != o.when) {
+                return when < o.when ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
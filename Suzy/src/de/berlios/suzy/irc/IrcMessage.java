@@ -0,0 +1,448 @@
+package de.berlios.suzy.irc;
+
+/**
+ * A view on one line received from an irc server (RFC 1459 with IRCv3 message tags):
+ * <pre>
+ * [@tag=value;tag2 ][:prefix ]COMMAND [param ...][ :trailing]
+ * </pre>
+ * The line is not copied, {@link #parse(byte[], int, int)} only records where the
+ * parts are in the given bytes. Strings are created on request only, so lines that
+ * are not interesting to us are dispatched without creating any objects.
+ * <br>
+ * A message is reused for every line of a connection: it is only valid until
+ * the next line is parsed and must not be kept or passed to other threads.
+ * Copy the parts needed with the getters instead.
+ */
+public final class IrcMessage {
+    /**
+     * Maximum number of parameters (14 middle + trailing, plus some tolerance).
+     */
+    private static final int MAX_PARAMS = 32;
+
+    private byte[] data;
+    private int start;
+    private int end;
+
+    private int tagsStart;
+    private int tagsEnd;
+    private int prefixStart;
+    private int prefixEnd;
+    private int commandStart;
+    private int commandEnd;
+    private int numeric;
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramEnd = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean trailing;
+    private long received;
+
+    private char[] chars = new char[512];
+
+    /**
+     * Parses the line. Line endings must have been removed.
+     * @param data buffer containing the line
+     * @param start index of the first byte of the line
+     * @param end index after the last byte of the line
+     * @return false if the line has no command
+     */
+    public boolean parse(byte[] data, int start, int end) {
+        this.data = data;
+        this.start = start;
+        this.end = end;
+        tagsStart = tagsEnd = prefixStart = prefixEnd = -1;
+        commandStart = commandEnd = -1;
+        numeric = -1;
+        paramCount = 0;
+        trailing = false;
+
+        int i = skipSpaces(start);
+        if (i < end && data[i] == '@') {
+            tagsStart = i + 1;
+            i = nextSpace(i);
+            tagsEnd = i;
+            i = skipSpaces(i);
+        }
+        if (i < end && data[i] == ':') {
+            prefixStart = i + 1;
+            i = nextSpace(i);
+            prefixEnd = i;
+            i = skipSpaces(i);
+        }
+        if (i >= end) {
+            return false;
+        }
+
+        commandStart = i;
+        i = nextSpace(i);
+        commandEnd = i;
+        if (commandEnd - commandStart == 3 && isDigit(data[commandStart])
+                && isDigit(data[commandStart + 1]) && isDigit(data[commandStart + 2])) {
+            numeric = (data[commandStart] - '0') * 100 + (data[commandStart + 1] - '0') * 10
+                    + data[commandStart + 2] - '0';
+        }
+
+        while ((i = skipSpaces(i)) < end && paramCount < MAX_PARAMS) {
+            if (data[i] == ':' || paramCount == MAX_PARAMS - 1) {
+                if (data[i] == ':') {
+                    i++;
+                }
+                paramStart[paramCount] = i;
+                paramEnd[paramCount] = end;
+                paramCount++;
+                trailing = true;
+                break;
+            }
+            paramStart[paramCount] = i;
+            i = nextSpace(i);
+            paramEnd[paramCount] = i;
+            paramCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the numeric reply code.
+     * @return the command as a number, -1 if the command is not numeric
+     */
+    public int getNumeric() {
+        return numeric;
+    }
+
+    /**
+     * Compares the command without creating a String.
+     * @param command command in upper case, e.g. PRIVMSG
+     * @return true if this message has the given command (ignoring case)
+     */
+    public boolean isCommand(String command) {
+        if (commandEnd - commandStart != command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            int b = data[commandStart + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the command.
+     * @return the command in upper case
+     */
+    public String getCommand() {
+        return decode(commandStart, commandEnd).toUpperCase();
+    }
+
+    /**
+     * Returns the prefix (the source of the message) without the leading colon.
+     * @return the prefix, null if the message has no prefix
+     */
+    public String getPrefix() {
+        return prefixStart == -1 ? null : decode(prefixStart, prefixEnd);
+    }
+
+    /**
+     * Returns the nick of the sender: the prefix up to the first '!' or '@'.
+     * For messages from a server this is the server's name.
+     * @return the nick of the sender, null if the message has no prefix
+     */
+    public String getNick() {
+        if (prefixStart == -1) {
+            return null;
+        }
+        int i = prefixStart;
+        while (i < prefixEnd && data[i] != '!' && data[i] != '@') {
+            i++;
+        }
+        return decode(prefixStart, i);
+    }
+
+    /**
+     * Returns the number of parameters, including the trailing one.
+     * @return the number of parameters
+     */
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /**
+     * Returns a parameter.
+     * @param index index of the parameter, starting at 0
+     * @return the parameter, null if there is no such parameter
+     */
+    public String getParam(int index) {
+        if (index >= paramCount) {
+            return null;
+        }
+        return decode(paramStart[index], paramEnd[index]);
+    }
+
+    /**
+     * Returns the last parameter, which is the only one that may contain spaces.
+     * @return the last parameter, null if there are no parameters
+     */
+    public String getLastParam() {
+        return getParam(paramCount - 1);
+    }
+
+    /**
+     * Whether or not the last parameter was given with a leading colon.
+     * @return true if the last parameter is a trailing one
+     */
+    public boolean hasTrailing() {
+        return trailing;
+    }
+
+    /**
+     * Checks the beginning of a parameter without creating a String.
+     * @param index index of the parameter
+     * @param text text to look for (ASCII only)
+     * @return true if the parameter starts with the text
+     */
+    public boolean paramStartsWith(int index, String text) {
+        if (index >= paramCount || paramEnd[index] - paramStart[index] < text.length()) {
+            return false;
+        }
+        return regionMatches(paramStart[index], text);
+    }
+
+    /**
+     * Searches a parameter without creating a String.
+     * @param index index of the parameter
+     * @param text text to look for (ASCII only)
+     * @return true if the parameter contains the text
+     */
+    public boolean paramContains(int index, String text) {
+        if (index >= paramCount) {
+            return false;
+        }
+        for (int i = paramStart[index]; i <= paramEnd[index] - text.length(); i++) {
+            if (regionMatches(i, text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a parameter without creating a String.
+     * @param index index of the parameter
+     * @param text text to compare with (ASCII only)
+     * @return true if the parameter is the text
+     */
+    public boolean paramEquals(int index, String text) {
+        if (index >= paramCount || paramEnd[index] - paramStart[index] != text.length()) {
+            return false;
+        }
+        return regionMatches(paramStart[index], text);
+    }
+
+    /**
+     * Copies a parameter as it was received, without decoding it.
+     * @param index index of the parameter
+     * @param target array to copy to
+     * @param offset index in the array to copy to
+     * @return index after the last byte copied, as much of the parameter as fits is copied
+     */
+    public int copyParam(int index, byte[] target, int offset) {
+        if (index >= paramCount) {
+            return offset;
+        }
+        int length = Math.min(paramEnd[index] - paramStart[index], target.length - offset);
+        System.arraycopy(data, paramStart[index], target, offset, length);
+        return offset + length;
+    }
+
+    /**
+     * Whether or not the message carries IRCv3 tags.
+     * @return true if there are tags
+     */
+    public boolean hasTags() {
+        return tagsStart != -1 && tagsEnd > tagsStart;
+    }
+
+    /**
+     * Returns the value of an IRCv3 tag, unescaped.
+     * @param key name of the tag, e.g. time or msgid
+     * @return the value, an empty String for tags without a value or null if the tag is not set
+     */
+    public String getTag(String key) {
+        if (tagsStart == -1) {
+            return null;
+        }
+        int i = tagsStart;
+        while (i < tagsEnd) {
+            int tagEnd = i;
+            while (tagEnd < tagsEnd && data[tagEnd] != ';') {
+                tagEnd++;
+            }
+            if (tagEnd - i >= key.length() && regionMatches(i, key)
+                    && (tagEnd - i == key.length() || data[i + key.length()] == '=')) {
+                int valueStart = Math.min(tagEnd, i + key.length() + 1);
+                return unescapeTag(decode(valueStart, tagEnd));
+            }
+            i = tagEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the whole line.
+     * @return the line as received, without line ending
+     */
+    public String toString() {
+        return data == null ? "" : decode(start, end);
+    }
+
+    /**
+     * Returns the buffer holding the line, see {@link #getStart()} and {@link #getEnd()}.
+     * @return the buffer holding the line
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns where the line starts in {@link #getData()}.
+     * @return index of the first byte of the line
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns where the line ends in {@link #getData()}.
+     * @return index after the last byte of the line
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns when the line was read from the connection.
+     * @return time of the read, see {@link System#nanoTime()}
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    void setReceived(long received) {
+        this.received = received;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < end && data[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int nextSpace(int i) {
+        while (i < end && data[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private boolean regionMatches(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (data[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * decodes UTF-8, invalid sequences become U+FFFD like with the CharsetDecoder used before
+     */
+    private String decode(int from, int to) {
+        if (chars.length < to - from) {
+            chars = new char[to - from];
+        }
+        int length = 0;
+        int i = from;
+        while (i < to) {
+            int b = data[i++];
+            if (b >= 0) {
+                chars[length++] = (char) b;
+                continue;
+            }
+
+            int needed;
+            int codePoint;
+            if ((b & 0xe0) == 0xc0) {
+                needed = 1;
+                codePoint = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                needed = 2;
+                codePoint = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                needed = 3;
+                codePoint = b & 0x07;
+            } else {
+                chars[length++] = '\uFFFD';
+                continue;
+            }
+
+            int j = 0;
+            while (j < needed && i < to && (data[i] & 0xc0) == 0x80) {
+                codePoint = (codePoint << 6) | (data[i++] & 0x3f);
+                j++;
+            }
+            if (j < needed || codePoint < (needed == 1 ? 0x80 : needed == 2 ? 0x800 : 0x10000)
+                    || codePoint > 0x10ffff || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                chars[length++] = '\uFFFD';
+            } else if (codePoint >= 0x10000) {
+                codePoint -= 0x10000;
+                chars[length++] = (char) (0xd800 + (codePoint >> 10));
+                chars[length++] = (char) (0xdc00 + (codePoint & 0x3ff));
+            } else {
+                chars[length++] = (char) codePoint;
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static String unescapeTag(String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i == value.length()) {
+                break;
+            }
+            switch (c = value.charAt(i)) {
+            case ':':
+                sb.append(';');
+                break;
+            case 's':
+                sb.append(' ');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package de.berlios.suzy.irc;
+
+/**
+ * The management interface of a loaded {@link Plugin}, registered as
+ * <code>de.berlios.suzy:type=Plugin,network=&lt;network&gt;,name=&lt;class name&gt;</code>.
+ * <br>
+ * The numbers cover commands as well as irc events handled by the plugin.
+ */
+public interface PluginMBean {
+    /**
+     * Returns the fully qualified class name of the plugin.
+     * @return the class name
+     */
+    public String getClassName();
+
+    /**
+     * Returns the commands of the plugin.
+     * @return the commands
+     */
+    public String[] getCommands();
+
+    /**
+     * Returns the access restricted commands of the plugin.
+     * @return the restricted commands
+     */
+    public String[] getRestrictedCommands();
+
+    /**
+     * Returns the number of times the plugin was run.
+     * @return the number of invocations
+     */
+    public long getInvocations();
+
+    /**
+     * Returns the number of times the plugin failed with an exception.
+     * @return the number of errors
+     */
+    public long getErrors();
+
+    /**
+     * Returns the mean time the plugin took.
+     * @return the mean latency in µs
+     */
+    public long getMeanLatency();
+
+    /**
+     * Returns the longest time the plugin took.
+     * @return the maximum latency in µs
+     */
+    public long getMaxLatency();
+
+    /**
+     * Loads the plugin's class again and replaces the plugin.
+     */
+    public void reload();
+
+    /**
+     * Unloads the plugin.
+     */
+    public void unload();
+}
@@ -0,0 +1,380 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.berlios.suzy.metrics.Gauge;
+import de.berlios.suzy.metrics.Metrics;
+
+/**
+ * Keeps the replies of the commands of {@link CacheablePlugin}s, so that a lookup
+ * repeated in a busy channel does not reach the plugin again.
+ * <br>
+ * Replies are keyed by plugin, command and arguments (with runs of spaces
+ * collapsed), but not by network. The cache holds the <code>suzy.cache.size</code>
+ * (default: 1000) most recently used replies for at most <code>suzy.cache.ttl</code>
+ * ms (default: 600000) each. Both are system properties, a size of 0 turns the cache off.
+ * <br>
+ * Replies are recorded while a plugin handles a command: the client reports every
+ * line sent from the thread running the command to the {@link Recorder} of that
+ * thread.
+ * <br>
+ * Identical commands given while the first one is still running are not passed to
+ * the plugin at all: they wait for its {@link Flight} to land and get the same reply
+ * (even with the cache turned off), which may also be the message that it failed. If
+ * that reply cannot be used for them, because the command timed out or its reply is
+ * not cacheable, they are run one by one.
+ */
+public final class ReplyCache {
+    private static final int SIZE = Integer.getInteger("suzy.cache.size", 1000).intValue();
+    private static final long TTL = Long.getLong("suzy.cache.ttl", 600000).longValue();
+    private static final int MAX_LINES = 20;
+
+    private static final Map<String, Reply> replies = new LinkedHashMap<String, Reply>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Reply> eldest) {
+            return size() > SIZE;
+        }
+    };
+    private static final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private static final ThreadLocal<Recorder> recorders = new ThreadLocal<Recorder>();
+
+    private static long hits;
+    private static long misses;
+    private static long coalesced;
+    //raised by every invalidation, replies recorded before are not cached
+    private static long generation;
+
+    static {
+        Metrics.gauge(null, "cache.hits", new Gauge.Value() {
+            public long get() {
+                return getHits();
+            }
+        });
+        Metrics.gauge(null, "cache.misses", new Gauge.Value() {
+            public long get() {
+                return getMisses();
+            }
+        });
+        Metrics.gauge(null, "cache.coalesced", new Gauge.Value() {
+            public long get() {
+                return getCoalesced();
+            }
+        });
+        Metrics.gauge(null, "cache.size", new Gauge.Value() {
+            public long get() {
+                return size();
+            }
+        });
+    }
+
+    private ReplyCache() {
+    }
+
+    /**
+     * Builds the key of a command.
+     * @param plugin the plugin executing the command
+     * @param prefix the command modifier, as replies may quote it
+     * @param command the command (without namespace)
+     * @param arguments the text after the command
+     * @return the key
+     */
+    static String key(Plugin plugin, String prefix, String command, String arguments) {
+        StringBuilder sb = new StringBuilder(plugin.getClass().getName().length() + prefix.length()
+                + command.length() + arguments.length() + 3);
+        sb.append(plugin.getClass().getName()).append(' ').append(prefix).append(' ').append(command).append(' ');
+        boolean space = false;
+        for (int i = 0; i < arguments.length(); i++) {
+            char c = arguments.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a cached reply.
+     * @param key key built by {@link #key(Plugin, String, String, String)}
+     * @param now current time in ms
+     * @return the reply, null if none is cached or it has expired
+     */
+    static synchronized Reply get(String key, long now) {
+        if (SIZE <= 0) {
+            return null;
+        }
+        Reply reply = replies.get(key);
+        if (reply != null && now - reply.time > TTL) {
+            replies.remove(key);
+            reply = null;
+        }
+        if (reply == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return reply;
+    }
+
+    private static synchronized void put(String key, Reply reply, long recordedIn) {
+        if (recordedIn == generation && SIZE > 0) {
+            replies.put(key, reply);
+        }
+    }
+
+    /**
+     * Drops all cached replies of a plugin.
+     * @param className class name of the plugin
+     */
+    public static synchronized void invalidate(String className) {
+        generation++;
+        String start = className + " ";
+        for (Iterator<String> i = replies.keySet().iterator(); i.hasNext();) {
+            if (i.next().startsWith(start)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of commands answered from the cache.
+     * @return the number of hits
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable commands that had to be passed to their plugin.
+     * @return the number of misses
+     */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of commands that got the reply of an identical command running at the same time.
+     * @return the number of coalesced commands
+     */
+    public static synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Returns the number of cached replies.
+     * @return the number of replies
+     */
+    public static synchronized int size() {
+        return replies.size();
+    }
+
+    /**
+     * Starts a command, unless the same command is running already.
+     * @param key key built by {@link #key(Plugin, String, String, String)}
+     * @param client client that received the command
+     * @param target target of the command
+     * @param fallback runs the command on its own, if the running one's reply cannot be used
+     * @return the flight to execute the command with, null if the command waits for the one running
+     */
+    static synchronized Flight takeOff(String key, IrcClient client, IrcTarget target, Runnable fallback) {
+        Flight flight = flights.get(key);
+        if (flight != null) {
+            flight.followers.add(new Follower(client, target, fallback));
+            coalesced++;
+            return null;
+        }
+        flight = new Flight(key);
+        flights.put(key, flight);
+        return flight;
+    }
+
+    /**
+     * Records the lines sent by the current thread until {@link Recorder#finish(boolean, boolean)}.
+     * @param key key the reply will be cached with
+     * @param flight flight the command runs in, may be null
+     * @param defaultTarget where the command expects its reply (channel or user)
+     * @param user the user who sent the command
+     * @return the recorder
+     */
+    static Recorder record(String key, Flight flight, String defaultTarget, String user) {
+        long recordedIn;
+        synchronized (ReplyCache.class) {
+            recordedIn = generation;
+        }
+        Recorder recorder = new Recorder(key, flight, defaultTarget, user, System.currentTimeMillis(), recordedIn);
+        recorders.set(recorder);
+        return recorder;
+    }
+
+    /**
+     * A message is being sent by the current thread.
+     * @param target receiver of the message
+     * @param type type of the message
+     * @param text the text
+     */
+    static void sent(String target, MessageTypes type, String text) {
+        Recorder recorder = recorders.get();
+        if (recorder != null) {
+            recorder.add(target, type, text);
+        }
+    }
+
+    /**
+     * A raw line is being sent by the current thread, which makes the reply uncacheable.
+     */
+    static void sentRaw() {
+        Recorder recorder = recorders.get();
+        if (recorder != null) {
+            recorder.cacheable = false;
+        }
+    }
+
+    /**
+     * A cached reply.
+     */
+    static final class Reply {
+        private final List<MessageTypes> types = new ArrayList<MessageTypes>();
+        private final List<String> texts = new ArrayList<String>();
+        //whether a line goes to the user rather than the default target
+        private final List<Boolean> toUser = new ArrayList<Boolean>();
+        private final long time;
+
+        private Reply(long time) {
+            this.time = time;
+        }
+
+        /**
+         * Sends the reply again.
+         * @param client the client to send with
+         * @param target the target of the command the reply is sent for
+         */
+        void send(IrcClient client, IrcTarget target) {
+            for (int i = 0; i < texts.size(); i++) {
+                String to = toUser.get(i).booleanValue() ? target.getUser() : target.getDefaultTarget();
+                client.sendMessageTo(to, types.get(i), texts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Collects the lines a plugin sends while handling a command.
+     */
+    static final class Recorder {
+        private final String key;
+        private final Flight flight;
+        private final String defaultTarget;
+        private final String user;
+        private final Reply reply;
+        private final long recordedIn;
+        private boolean cacheable = true;
+
+        private Recorder(String key, Flight flight, String defaultTarget, String user, long now,
+                long recordedIn) {
+            this.key = key;
+            this.flight = flight;
+            this.recordedIn = recordedIn;
+            this.defaultTarget = defaultTarget;
+            this.user = user;
+            this.reply = new Reply(now);
+        }
+
+        private void add(String target, MessageTypes type, String text) {
+            if (!cacheable) {
+                return;
+            }
+            boolean toUser;
+            if (target.equalsIgnoreCase(defaultTarget)) {
+                toUser = false;
+            } else if (target.equalsIgnoreCase(user)) {
+                toUser = true;
+            } else {
+                cacheable = false;
+                return;
+            }
+            if (reply.texts.size() >= MAX_LINES || text.toLowerCase().contains(user.toLowerCase())) {
+                cacheable = false;
+                return;
+            }
+            reply.types.add(type);
+            reply.texts.add(text);
+            reply.toUser.add(Boolean.valueOf(toUser));
+        }
+
+        /**
+         * Stops recording, caches the reply and sends it to the commands waiting for it.
+         * @param completed whether the plugin handled the command without failing
+         * @param interrupted whether the command was interrupted, so the reply may be incomplete
+         */
+        void finish(boolean completed, boolean interrupted) {
+            recorders.remove();
+            boolean usable = !interrupted && cacheable && !reply.texts.isEmpty();
+            if (usable && completed) {
+                put(key, reply, recordedIn);
+            }
+            if (flight != null) {
+                //a failure is shared, the others would most likely fail the same way
+                flight.land(usable ? reply : null);
+            }
+        }
+    }
+
+    /**
+     * A command that is running, and the identical commands waiting for its reply.
+     */
+    static final class Flight {
+        private final String key;
+        private final List<Follower> followers = new ArrayList<Follower>();
+        private boolean landed = false;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * The command is done: sends its reply to the followers, or runs them on their own.
+         * Only the first call has any effect.
+         * @param reply the reply, null if it cannot be used for the followers
+         */
+        void land(Reply reply) {
+            List<Follower> waiting;
+            synchronized (ReplyCache.class) {
+                if (landed) {
+                    return;
+                }
+                landed = true;
+                flights.remove(key);
+                waiting = new ArrayList<Follower>(followers);
+            }
+            for (Follower follower : waiting) {
+                if (reply != null) {
+                    reply.send(follower.client, follower.target);
+                } else {
+                    follower.fallback.run();
+                }
+            }
+        }
+    }
+
+    private static final class Follower {
+        final IrcClient client;
+        final IrcTarget target;
+        final Runnable fallback;
+
+        Follower(IrcClient client, IrcTarget target, Runnable fallback) {
+            this.client = client;
+            this.target = target;
+            this.fallback = fallback;
+        }
+    }
+}
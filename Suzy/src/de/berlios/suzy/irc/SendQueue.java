@@ -0,0 +1,435 @@
+package de.berlios.suzy.irc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import de.berlios.suzy.log.Logger;
+
+/**
+ * The outbound queue of an {@link IrcClient}. Lines are sorted into lanes by
+ * their irc command, so a PONG or a KICK does not have to wait behind a page of
+ * help text. Within a lane, lines are sent in the order they were queued.
+ * <br>
+ * A line that has been waiting for more than <code>lane.maxWait</code> ms is sent
+ * before lines of higher lanes, so busy higher lanes cannot starve the lower ones.
+ * <br>
+ * Interactive lines to a target that already has <code>lane.bulkAfter</code> interactive
+ * lines waiting are put into the bulk lane, so long answers do not hold up short ones.
+ * Once a target has lines in the bulk lane, its following lines go there as well,
+ * so lines to one target are never reordered.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>Default lanes</CAPTION>
+ *   <TR><TH>critical<TD>PING, PONG, NICK, USER, PASS, QUIT, CAP, AUTHENTICATE
+ *   <TR><TH>moderation<TD>KICK, MODE, TOPIC, INVITE, KILL, REMOVE
+ *   <TR><TH>interactive<TD>PRIVMSG, NOTICE, JOIN, PART and everything not listed
+ *   <TR><TH>bulk<TD>WHO, WHOIS, WHOWAS, NAMES, LIST, AWAY
+ * </table>
+ * The lane of a command can be changed in servers.conf, e.g. <code>lane.NOTICE = bulk</code>.
+ * <br>
+ * All methods are thread safe.
+ */
+class SendQueue {
+    /**
+     * The lanes, in order of priority.
+     */
+    enum Lane {
+        CRITICAL, MODERATION, INTERACTIVE, BULK
+    }
+
+    private static final Logger log = Logger.getLogger("irc");
+    private static final Lane[] LANES = Lane.values();
+    private static final Map<String, Lane> DEFAULT_LANES = new HashMap<String, Lane>();
+    static {
+        for (String command : new String[] { "PING", "PONG", "NICK", "USER", "PASS", "QUIT", "CAP", "AUTHENTICATE" }) {
+            DEFAULT_LANES.put(command, Lane.CRITICAL);
+        }
+        for (String command : new String[] { "KICK", "MODE", "TOPIC", "INVITE", "KILL", "REMOVE" }) {
+            DEFAULT_LANES.put(command, Lane.MODERATION);
+        }
+        for (String command : new String[] { "WHO", "WHOIS", "WHOWAS", "NAMES", "LIST", "AWAY" }) {
+            DEFAULT_LANES.put(command, Lane.BULK);
+        }
+    }
+
+    private final Map<String, Lane> laneMap = new HashMap<String, Lane>(DEFAULT_LANES);
+    private final long maxWait;
+    private final int bulkAfter;
+    private final int quantum;
+    private final boolean coalesce;
+    private final int coalesceBytes;
+    private final String separator;
+
+    private final LaneQueue[] lanes;
+    //lines waiting per target: [0] interactive, [1] bulk
+    private final Map<String, int[]> waitingPerTarget = new HashMap<String, int[]>();
+    private int size = 0;
+
+    /**
+     * Creates a new queue.
+     * @param options the network's options, used for lane.* settings
+     */
+    SendQueue(Properties options) {
+        lanes = new LaneQueue[LANES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new LaneQueue();
+        }
+
+        maxWait = Long.parseLong(options.getProperty("lane.maxWait", "5000").trim());
+        bulkAfter = Integer.parseInt(options.getProperty("lane.bulkAfter", "2").trim());
+        quantum = Math.max(64, Integer.parseInt(options.getProperty("lane.quantum", "256").trim()));
+        coalesce = Boolean.valueOf(options.getProperty("coalesce", "false").trim()).booleanValue();
+        coalesceBytes = Math.min(511, Integer.parseInt(options.getProperty("coalesce.maxBytes", "400").trim()));
+        separator = options.getProperty("coalesce.separator", " | ");
+        for (Object key : options.keySet()) {
+            String name = (String) key;
+            if (name.startsWith("lane.") && !name.equals("lane.maxWait") && !name.equals("lane.bulkAfter")
+                    && !name.equals("lane.quantum")) {
+                String lane = options.getProperty(name).trim().toUpperCase(Locale.ENGLISH);
+                try {
+                    laneMap.put(name.substring(5).toUpperCase(Locale.ENGLISH), Lane.valueOf(lane));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Unknown lane " + lane + " for " + name + " - ignoring");
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a line to the end of its target's queue in its lane.
+     * @param text the complete line including the line feed
+     */
+    void add(String text) {
+        add(text, null);
+    }
+
+    /**
+     * Adds a line to the end of its target's queue in its lane.
+     * @param text the complete line including the line feed
+     * @param trace the command the line is a reply to, null if none is traced
+     */
+    synchronized void add(String text, CommandTrace trace) {
+        Entry entry = new Entry(text, System.currentTimeMillis());
+        if (trace != null) {
+            entry.traces = new ArrayList<CommandTrace>(1);
+            entry.traces.add(trace);
+        }
+
+        Lane lane = laneMap.get(entry.command);
+        if (lane == null) {
+            lane = Lane.INTERACTIVE;
+        }
+        if (lane == Lane.INTERACTIVE && entry.target != null) {
+            int[] waiting = waitingPerTarget.get(entry.target);
+            if (waiting == null) {
+                waiting = new int[2];
+                waitingPerTarget.put(entry.target, waiting);
+            }
+            if (waiting[1] > 0 || waiting[0] >= bulkAfter) {
+                lane = Lane.BULK;
+                waiting[1]++;
+            } else {
+                waiting[0]++;
+            }
+            entry.counted = true;
+        }
+        entry.lane = lane;
+
+        lanes[lane.ordinal()].add(entry);
+        size++;
+    }
+
+    /**
+     * Returns the line that should be sent next without removing it.
+     * Calling this again without removing the line returns the same line,
+     * unless lines have been added in between.
+     * @param now current time in ms
+     * @return the next line or null if the queue is empty
+     */
+    synchronized Entry peek(long now) {
+        //starving lines first, oldest first
+        LaneQueue starving = null;
+        TargetQueue oldest = null;
+        for (int i = 1; i < lanes.length; i++) {
+            TargetQueue queue = lanes[i].oldest();
+            if (queue != null && now - queue.entries.getFirst().queued > maxWait
+                    && (oldest == null || queue.entries.getFirst().queued < oldest.entries.getFirst().queued)) {
+                starving = lanes[i];
+                oldest = queue;
+            }
+        }
+        if (oldest != null) {
+            return starving.head(oldest);
+        }
+
+        for (LaneQueue lane : lanes) {
+            if (!lane.active.isEmpty()) {
+                return lane.next();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a line returned by {@link #peek(long)}.
+     * @param entry the line to remove
+     */
+    synchronized void remove(Entry entry) {
+        if (lanes[entry.lane.ordinal()].remove(entry)) {
+            removed(entry);
+        }
+    }
+
+    private void removed(Entry entry) {
+        size -= entry.lines;
+        if (entry.counted) {
+            int[] waiting = waitingPerTarget.get(entry.target);
+            waiting[entry.lane == Lane.BULK ? 1 : 0] -= entry.lines;
+            if (waiting[0] <= 0 && waiting[1] <= 0) {
+                waitingPerTarget.remove(entry.target);
+            }
+        }
+    }
+
+    /**
+     * Removes all lines.
+     */
+    synchronized void clear() {
+        for (LaneQueue lane : lanes) {
+            lane.clear();
+        }
+        waitingPerTarget.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of lines waiting.
+     * @return the number of lines waiting
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /*
+     * the lines of one lane: a queue per target, served by deficit round robin.
+     * Each time a target gets its turn, quantum bytes are added to its deficit;
+     * it may send lines as long as they fit into the deficit, then it is put
+     * at the end of the round.
+     */
+    private class LaneQueue {
+        private final Map<String, TargetQueue> targets = new HashMap<String, TargetQueue>();
+        private final LinkedList<TargetQueue> active = new LinkedList<TargetQueue>();
+
+        private void add(Entry entry) {
+            String key = entry.target == null ? "" : entry.target;
+            TargetQueue queue = targets.get(key);
+            if (queue == null) {
+                queue = new TargetQueue(key);
+                targets.put(key, queue);
+            }
+            if (queue.entries.isEmpty()) {
+                active.add(queue);
+            }
+            queue.entries.add(entry);
+        }
+
+        private Entry next() {
+            while (true) {
+                TargetQueue queue = active.getFirst();
+                if (!queue.turn) {
+                    queue.deficit += quantum;
+                    queue.turn = true;
+                }
+                Entry head = head(queue);
+                if (head.bytes <= queue.deficit) {
+                    return head;
+                }
+                queue.turn = false;
+                active.addLast(active.removeFirst());
+            }
+        }
+
+        private TargetQueue oldest() {
+            TargetQueue oldest = null;
+            for (TargetQueue queue : active) {
+                if (oldest == null || queue.entries.getFirst().queued < oldest.entries.getFirst().queued) {
+                    oldest = queue;
+                }
+            }
+            return oldest;
+        }
+
+        /*
+         * returns the first line of the queue. If coalescing is enabled, the
+         * messages following it are merged into it as long as they fit into one line.
+         * Only the loop adds to the front of a queue, so the merged line is
+         * still the first one when it is removed.
+         */
+        private Entry head(TargetQueue queue) {
+            Entry head = queue.entries.getFirst();
+            if (!coalesce || head.message == -1 || queue.entries.size() < 2) {
+                return head;
+            }
+
+            StringBuilder merged = null;
+            int bytes = head.bytes;
+            int lines = head.lines;
+            List<CommandTrace> traces = null;
+            while (queue.entries.size() > 1) {
+                Entry next = queue.entries.get(1);
+                if (next.message == -1 || !next.command.equals(head.command)) {
+                    break;
+                }
+                String message = next.text.substring(next.message, next.text.length() - 1);
+                int length = bytes + IrcConnection.byteLength(separator) + IrcConnection.byteLength(message);
+                if (length > coalesceBytes + 1) {
+                    break;
+                }
+                if (merged == null) {
+                    merged = new StringBuilder(head.text.substring(0, head.text.length() - 1));
+                }
+                merged.append(separator).append(message);
+                bytes = length;
+                lines += next.lines;
+                if (next.traces != null) {
+                    if (traces == null) {
+                        traces = new ArrayList<CommandTrace>();
+                    }
+                    traces.addAll(next.traces);
+                }
+                queue.entries.remove(1);
+            }
+            if (merged == null) {
+                return head;
+            }
+
+            Entry entry = new Entry(merged.append('\n').toString(), head.queued);
+            entry.lane = head.lane;
+            entry.counted = head.counted;
+            entry.lines = lines;
+            if (traces != null) {
+                if (head.traces != null) {
+                    traces.addAll(head.traces);
+                }
+                entry.traces = traces;
+            } else {
+                entry.traces = head.traces;
+            }
+            queue.entries.set(0, entry);
+            return entry;
+        }
+
+        private boolean remove(Entry entry) {
+            TargetQueue queue = targets.get(entry.target == null ? "" : entry.target);
+            if (queue == null || !queue.entries.remove(entry)) {
+                return false;
+            }
+            queue.deficit -= entry.bytes;
+            if (queue.entries.isEmpty()) {
+                //idle targets do not save up credit
+                active.remove(queue);
+                targets.remove(queue.key);
+            }
+            return true;
+        }
+
+        private void clear() {
+            targets.clear();
+            active.clear();
+        }
+    }
+
+    private static class TargetQueue {
+        private final String key;
+        private final LinkedList<Entry> entries = new LinkedList<Entry>();
+        private int deficit;
+        private boolean turn;
+
+        private TargetQueue(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A queued line.
+     */
+    static class Entry {
+        private final String text;
+        private final long queued;
+        private final String command;
+        private final String target;
+        private final int bytes;
+        //start of the message text if this line may be merged with others, -1 otherwise
+        private final int message;
+        private Lane lane;
+        private boolean counted;
+        private int lines = 1;
+        //one per line merged into this one that belongs to a traced command
+        private List<CommandTrace> traces;
+
+        private Entry(String text, long queued) {
+            this.text = text;
+            this.queued = queued;
+
+            //lines we send never have a prefix: COMMAND target ...
+            String line = text.trim();
+            int end = line.indexOf(' ');
+            if (end == -1) {
+                command = line.toUpperCase(Locale.ENGLISH);
+                target = null;
+            } else {
+                command = line.substring(0, end).toUpperCase(Locale.ENGLISH);
+                int targetEnd = line.indexOf(' ', end + 1);
+                if (targetEnd == -1) {
+                    targetEnd = line.length();
+                }
+                String first = line.substring(end + 1, targetEnd);
+                target = first.startsWith(":") ? null : first.toLowerCase(Locale.ENGLISH);
+            }
+            bytes = IrcConnection.byteLength(text);
+
+            //PRIVMSG/NOTICE target :text, but no ctcp (e.g. ACTION)
+            int colon = text.indexOf(" :");
+            if (target != null && (command.equals("PRIVMSG") || command.equals("NOTICE"))
+                    && colon != -1 && text.endsWith("\n") && text.charAt(colon + 2) != '\001') {
+                message = colon + 2;
+            } else {
+                message = -1;
+            }
+        }
+
+        /**
+         * Returns the line.
+         * @return the complete line including the line feed
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Tells the traced commands that the line has been written.
+         */
+        void sent() {
+            if (traces != null) {
+                long now = System.nanoTime();
+                for (CommandTrace trace : traces) {
+                    trace.sent(now);
+                }
+            }
+        }
+
+        /**
+         * Returns the lane the line has been put in.
+         * @return the lane of this line
+         */
+        Lane getLane() {
+            return lane;
+        }
+    }
+}
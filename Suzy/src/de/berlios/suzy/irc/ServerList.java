@@ -0,0 +1,241 @@
+package de.berlios.suzy.irc;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The servers of a network and how well they have been working.
+ * <br>
+ * Every server has its own backoff: each failed attempt doubles the time until the
+ * server is tried again (starting at <code>reconnect.minDelay</code>, at most
+ * <code>reconnect.maxDelay</code>), with random jitter so a whole botnet of clients
+ * does not come back at the same moment. A connection that has been up for
+ * <code>reconnect.stable</code> ms resets the backoff when it is lost, so after a
+ * netsplit the next server is tried at once.
+ * <br>
+ * Of the servers that may be tried, the one with the best health is chosen. Health
+ * is a moving average of the outcomes of the last attempts; a server that just
+ * dropped us is only chosen again if there is no other server as healthy.
+ * <br>
+ * Resolved addresses are cached for <code>dns.ttl</code> ms. If a lookup fails, a
+ * stale cached address is used.
+ * <br>
+ * Used from the client's event loop only.
+ */
+class ServerList {
+    private static final double HEALTH_WEIGHT = 0.3;
+
+    private final List<Server> servers = new ArrayList<Server>();
+    private final Random random = new Random();
+    private final long minDelay;
+    private final long maxDelay;
+    private final long stable;
+    private final long dnsTtl;
+
+    /**
+     * Creates a new list.
+     * @param serverList comma separated list of host[:port]
+     * @param defaultPort port for hosts without a port
+     * @param options the network's options, used for reconnect.* and dns.ttl
+     */
+    ServerList(String serverList, int defaultPort, Properties options) {
+        minDelay = Long.parseLong(options.getProperty("reconnect.minDelay", "1000").trim());
+        maxDelay = Long.parseLong(options.getProperty("reconnect.maxDelay", "60000").trim());
+        stable = Long.parseLong(options.getProperty("reconnect.stable", "60000").trim());
+        dnsTtl = Long.parseLong(options.getProperty("dns.ttl", "300000").trim());
+
+        for (String entry : serverList.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon != -1 && entry.indexOf(':') == colon) {
+                servers.add(new Server(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+            } else {
+                servers.add(new Server(entry, defaultPort));
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("no server given");
+        }
+    }
+
+    /**
+     * Chooses the server to connect to next.
+     * @param now current time in ms
+     * @return the healthiest server that may be tried now or, if there is none,
+     * the one that may be tried first (see {@link Server#getRetryAt()})
+     */
+    Server next(long now) {
+        Server best = null;
+        for (Server server : servers) {
+            if (server.retryAt > now) {
+                continue;
+            }
+            if (best == null || server.isBetterThan(best, now)) {
+                best = server;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+
+        for (Server server : servers) {
+            if (best == null || server.retryAt < best.retryAt) {
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns all servers.
+     * @return the servers in the order they were given
+     */
+    List<Server> getServers() {
+        return servers;
+    }
+
+    /**
+     * A server of the network.
+     */
+    class Server {
+        private final String host;
+        private final int port;
+        private double health = 1;
+        private int failures = 0;
+        private long retryAt = 0;
+        private long lastAttempt = 0;
+        private long droppedAt = -1;
+        private long connectedAt = -1;
+
+        private InetAddress address;
+        private long addressExpires;
+
+        private Server(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Returns the host name.
+         * @return the host name
+         */
+        String getHost() {
+            return host;
+        }
+
+        /**
+         * Returns the port.
+         * @return the port
+         */
+        int getPort() {
+            return port;
+        }
+
+        /**
+         * Returns when this server may be tried again.
+         * @return time in ms
+         */
+        long getRetryAt() {
+            return retryAt;
+        }
+
+        /**
+         * Returns the health of this server.
+         * @return 1 if all recent attempts worked, 0 if all of them failed
+         */
+        double getHealth() {
+            return health;
+        }
+
+        /**
+         * Returns the cached address.
+         * @param now current time in ms
+         * @param stale whether an expired address may be returned
+         * @return the address, null if there is none
+         */
+        InetAddress getAddress(long now, boolean stale) {
+            if (address != null && (stale || now < addressExpires)) {
+                return address;
+            }
+            return null;
+        }
+
+        /**
+         * Caches a resolved address.
+         * @param address the address
+         * @param now current time in ms
+         */
+        void setAddress(InetAddress address, long now) {
+            this.address = address;
+            this.addressExpires = now + dnsTtl;
+        }
+
+        /**
+         * A connection attempt is starting.
+         * @param now current time in ms
+         */
+        void attempt(long now) {
+            lastAttempt = now;
+            connectedAt = -1;
+        }
+
+        /**
+         * We are registered with this server.
+         * @param now current time in ms
+         */
+        void connected(long now) {
+            connectedAt = now;
+            failures = 0;
+            retryAt = 0;
+            health += (1 - health) * HEALTH_WEIGHT;
+        }
+
+        /**
+         * The attempt failed or the connection was lost.
+         * @param now current time in ms
+         */
+        void failed(long now) {
+            if (connectedAt != -1 && now - connectedAt >= stable) {
+                //worked for a while, probably a split: try the next server right away
+                connectedAt = -1;
+                droppedAt = now;
+                return;
+            }
+            connectedAt = -1;
+            failures++;
+            health -= health * HEALTH_WEIGHT;
+
+            long delay = minDelay << Math.min(failures - 1, 30);
+            if (delay <= 0 || delay > maxDelay) {
+                delay = maxDelay;
+            }
+            //equal jitter: at least half the delay
+            retryAt = now + delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+
+        private boolean isBetterThan(Server other, long now) {
+            boolean dropped = droppedAt != -1 && now - droppedAt < stable;
+            boolean otherDropped = other.droppedAt != -1 && now - other.droppedAt < stable;
+            if (dropped != otherDropped) {
+                return !dropped;
+            }
+            if (health != other.health) {
+                return health > other.health;
+            }
+            return lastAttempt < other.lastAttempt;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
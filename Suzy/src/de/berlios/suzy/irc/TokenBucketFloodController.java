@@ -0,0 +1,209 @@
+package de.berlios.suzy.irc;
+
+import java.util.Properties;
+
+/**
+ * The default {@link FloodController}. It models what an ircd does with the
+ * data a client sends: lines are parsed at a limited rate (each line costing its
+ * length plus a fixed penalty), everything not parsed yet waits in the
+ * server's receive queue, and a client whose receive queue grows too large is
+ * killed for Excess Flood.
+ * <br>
+ * The parse rate is modelled as a token bucket, the receive queue by counting
+ * the bytes sent that have not been acknowledged by a lag probe yet.
+ * The rate is adapted to the server: the lowest round trip time seen is taken as
+ * the base line, if probes take much longer than that, the lines are piling up in
+ * the receive queue and the rate is halved. While the rate is what limits us and
+ * probes come back quickly, it is raised a bit with every answered probe (AIMD).
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>Options (servers.conf)</CAPTION>
+ *   <TR><TH>flood.burst<TD>1024<TD>size of the bucket in bytes
+ *   <TR><TH>flood.rate<TD>1024<TD>initial rate in bytes/s
+ *   <TR><TH>flood.minRate<TD>128<TD>the rate will not be lowered below this
+ *   <TR><TH>flood.maxRate<TD>8192<TD>the rate will not be raised above this
+ *   <TR><TH>flood.increase<TD>128<TD>bytes/s added per answered probe
+ *   <TR><TH>flood.linePenalty<TD>64<TD>bytes charged per line in addition to its length
+ *   <TR><TH>flood.recvq<TD>1024<TD>maximum number of unacknowledged bytes
+ *   <TR><TH>flood.lag<TD>1000<TD>ms a probe may take longer than the fastest one before the rate is lowered
+ * </table>
+ */
+public class TokenBucketFloodController implements FloodController {
+    private static final int RTT_SAMPLES = 8;
+    private static final long PROBE_INTERVAL = 5000;
+
+    private final int burst;
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final int linePenalty;
+    private final int recvq;
+    private final long lagTolerance;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private boolean limited;
+    private long lastDecrease;
+
+    private long totalSent;
+    private long acknowledged;
+    private long lastProbeMark;
+    private long lastProbeTime;
+    private int outstandingProbes;
+
+    private long[] rttSamples = new long[RTT_SAMPLES];
+    private int rttCount;
+
+    /**
+     * Creates a new controller with the default settings.
+     */
+    public TokenBucketFloodController() {
+        this(new Properties());
+    }
+
+    /**
+     * Creates a new controller configured by the given options.
+     * @param options the network's options from servers.conf
+     */
+    public TokenBucketFloodController(Properties options) {
+        burst = getInt(options, "flood.burst", 1024);
+        rate = getInt(options, "flood.rate", 1024);
+        minRate = getInt(options, "flood.minRate", 128);
+        maxRate = getInt(options, "flood.maxRate", 8192);
+        increase = getInt(options, "flood.increase", 128);
+        linePenalty = getInt(options, "flood.linePenalty", 64);
+        recvq = getInt(options, "flood.recvq", 1024);
+        lagTolerance = getInt(options, "flood.lag", 1000);
+        reset(System.currentTimeMillis());
+    }
+
+    private static int getInt(Properties options, String key, int defaultValue) {
+        String value = options.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#delay(int, long)
+     */
+    public long delay(int bytes, long now) {
+        if (totalSent - acknowledged + bytes > recvq && totalSent > acknowledged) {
+            return Long.MAX_VALUE;
+        }
+
+        refill(now);
+        double cost = cost(bytes);
+        if (tokens >= cost) {
+            return 0;
+        }
+        limited = true;
+        return (long) Math.ceil((cost - tokens) * 1000 / rate);
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#sent(int, long)
+     */
+    public void sent(int bytes, long now) {
+        refill(now);
+        tokens -= cost(bytes);
+        totalSent += bytes;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#wantsProbe(long)
+     */
+    public boolean wantsProbe(long now) {
+        long sinceProbe = totalSent - lastProbeMark;
+        if (sinceProbe <= 0) {
+            return false;
+        }
+        if (outstandingProbes == 0) {
+            return sinceProbe >= recvq / 4
+                    || totalSent - acknowledged >= recvq / 2
+                    || now - lastProbeTime >= PROBE_INTERVAL;
+        }
+        //keep the probes pipelined so the window never runs dry
+        return outstandingProbes < 2 && sinceProbe >= recvq / 4;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#probeSent(long)
+     */
+    public long probeSent(long now) {
+        outstandingProbes++;
+        lastProbeMark = totalSent;
+        lastProbeTime = now;
+        return totalSent;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#acknowledged(long, long, long)
+     */
+    public void acknowledged(long mark, long rtt, long now) {
+        outstandingProbes = Math.max(0, outstandingProbes - 1);
+        acknowledged = Math.max(acknowledged, mark);
+
+        rttSamples[rttCount++ % RTT_SAMPLES] = rtt;
+        long baseRtt = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(rttCount, RTT_SAMPLES); i++) {
+            baseRtt = Math.min(baseRtt, rttSamples[i]);
+        }
+
+        if (rtt - baseRtt > lagTolerance) {
+            //lines are piling up on the server, back off (at most once per round trip)
+            if (now - lastDecrease > rtt) {
+                rate = Math.max(minRate, rate / 2);
+                lastDecrease = now;
+            }
+        } else if (limited) {
+            rate = Math.min(maxRate, rate + increase);
+        }
+        limited = false;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#excessFlood(long)
+     */
+    public void excessFlood(long now) {
+        rate = Math.max(minRate, rate / 2);
+        lastDecrease = now;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.FloodController#reset(long)
+     */
+    public void reset(long now) {
+        tokens = burst;
+        lastRefill = now;
+        limited = false;
+        totalSent = 0;
+        acknowledged = 0;
+        lastProbeMark = 0;
+        lastProbeTime = now;
+        outstandingProbes = 0;
+    }
+
+    /**
+     * Returns the current rate.
+     * @return the current rate in bytes/s
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    private double cost(int bytes) {
+        //a line longer than the bucket can be sent once the bucket is full
+        return Math.min(burst, bytes + linePenalty);
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package de.berlios.suzy.irc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import de.berlios.suzy.log.Logger;
+
+/**
+ * Records every line received by a client to a file, so real traffic can be
+ * replayed later, e.g. to benchmark the handling of commands.
+ * <br>
+ * The file is gzip compressed. Its data starts with the {@link #MAGIC} bytes, followed by
+ * one record per line: the µs since the previous line and the length of the line
+ * as variable length integers (7 bits per byte, lowest first), then the line
+ * without its line ending.
+ * <br>
+ * The event loop only copies the lines into a chunk, which is compressed and written
+ * by a thread of its own once it is full, or at the latest a second after its first line.
+ * Every chunk is a gzip member of its own, so a capture that was not stopped only
+ * lacks the lines of its last second.
+ */
+public final class TrafficCapture {
+    /**
+     * The first bytes of a capture, including the version of the format.
+     */
+    public static final byte[] MAGIC = { 'S', 'U', 'Z', 'Y', 'C', 'A', 'P', 1 };
+
+    private static final int CHUNK = 64 * 1024;
+    private static final long CHUNK_AGE = 1000;
+    private static final Logger log = Logger.getLogger("irc");
+
+    private final File file;
+    private final IrcEventLoop loop;
+    private final OutputStream out;
+    private final OutputStream members;
+    private final ExecutorService writer;
+    private byte[] chunk = new byte[CHUNK];
+    private int length = 0;
+    private IrcEventLoop.Timer handOffTimer;
+    private long last = -1;
+    private long lines = 0;
+
+    /**
+     * Starts a capture, replacing the file.
+     * @param file file to write to
+     * @param loop the loop of the client, which hands off chunks that are not full
+     * @throws IOException if the file cannot be created
+     */
+    TrafficCapture(File file, IrcEventLoop loop) throws IOException {
+        this.file = file;
+        this.loop = loop;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        //closing a member releases its deflater, but must leave the file open
+        this.members = new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            public void close() throws IOException {
+                out.flush();
+            }
+        };
+        System.arraycopy(MAGIC, 0, chunk, 0, MAGIC.length);
+        length = MAGIC.length;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "suzy-capture");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Records a line. Must be called from the loop.
+     * @param data buffer holding the line
+     * @param start index of the first byte of the line
+     * @param end index after the last byte of the line
+     * @param received when the line was read, see {@link System#nanoTime()}
+     */
+    void record(byte[] data, int start, int end, long received) {
+        if (last == -1) {
+            last = received;
+        }
+        int lineLength = end - start;
+        if (length + 10 + lineLength > chunk.length) {
+            handOff();
+            if (10 + lineLength > chunk.length) {
+                chunk = new byte[10 + lineLength];
+            }
+        }
+        if (handOffTimer == null) {
+            handOffTimer = loop.schedule(new Runnable() {
+                public void run() {
+                    handOffTimer = null;
+                    handOff();
+                }
+            }, CHUNK_AGE);
+        }
+        length = putVarint(chunk, length, Math.max(0, (received - last) / 1000));
+        length = putVarint(chunk, length, lineLength);
+        System.arraycopy(data, start, chunk, length, lineLength);
+        length += lineLength;
+        last = received;
+        lines++;
+    }
+
+    private static int putVarint(byte[] buffer, int position, long value) {
+        while (value >= 0x80) {
+            buffer[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /*
+     * passes the chunk to the writer and starts a new one
+     */
+    private void handOff() {
+        if (handOffTimer != null) {
+            handOffTimer.cancel();
+            handOffTimer = null;
+        }
+        if (length == 0) {
+            return;
+        }
+        final byte[] full = chunk;
+        final int fullLength = length;
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    GZIPOutputStream member = new GZIPOutputStream(members, 8192);
+                    member.write(full, 0, fullLength);
+                    member.close();
+                } catch (IOException e) {
+                    log.warn("Cannot write capture " + file, e);
+                }
+            }
+        });
+        chunk = new byte[CHUNK];
+        length = 0;
+    }
+
+    /**
+     * Writes what is left and closes the file. Must be called from the loop.
+     */
+    void close() {
+        handOff();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.warn("Cannot close capture " + file, e);
+                }
+            }
+        });
+        writer.shutdown();
+        log.info("Captured " + lines + " lines to " + file);
+    }
+
+    /**
+     * Reads a capture line by line.
+     */
+    public static final class Reader {
+        private final DataInputStream in;
+        private byte[] line = new byte[512];
+        private int length;
+        private long time = 0;
+
+        /**
+         * Opens a capture.
+         * @param file the capture
+         * @throws IOException if the file cannot be read or is no capture
+         */
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 65536));
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            } catch (EOFException e) {
+                magic[0] = 0;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    in.close();
+                    throw new IOException(file + " is no capture of this version");
+                }
+            }
+        }
+
+        /**
+         * Reads the next line.
+         * @return false at the end of the capture
+         * @throws IOException if the file cannot be read
+         */
+        public boolean next() throws IOException {
+            try {
+                long delta = readVarint(in);
+                if (delta == -1) {
+                    return false;
+                }
+                int lineLength = (int) readVarint(in);
+                if (lineLength > line.length) {
+                    line = new byte[lineLength];
+                }
+                in.readFully(line, 0, lineLength);
+                length = lineLength;
+                time += delta;
+                return true;
+            } catch (EOFException e) {
+                //the capture was not stopped, the last record may be cut off
+                return false;
+            }
+        }
+
+        private static long readVarint(InputStream in) throws IOException {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = in.read();
+                if (b == -1) {
+                    if (shift == 0) {
+                        return -1;
+                    }
+                    throw new EOFException();
+                }
+                value |= (long) (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        /**
+         * Returns the time of the current line.
+         * @return µs since the first line
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns the buffer holding the current line, which is reused for the next one.
+         * @return the buffer, the line starts at index 0
+         */
+        public byte[] getData() {
+            return line;
+        }
+
+        /**
+         * Returns the length of the current line.
+         * @return the number of bytes of the line
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Closes the file.
+         * @throws IOException if the file cannot be closed
+         */
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
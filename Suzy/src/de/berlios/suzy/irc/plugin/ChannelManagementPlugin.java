@@ -1,5 +1,6 @@
 package de.berlios.suzy.irc.plugin;
 
+import de.berlios.suzy.irc.ChannelModel;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
 import de.berlios.suzy.irc.Plugin;
@@ -37,6 +38,14 @@ public class ChannelManagementPlugin implements Plugin {
 	public void handleEvent(IrcCommandEvent ice) {
 		if(ice.getTarget().isPrivate())
 			return;
+		ChannelModel channels = ice.getSource().getChannelModel();
+		//until the names list is complete the server has to decide
+		ChannelModel.Channel channel = channels.getChannel(ice.getTarget().getChannel());
+		boolean synced = channel != null && channel.isSynced();
+		if(synced && !channels.isOp(ice.getTarget().getChannel(), channels.getNick())) {
+			ice.getSource().sendMessageTo(ice.getTarget().getChannel(), MessageTypes.PRIVMSG, "I need to be a channel operator for that.");
+			return;
+		}
 		for(Command cmd : Command.values()) {
 			if(!cmd.name().equals(ice.getCommand().toUpperCase()))
 				continue;
@@ -44,7 +53,9 @@ public class ChannelManagementPlugin implements Plugin {
 			switch(cmd) {
 			case KICK:
 				target = ice.getMessageContent().split(" ", 2);
-				if(target.length == 2)
+				if(synced && target[0].length() != 0 && !channels.isOn(ice.getTarget().getChannel(), target[0]))
+					ice.getSource().sendMessageTo(ice.getTarget().getChannel(), MessageTypes.PRIVMSG, target[0] + " is not in this channel.");
+				else if(target.length == 2)
 					ice.getSource().send("KICK " + ice.getTarget().getChannel() + " " + target[0] + " :" + target[1]);
 				else if(target.length == 1)
 					ice.getSource().send("KICK " + ice.getTarget().getChannel() + " " + target[0]);
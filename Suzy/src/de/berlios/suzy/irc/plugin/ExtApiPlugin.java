@@ -7,9 +7,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
+import de.berlios.suzy.irc.CacheablePlugin;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
-import de.berlios.suzy.irc.Plugin;
+import de.berlios.suzy.irc.ReplyCache;
 import de.berlios.suzy.parser.ApiSearchUtil;
 import de.berlios.suzy.parser.ParserFactory;
 
@@ -19,7 +20,7 @@ import de.berlios.suzy.parser.ParserFactory;
  * @author Antubis
  * 
  */
-public class ExtApiPlugin implements Plugin {
+public class ExtApiPlugin implements CacheablePlugin {
 
     private enum LastRequest {
         ALL, CLASSES, METHODS, FIELDS, NONE
@@ -32,6 +33,12 @@ public class ExtApiPlugin implements Plugin {
      */
     public ExtApiPlugin() {
         requestMap = new HashMap<String, StatEntry>();
+        //reloads through JMX do not go through apireload
+        ParserFactory.setReloadListener(new Runnable() {
+            public void run() {
+                ReplyCache.invalidate(ExtApiPlugin.class.getName());
+            }
+        });
     }
 
     /*
@@ -40,16 +47,8 @@ public class ExtApiPlugin implements Plugin {
      * @see de.berlios.suzy.irc.Plugin#getCommands()
      */
     public String[] getCommands() {
-        String[] defaultCmds = new String[] { "api", "class", "method", "field",
-                 "apistat" };
-        // for old usage
-        List<String> cmds = new ArrayList<String>(Arrays.asList(defaultCmds));
-        for (String parserName : ParserFactory.getInstance().getParserNames()) {
-            for (String cmd : defaultCmds) {
-                cmds.add(cmd + "." + parserName);
-            }
-        }
-        return cmds.toArray(new String[cmds.size()]);
+        return forAllParsers(new String[] { "api", "class", "method", "field",
+                 "apistat" });
     }
 
     /*
@@ -58,7 +57,33 @@ public class ExtApiPlugin implements Plugin {
      * @see de.berlios.suzy.irc.Plugin#getRestrictedCommands()
      */
     public String[] getRestrictedCommands() {
-        String[] defaultCmds = new String[] { "apireload" };
+        return forAllParsers(new String[] { "apireload" });
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see de.berlios.suzy.irc.CacheablePlugin#getCacheableCommands()
+     */
+    public String[] getCacheableCommands() {
+        //apistat reports the last search, which a cached reply does not change
+        return forAllParsers(new String[] { "api", "class", "method", "field" });
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see de.berlios.suzy.irc.CacheablePlugin#getInvalidatingCommands()
+     */
+    public String[] getInvalidatingCommands() {
+        return forAllParsers(new String[] { "apireload" });
+    }
+
+    /*
+     * the commands as given and with the name of each parser appended
+     */
+    private String[] forAllParsers(String[] defaultCmds) {
+        // for old usage
         List<String> cmds = new ArrayList<String>(Arrays.asList(defaultCmds));
         for (String parserName : ParserFactory.getInstance().getParserNames()) {
             for (String cmd : defaultCmds) {
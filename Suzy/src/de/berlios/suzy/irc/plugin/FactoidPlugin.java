@@ -1,8 +1,10 @@
 package de.berlios.suzy.irc.plugin;
 
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,9 +21,9 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import de.berlios.suzy.irc.CacheablePlugin;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
-import de.berlios.suzy.irc.Plugin;
 
 /**
  * Allows the bot to respond with factoids.
@@ -41,7 +43,7 @@ import de.berlios.suzy.irc.Plugin;
  *
  * @author Khalid
  */
-public class FactoidPlugin implements Plugin {
+public class FactoidPlugin implements CacheablePlugin {
 
 	public static final String FACTOIDS_FILE = "factoids.xml";
 	private Document doc;
@@ -113,6 +115,21 @@ public class FactoidPlugin implements Plugin {
 		return restrictedCommands;
     }
 
+    public String[] getCacheableCommands() {
+    	//tell names the user it tells, aliases are looked up like see
+    	List<String> cacheable = new ArrayList<String>();
+    	for (String command : commands) {
+    		if (!command.equals("tell")) {
+    			cacheable.add(command);
+    		}
+    	}
+    	return cacheable.toArray(new String[cacheable.size()]);
+    }
+
+    public String[] getInvalidatingCommands() {
+    	return restrictedCommands;
+    }
+
     public void handleEvent(IrcCommandEvent ice) {
     	String command = ice.getCommand().intern();
     	if (command == "see") {
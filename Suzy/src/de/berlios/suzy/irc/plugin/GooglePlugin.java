@@ -9,9 +9,9 @@ import com.google.soap.search.GoogleSearchFault;
 import com.google.soap.search.GoogleSearchResult;
 import com.google.soap.search.GoogleSearchResultElement;
 
+import de.berlios.suzy.irc.CacheablePlugin;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
-import de.berlios.suzy.irc.Plugin;
 
 /**
  * This plugin allows users to search for expressions on google.
@@ -24,7 +24,7 @@ import de.berlios.suzy.irc.Plugin;
  *
  * @author honk
  */
-public class GooglePlugin implements Plugin {
+public class GooglePlugin implements CacheablePlugin {
     private final static String CLIENT_KEY = "lC+q079QFHKAn6zE/aaOdBwgs0m1Wrl8";
 
     /* (non-Javadoc)
@@ -44,6 +44,23 @@ public class GooglePlugin implements Plugin {
         };
     }
 
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.CacheablePlugin#getCacheableCommands()
+     */
+    public String[] getCacheableCommands() {
+        return new String[] {
+                "google"
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.CacheablePlugin#getInvalidatingCommands()
+     */
+    public String[] getInvalidatingCommands() {
+        return new String[] {
+        };
+    }
+
 
     /* (non-Javadoc)
      * @see de.berlios.suzy.irc.Plugin#handleEvent(de.berlios.suzy.irc.IrcCommandEvent)
@@ -2,6 +2,7 @@ package de.berlios.suzy.irc.plugin;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,16 +11,27 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import de.berlios.suzy.irc.CommandTable;
+import de.berlios.suzy.irc.EventListenerPlugin;
+import de.berlios.suzy.irc.EventTable;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
 import de.berlios.suzy.irc.PerformOnConnectPlugin;
 import de.berlios.suzy.irc.Plugin;
+import de.berlios.suzy.irc.PluginMBean;
+import de.berlios.suzy.irc.ReplyCache;
+import de.berlios.suzy.log.Logger;
+import de.berlios.suzy.metrics.Counter;
+import de.berlios.suzy.metrics.Histogram;
+import de.berlios.suzy.metrics.Management;
+import de.berlios.suzy.metrics.Metrics;
 
 /**
  * This plugin is responsible for loading and unloading other plugins at runtime.
@@ -27,6 +39,9 @@ import de.berlios.suzy.irc.Plugin;
  * <br>
  * A LoaderPlugin cannot be loaded at Runtime.
  * <br>
+ * Every loaded plugin is registered as a {@link PluginMBean}, which can also reload
+ * or unload it.
+ * <br>
  * <br>
  *
  * <TABLE border="1">
@@ -42,11 +57,17 @@ import de.berlios.suzy.irc.Plugin;
  */
 public class LoaderPlugin implements Plugin {
 	public final String DEFAULT_PACKAGE = "de.berlios.suzy.irc.plugin";
-    private Map<String, Plugin> pluginList = new HashMap<String, Plugin>();
-    private Map<String, Plugin> restrictedPluginList = new HashMap<String, Plugin>();
-    private List<PerformOnConnectPlugin> performOnConnectList = new ArrayList<PerformOnConnectPlugin>();
+    //read by the i/o thread while commands may change them
+    private Map<String, Plugin> pluginList = new ConcurrentHashMap<String, Plugin>();
+    private Map<String, Plugin> restrictedPluginList = new ConcurrentHashMap<String, Plugin>();
+    private List<PerformOnConnectPlugin> performOnConnectList = new CopyOnWriteArrayList<PerformOnConnectPlugin>();
+    //rebuilt whenever the lists change, the i/o thread only reads the current one
+    private volatile CommandTable commandTable = CommandTable.EMPTY;
+    private List<EventListenerPlugin> eventListenerList = new CopyOnWriteArrayList<EventListenerPlugin>();
+    private volatile EventTable eventTable = EventTable.EMPTY;
 
     private String network;
+    private Logger log;
 
     /**
      * Creates a new instance.
@@ -56,6 +77,7 @@ public class LoaderPlugin implements Plugin {
      */
     public LoaderPlugin(String network) {
         this.network = network;
+        this.log = Logger.getLogger("loader", network);
         addPlugin(this);
         loadPluginList("plugins.conf");
         loadPluginList("plugins_"+network+".conf");
@@ -75,15 +97,16 @@ public class LoaderPlugin implements Plugin {
                         addPlugin(p);
                     }
                 } catch (Exception e) {
-                    System.err.println("Cannot load plugin: "+line);
-                    e.printStackTrace();
+                    log.error("Cannot load plugin: "+line, e);
                 }
             }
 
+        } catch(FileNotFoundException fnfe) {
+            log.info("No plugin list " + fileName);
         } catch(IOException ioe) {
-            ioe.printStackTrace();
+            log.error("Cannot read plugin list " + fileName, ioe);
         } catch(Throwable t) {
-        	t.printStackTrace();
+            log.error("Cannot load plugin list " + fileName, t);
         }
     }
 
@@ -158,7 +181,8 @@ public class LoaderPlugin implements Plugin {
         showRestrictedCommands(ice);
     }
 
-    private String addPlugin(Plugin p) {
+    //synchronized as plugins may also be changed by JMX
+    private synchronized String addPlugin(Plugin p) {
         StringBuilder sb = new StringBuilder();
         String[] actions = p.getCommands();
         for (int i = 0; i < actions.length; i++) {
@@ -235,11 +259,24 @@ public class LoaderPlugin implements Plugin {
         if (p instanceof PerformOnConnectPlugin) {
             performOnConnectList.add((PerformOnConnectPlugin)p);
         }
+        if (p instanceof EventListenerPlugin) {
+            //a reload replaces the old instance, it must not receive events any more
+            for (EventListenerPlugin listener : eventListenerList) {
+                if (listener.getClass().getName().equals(p.getClass().getName())) {
+                    eventListenerList.remove(listener);
+                }
+            }
+            eventListenerList.add((EventListenerPlugin)p);
+            eventTable = new EventTable(eventListenerList);
+        }
 
+        commandTable = new CommandTable(pluginList, restrictedPluginList);
+        ReplyCache.invalidate(p.getClass().getName());
+        Management.register("Plugin", network, p.getClass().getSimpleName(), new Bean(p), PluginMBean.class);
         return sb.toString();
     }
 
-    private String removePlugin(Plugin p) {
+    private synchronized String removePlugin(Plugin p) {
     	StringBuilder sb = new StringBuilder();
     	String pluginName = p.getClass().getName();
 
@@ -272,6 +309,16 @@ public class LoaderPlugin implements Plugin {
         for (String key : toRemove) {
         	restrictedPluginList.remove(key);
         }
+
+        for (EventListenerPlugin listener : eventListenerList) {
+            if (listener.getClass().getName().equals(pluginName)) {
+                eventListenerList.remove(listener);
+            }
+        }
+        eventTable = new EventTable(eventListenerList);
+        commandTable = new CommandTable(pluginList, restrictedPluginList);
+        ReplyCache.invalidate(p.getClass().getName());
+        Management.unregister("Plugin", network, p.getClass().getSimpleName());
         return sb.toString();
     }
 
@@ -292,6 +339,22 @@ public class LoaderPlugin implements Plugin {
         return pluginList;
     }
 
+    /**
+     * Returns the table used to find the plugin for a command.
+     * @return the commands of all loaded plugins
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * Returns the table used to find the plugins that want a message from irc.
+     * @return the event subscriptions of all loaded plugins
+     */
+    public EventTable getEventTable() {
+        return eventTable;
+    }
+
     /**
      * Returns a mapping of access restricted commands and Plugins executing these.
      * @return a mapping of access restricted commands and Plugins executing these.
@@ -309,7 +372,7 @@ public class LoaderPlugin implements Plugin {
             ice.getSource().sendMessageTo(ice.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Unloaded successfully: "+commands);
         } catch (Throwable t) {
             ice.getSource().sendMessageTo(ice.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Unloading failed: "+t.getMessage());
-           t.printStackTrace();
+            log.warn("Unloading failed: " + ice.getMessageContent(), t);
         }
 
     }
@@ -322,7 +385,7 @@ public class LoaderPlugin implements Plugin {
             ice.getSource().sendMessageTo(ice.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Loaded commands: "+commands);
          } catch (Throwable t) {
             ice.getSource().sendMessageTo(ice.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, "Loading failed: "+t.getMessage());
-            t.printStackTrace();
+            log.warn("Loading failed: " + ice.getMessageContent(), t);
         }
     }
 
@@ -408,7 +471,7 @@ public class LoaderPlugin implements Plugin {
 
                     return c;
                 } catch (IOException ioe) {
-                    ioe.printStackTrace();
+                    log.error("Cannot read class " + className, ioe);
                 }
             	throw new ClassNotFoundException("Cannot find class "
                     + className + ".");
@@ -428,15 +491,73 @@ public class LoaderPlugin implements Plugin {
             plugin = (Plugin)constructor.newInstance(new Object[] {});
         }
 
-        System.out.println("--- loading plugin: " + className + " with actions: ");
-        System.out.println("  - " + Arrays.toString(plugin.getCommands()));
-        System.out.println("  - " + Arrays.toString(plugin.getRestrictedCommands()));
-        System.out.println("  - hash: "+c.hashCode());
+        log.info("loading plugin: " + className + " with actions: " + Arrays.toString(plugin.getCommands())
+                + " restricted: " + Arrays.toString(plugin.getRestrictedCommands()) + " hash: " + c.hashCode());
 
 
         return plugin;
     }
 
+    /*
+     * the management interface of a plugin, called from JMX threads. The numbers are
+     * those recorded by the client for the plugin's class name.
+     */
+    private class Bean implements PluginMBean {
+        private final Plugin plugin;
+        private final Histogram time;
+        private final Counter errors;
+
+        Bean(Plugin plugin) {
+            this.plugin = plugin;
+            String name = plugin.getClass().getSimpleName();
+            this.time = Metrics.histogram(network, "commands." + name + ".time");
+            this.errors = Metrics.counter(network, "commands." + name + ".errors");
+        }
+
+        public String getClassName() {
+            return plugin.getClass().getName();
+        }
+
+        public String[] getCommands() {
+            return plugin.getCommands();
+        }
+
+        public String[] getRestrictedCommands() {
+            return plugin.getRestrictedCommands();
+        }
+
+        public long getInvocations() {
+            return time.getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getMeanLatency() {
+            return time.getMean();
+        }
+
+        public long getMaxLatency() {
+            return time.getMax();
+        }
+
+        public void reload() {
+            try {
+                Plugin p = loadPlugin(getClassName());
+                removePlugin(plugin);
+                addPlugin(p);
+            } catch (Exception e) {
+                log.warn("Reloading failed: " + getClassName(), e);
+                throw new IllegalStateException("Reloading failed: " + e);
+            }
+        }
+
+        public void unload() {
+            removePlugin(plugin);
+        }
+    }
+
    /* (non-Javadoc)
     * @see de.berlios.suzy.irc.Plugin#getHelp(de.berlios.suzy.irc.IrcCommandEvent)
     */
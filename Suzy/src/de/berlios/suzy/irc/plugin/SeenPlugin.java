@@ -0,0 +1,146 @@
+package de.berlios.suzy.irc.plugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.berlios.suzy.irc.EventListenerPlugin;
+import de.berlios.suzy.irc.IrcCommandEvent;
+import de.berlios.suzy.irc.IrcEvent;
+import de.berlios.suzy.irc.MessageTypes;
+
+/**
+ * Remembers when users were last seen, from what they say and their joins,
+ * parts, quits and nick changes in all channels.
+ * <br>
+ * Only the last {@value #MAX_USERS} users are remembered.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION><b>Commands available</b></CAPTION>
+ *   <TR><TH>seen<TD><TD>tells when a user was last seen
+ * </table>
+ */
+public class SeenPlugin implements EventListenerPlugin {
+    private static final int MAX_USERS = 10000;
+
+    //least recently seen first
+    private final Map<String, Sighting> seen = new LinkedHashMap<String, Sighting>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Sighting> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.EventListenerPlugin#getEventTypes()
+     */
+    public String[] getEventTypes() {
+        return new String[] { "PRIVMSG", "JOIN", "PART", "KICK", "QUIT", "NICK" };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.EventListenerPlugin#getEventChannels()
+     */
+    public String[] getEventChannels() {
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.EventListenerPlugin#handleIrcEvent(de.berlios.suzy.irc.IrcEvent)
+     */
+    public synchronized void handleIrcEvent(IrcEvent event) {
+        String type = event.getType();
+        String nick = event.getNick();
+        if (nick == null) {
+            return;
+        }
+        if (type.equals("PRIVMSG")) {
+            if (event.getChannel() != null) {
+                remember(nick, "saying something in " + event.getChannel(), event.getTime());
+            }
+        } else if (type.equals("JOIN")) {
+            remember(nick, "joining " + event.getChannel(), event.getTime());
+        } else if (type.equals("PART")) {
+            remember(nick, "leaving " + event.getChannel(), event.getTime());
+        } else if (type.equals("KICK")) {
+            remember(event.getParam(1), "being kicked from " + event.getChannel() + " by " + nick, event.getTime());
+        } else if (type.equals("QUIT")) {
+            remember(nick, "quitting (" + event.getText() + ")", event.getTime());
+        } else if (type.equals("NICK")) {
+            remember(nick, "changing the nick to " + event.getText(), event.getTime());
+            remember(event.getText(), "changing the nick from " + nick, event.getTime());
+        }
+    }
+
+    private void remember(String nick, String what, long time) {
+        if (nick == null) {
+            return;
+        }
+        seen.put(nick.toLowerCase(), new Sighting(nick + " was last seen " + what, time));
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#handleEvent(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public synchronized void handleEvent(IrcCommandEvent ice) {
+        String nick = ice.getMessageContent().trim();
+        if (nick.length() == 0) {
+            return;
+        }
+        Sighting sighting = seen.get(nick.toLowerCase());
+        String text;
+        if (sighting == null) {
+            text = "I have not seen " + nick + ".";
+        } else {
+            long ago = (System.currentTimeMillis() - sighting.time) / 1000;
+            text = sighting.text + ", " + formatDuration(ago) + " ago.";
+        }
+        ice.getSource().sendMessageTo(ice.getTarget().getDefaultTarget(), MessageTypes.PRIVMSG, text);
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + " s";
+        } else if (seconds < 3600) {
+            return seconds / 60 + " min";
+        } else if (seconds < 86400) {
+            return seconds / 3600 + " h " + seconds % 3600 / 60 + " min";
+        }
+        return seconds / 86400 + " d " + seconds % 86400 / 3600 + " h";
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getCommands()
+     */
+    public String[] getCommands() {
+        return new String[] { "seen" };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getRestrictedCommands()
+     */
+    public String[] getRestrictedCommands() {
+        return new String[0];
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getHelp(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public String[] getHelp(IrcCommandEvent ice) {
+        return new String[] {
+            "Tells when a user was last seen",
+            "Example: " + ice.getPrefix() + "seen Honk"
+        };
+    }
+
+    private static class Sighting {
+        final String text;
+        final long time;
+
+        Sighting(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+    }
+}
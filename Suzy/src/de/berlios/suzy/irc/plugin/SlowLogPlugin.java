@@ -0,0 +1,71 @@
+package de.berlios.suzy.irc.plugin;
+
+import java.util.List;
+
+import de.berlios.suzy.irc.CommandTrace;
+import de.berlios.suzy.irc.IrcCommandEvent;
+import de.berlios.suzy.irc.MessageTypes;
+import de.berlios.suzy.irc.Plugin;
+
+/**
+ * Shows the slowest commands given on the network and where their time went,
+ * see {@link CommandTrace}. At most {@value #MAX_LINES} are sent.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION><b>Restricted commands available</b></CAPTION>
+ *   <TR><TH>slowlog<TD>[clear]<TD>shows the slowest commands or forgets them
+ * </table>
+ */
+public class SlowLogPlugin implements Plugin {
+    private static final int MAX_LINES = 5;
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#handleEvent(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public void handleEvent(IrcCommandEvent ice) {
+        String target = ice.getTarget().getDefaultTarget();
+        CommandTrace.Slowest slowest = ice.getSource().getSlowCommands();
+        if (ice.getMessageContent().trim().equals("clear")) {
+            slowest.clear();
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, "Forgot the slowest commands.");
+            return;
+        }
+
+        List<CommandTrace> traces = slowest.get();
+        if (traces.isEmpty()) {
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, "No commands traced yet.");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < Math.min(MAX_LINES, traces.size()); i++) {
+            CommandTrace trace = traces.get(i);
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, (i + 1) + ". " + trace.format()
+                    + " (" + (now - trace.getTime()) / 60000 + " min ago)");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getCommands()
+     */
+    public String[] getCommands() {
+        return new String[0];
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getRestrictedCommands()
+     */
+    public String[] getRestrictedCommands() {
+        return new String[] { "slowlog" };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getHelp(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public String[] getHelp(IrcCommandEvent ice) {
+        return new String[] {
+            "Shows the slowest commands and where their time went, " + ice.getPrefix() + "slowlog clear forgets them",
+            "Example: " + ice.getPrefix() + "slowlog"
+        };
+    }
+}
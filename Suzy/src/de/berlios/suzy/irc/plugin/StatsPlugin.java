@@ -0,0 +1,90 @@
+package de.berlios.suzy.irc.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.berlios.suzy.irc.IrcCommandEvent;
+import de.berlios.suzy.irc.MessageTypes;
+import de.berlios.suzy.irc.Plugin;
+import de.berlios.suzy.metrics.Metric;
+import de.berlios.suzy.metrics.Metrics;
+
+/**
+ * Shows the values measured by {@link Metrics} for the network the command is
+ * given on, and those of the whole bot.
+ * <br>
+ * The values shown are those whose names start with the argument, e.g. <code>!stats
+ * commands.</code>, by default the ones of the connection (<code>irc.</code>). At most
+ * {@value #MAX_LINES} are sent.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION><b>Restricted commands available</b></CAPTION>
+ *   <TR><TH>stats<TD>[prefix]<TD>shows measured values
+ * </table>
+ */
+public class StatsPlugin implements Plugin {
+    private static final int MAX_LINES = 10;
+    private static final String DEFAULT_PREFIX = "irc.";
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#handleEvent(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public void handleEvent(IrcCommandEvent ice) {
+        String prefix = ice.getMessageContent().trim();
+        if (prefix.length() == 0) {
+            prefix = DEFAULT_PREFIX;
+        }
+
+        List<Metric> found = new ArrayList<Metric>();
+        for (Metric metric : Metrics.getMetrics(ice.getSource().getNetwork())) {
+            if (metric.getName().startsWith(prefix)) {
+                found.add(metric);
+            }
+        }
+        for (Metric metric : Metrics.getMetrics(null)) {
+            if (metric.getName().startsWith(prefix)) {
+                found.add(metric);
+            }
+        }
+
+        String target = ice.getTarget().getDefaultTarget();
+        if (found.isEmpty()) {
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, "Nothing measured matches " + prefix + ".");
+            return;
+        }
+        int lines = found.size() > MAX_LINES ? MAX_LINES - 1 : found.size();
+        for (int i = 0; i < lines; i++) {
+            Metric metric = found.get(i);
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, metric.getName() + ": " + metric.format());
+        }
+        if (lines < found.size()) {
+            ice.getSource().sendMessageTo(target, MessageTypes.PRIVMSG, "... and " + (found.size() - lines)
+                    + " more, see " + ice.getPrefix() + "stats <prefix>");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getCommands()
+     */
+    public String[] getCommands() {
+        return new String[0];
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getRestrictedCommands()
+     */
+    public String[] getRestrictedCommands() {
+        return new String[] { "stats" };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.Plugin#getHelp(de.berlios.suzy.irc.IrcCommandEvent)
+     */
+    public String[] getHelp(IrcCommandEvent ice) {
+        return new String[] {
+            "Shows measured values whose names start with the prefix (default: " + DEFAULT_PREFIX + ")",
+            "Example: " + ice.getPrefix() + "stats commands."
+        };
+    }
+}
@@ -10,9 +10,9 @@ import com.yahoo.search.WebSearchRequest;
 import com.yahoo.search.WebSearchResult;
 import com.yahoo.search.WebSearchResults;
 
+import de.berlios.suzy.irc.CacheablePlugin;
 import de.berlios.suzy.irc.IrcCommandEvent;
 import de.berlios.suzy.irc.MessageTypes;
-import de.berlios.suzy.irc.Plugin;
 
 /**
  * This plugin allows users to search for expressions on google.
@@ -25,7 +25,7 @@ import de.berlios.suzy.irc.Plugin;
  *
  * @author honk
  */
-public class YahooPlugin implements Plugin {
+public class YahooPlugin implements CacheablePlugin {
     private final static String CLIENT_KEY = "ulAw0C3V34GGWUhsIu.OdNSdGMdK5FS3GBF4uRIh0hYXbTUV7awDGdqTCkJo";
 
     /* (non-Javadoc)
@@ -46,6 +46,24 @@ public class YahooPlugin implements Plugin {
         };
     }
 
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.CacheablePlugin#getCacheableCommands()
+     */
+    public String[] getCacheableCommands() {
+        return new String[] {
+                "yahoo",
+                "google"
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.irc.CacheablePlugin#getInvalidatingCommands()
+     */
+    public String[] getInvalidatingCommands() {
+        return new String[] {
+        };
+    }
+
 
     /* (non-Javadoc)
      * @see de.berlios.suzy.irc.Plugin#handleEvent(de.berlios.suzy.irc.IrcCommandEvent)
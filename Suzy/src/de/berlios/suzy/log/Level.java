@@ -0,0 +1,27 @@
+package de.berlios.suzy.log;
+
+/**
+ * Importance of a log entry. A {@link Logger} drops entries below its level.
+ */
+public enum Level {
+    /**
+     * Everything, e.g. each line queued for sending.
+     */
+    TRACE,
+    /**
+     * The irc traffic and other details.
+     */
+    DEBUG,
+    /**
+     * What the bot is doing: connecting, loading plugins, ...
+     */
+    INFO,
+    /**
+     * Something went wrong, but the bot can go on.
+     */
+    WARN,
+    /**
+     * Something went wrong and a feature does not work.
+     */
+    ERROR
+}
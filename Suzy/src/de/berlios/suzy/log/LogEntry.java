@@ -0,0 +1,24 @@
+package de.berlios.suzy.log;
+
+/**
+ * One entry waiting in the ring buffer. Formatting is left to the writer thread.
+ */
+class LogEntry {
+    final long time;
+    final Level level;
+    final String name;
+    final String network;
+    final String message;
+    final byte[] raw;
+    final Throwable throwable;
+
+    LogEntry(long time, Level level, String name, String network, String message, byte[] raw, Throwable throwable) {
+        this.time = time;
+        this.level = level;
+        this.name = name;
+        this.network = network;
+        this.message = message;
+        this.raw = raw;
+        this.throwable = throwable;
+    }
+}
@@ -0,0 +1,274 @@
+package de.berlios.suzy.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The background thread that formats and writes the entries of all {@link Logger}s.
+ */
+class LogWriter implements Runnable {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final long IDLE_WAIT = 100 * 1000 * 1000;
+
+    private static LogWriter instance;
+
+    private final RingBuffer<LogEntry> ring;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written = 0;
+    private volatile boolean parked = false;
+    private final Thread thread;
+
+    private final boolean console;
+    private final File directory;
+    private final long maxSize;
+    private final int maxFiles;
+    private final Map<String, RollingFile> files = new HashMap<String, RollingFile>();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final StringBuilder line = new StringBuilder();
+
+    private LogWriter() {
+        ring = new RingBuffer<LogEntry>(Integer.getInteger("suzy.log.buffer", 8192).intValue());
+        console = Boolean.valueOf(System.getProperty("suzy.log.console", "true")).booleanValue();
+        String dir = System.getProperty("suzy.log.dir", "logs");
+        directory = dir.trim().length() == 0 ? null : new File(dir);
+        maxSize = Long.getLong("suzy.log.maxSize", 10 * 1024 * 1024).longValue();
+        maxFiles = Integer.getInteger("suzy.log.files", 5).intValue();
+
+        thread = new Thread(this, "suzy-log");
+        thread.setDaemon(true);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("suzy-log-shutdown") {
+            public void run() {
+                flush(2000);
+            }
+        });
+    }
+
+    /**
+     * Returns the writer, starting it on first use.
+     * @return the writer
+     */
+    static synchronized LogWriter getInstance() {
+        if (instance == null) {
+            instance = new LogWriter();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues an entry, never blocks.
+     * @param entry entry to write
+     */
+    void add(LogEntry entry) {
+        if (ring.offer(entry)) {
+            submitted.incrementAndGet();
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until everything queued so far has been written.
+     * @param timeout maximum time to wait in ms
+     */
+    void flush(long timeout) {
+        long target = submitted.get();
+        long end = System.currentTimeMillis() + timeout;
+        LockSupport.unpark(thread);
+        while (written < target && System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        long pending = 0;
+        while (true) {
+            LogEntry entry = ring.poll();
+            if (entry != null) {
+                write(entry);
+                pending++;
+                continue;
+            }
+
+            if (pending > 0) {
+                flushOutputs();
+                written += pending;
+                pending = 0;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                write(new LogEntry(System.currentTimeMillis(), Level.WARN, "log", null,
+                        lost + " log entries dropped, the log buffer was full", null, null));
+                flushOutputs();
+            }
+
+            //producers check the flag after adding, so setting it before looking again loses no wake up
+            parked = true;
+            entry = ring.poll();
+            if (entry == null) {
+                LockSupport.parkNanos(this, IDLE_WAIT);
+            } else {
+                write(entry);
+                pending++;
+            }
+            parked = false;
+        }
+    }
+
+    private void write(LogEntry entry) {
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(entry.time))).append(' ');
+        line.append(entry.level);
+        for (int i = entry.level.name().length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append(entry.name);
+        if (entry.network != null) {
+            line.append(" [").append(entry.network).append(']');
+        }
+        line.append(' ');
+        if (entry.message != null) {
+            line.append(entry.message);
+        }
+        if (entry.raw != null) {
+            line.append(CHARSET.decode(ByteBuffer.wrap(entry.raw)));
+        }
+        line.append(LINE_SEPARATOR);
+        if (entry.throwable != null) {
+            StringWriter sw = new StringWriter();
+            entry.throwable.printStackTrace(new PrintWriter(sw));
+            line.append(sw);
+        }
+        String text = line.toString();
+
+        if (console) {
+            PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            out.print(text);
+        }
+        if (directory != null) {
+            RollingFile file = getFile(entry.network == null ? "suzy" : entry.network);
+            if (file != null) {
+                file.write(text.getBytes(CHARSET));
+            }
+        }
+    }
+
+    private void flushOutputs() {
+        if (console) {
+            System.out.flush();
+            System.err.flush();
+        }
+        for (RollingFile file : files.values()) {
+            if (file != null) {
+                file.flush();
+            }
+        }
+    }
+
+    private RollingFile getFile(String name) {
+        if (files.containsKey(name)) {
+            return files.get(name);
+        }
+        RollingFile file = null;
+        try {
+            directory.mkdirs();
+            file = new RollingFile(new File(directory, name.replaceAll("[^\\w.-]", "_") + ".log"));
+        } catch (IOException e) {
+            System.err.println("Cannot open log file for " + name + " - logging to the console only");
+            e.printStackTrace();
+        }
+        files.put(name, file);
+        return file;
+    }
+
+    /*
+     * a log file that is renamed to name.1 once it grows over maxSize, older files
+     * are shifted to name.2 ... name.maxFiles
+     */
+    private class RollingFile {
+        private final File file;
+        private OutputStream out;
+        private long size;
+
+        private RollingFile(File file) throws IOException {
+            this.file = file;
+            open();
+        }
+
+        private void open() throws IOException {
+            size = file.length();
+            out = new BufferedOutputStream(new FileOutputStream(file, true));
+        }
+
+        private void write(byte[] data) {
+            if (out == null) {
+                return;
+            }
+            try {
+                if (size > 0 && size + data.length > maxSize) {
+                    roll();
+                }
+                out.write(data);
+                size += data.length;
+            } catch (IOException e) {
+                System.err.println("Cannot write " + file + " - no longer logging to it");
+                e.printStackTrace();
+                out = null;
+            }
+        }
+
+        private void flush() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot write " + file + " - no longer logging to it");
+                e.printStackTrace();
+                out = null;
+            }
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            new File(file.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+            if (maxFiles > 0) {
+                file.renameTo(new File(file.getPath() + ".1"));
+            } else {
+                file.delete();
+            }
+            open();
+        }
+    }
+}
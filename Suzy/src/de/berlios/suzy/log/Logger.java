@@ -0,0 +1,164 @@
+package de.berlios.suzy.log;
+
+/**
+ * Writes log entries without blocking the caller: entries are put into a ring
+ * buffer and formatted and written by a background thread, to the console and
+ * to a rolling log file per network (logs/&lt;network&gt;.log, logs/suzy.log for
+ * everything else). If the buffer is full, entries are dropped rather than
+ * making the caller wait; the number of dropped entries is logged later.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>System properties</CAPTION>
+ *   <TR><TH>suzy.log.level<TD>DEBUG<TD>lowest level written
+ *   <TR><TH>suzy.log.level.&lt;name&gt;<TD><TD>level for the loggers with this name, e.g. suzy.log.level.traffic=INFO
+ *   <TR><TH>suzy.log.console<TD>true<TD>whether to write to stdout/stderr
+ *   <TR><TH>suzy.log.dir<TD>logs<TD>directory for the log files, empty for no files
+ *   <TR><TH>suzy.log.maxSize<TD>10485760<TD>bytes after which a log file is rolled
+ *   <TR><TH>suzy.log.files<TD>5<TD>number of rolled files kept per log
+ *   <TR><TH>suzy.log.buffer<TD>8192<TD>number of entries the ring buffer holds
+ * </table>
+ */
+public final class Logger {
+    private final String name;
+    private final String network;
+    private final Level level;
+
+    private Logger(String name, String network) {
+        this.name = name;
+        this.network = network;
+
+        String levelName = System.getProperty("suzy.log.level." + name, System.getProperty("suzy.log.level", "DEBUG"));
+        Level level;
+        try {
+            level = Level.valueOf(levelName.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            level = Level.DEBUG;
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns a logger that writes to the main log file.
+     * @param name name of the logger, written with each entry
+     * @return a new logger
+     */
+    public static Logger getLogger(String name) {
+        return new Logger(name, null);
+    }
+
+    /**
+     * Returns a logger that writes to the log file of a network.
+     * @param name name of the logger, written with each entry
+     * @param network name of the network, null for the main log file
+     * @return a new logger
+     */
+    public static Logger getLogger(String name, String network) {
+        return new Logger(name, network);
+    }
+
+    /**
+     * Whether or not entries of the given level are written. Check this before
+     * building expensive messages.
+     * @param level level to check
+     * @return true if entries of this level are written
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Logs a message.
+     * @param level level of the message
+     * @param message the message
+     * @param t exception to print with the message, may be null
+     */
+    public void log(Level level, String message, Throwable t) {
+        if (isEnabled(level)) {
+            LogWriter.getInstance().add(new LogEntry(System.currentTimeMillis(), level, name, network, message, null, t));
+        }
+    }
+
+    /**
+     * Logs raw bytes (e.g. a line received from a server) decoded as UTF-8.
+     * The bytes are copied, the caller may reuse the array.
+     * @param level level of the message
+     * @param prefix text to put in front of the bytes
+     * @param data array holding the bytes
+     * @param offset index of the first byte
+     * @param length number of bytes
+     */
+    public void log(Level level, String prefix, byte[] data, int offset, int length) {
+        if (isEnabled(level)) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            LogWriter.getInstance().add(new LogEntry(System.currentTimeMillis(), level, name, network, prefix, copy, null));
+        }
+    }
+
+    /**
+     * Logs a message with level TRACE.
+     * @param message the message
+     */
+    public void trace(String message) {
+        log(Level.TRACE, message, null);
+    }
+
+    /**
+     * Logs a message with level DEBUG.
+     * @param message the message
+     */
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    /**
+     * Logs a message with level INFO.
+     * @param message the message
+     */
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    /**
+     * Logs a message with level WARN.
+     * @param message the message
+     */
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    /**
+     * Logs a message and an exception with level WARN.
+     * @param message the message
+     * @param t the exception
+     */
+    public void warn(String message, Throwable t) {
+        log(Level.WARN, message, t);
+    }
+
+    /**
+     * Logs a message with level ERROR.
+     * @param message the message
+     */
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    /**
+     * Logs a message and an exception with level ERROR.
+     * @param message the message
+     * @param t the exception
+     */
+    public void error(String message, Throwable t) {
+        log(Level.ERROR, message, t);
+    }
+
+    /**
+     * Writes all entries logged so far. Blocks until they are written or the timeout is over.
+     * @param timeout maximum time to wait in ms
+     */
+    public static void flush(long timeout) {
+        LogWriter.getInstance().flush(timeout);
+    }
+}
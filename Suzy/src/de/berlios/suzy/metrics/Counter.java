@@ -0,0 +1,66 @@
+package de.berlios.suzy.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events, e.g. lines received. The rate is calculated over the last
+ * interval of {@link Metrics}.
+ */
+public final class Counter extends Metric {
+    private final AtomicLong count = new AtomicLong();
+    private long lastCount = 0;
+    private volatile double rate = 0;
+
+    Counter(String network, String name) {
+        super(network, name);
+    }
+
+    /**
+     * Counts one event.
+     */
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    /**
+     * Counts several events, e.g. bytes.
+     * @param n number of events
+     */
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    /**
+     * Returns the number of events counted.
+     * @return the count
+     */
+    public long get() {
+        return count.get();
+    }
+
+    /**
+     * Returns the number of events per second in the last interval.
+     * @return the rate
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.metrics.Metric#tick(long)
+     */
+    void tick(long elapsed) {
+        long current = count.get();
+        if (elapsed > 0) {
+            rate = (current - lastCount) * 1000.0 / elapsed;
+        }
+        lastCount = current;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.metrics.Metric#format()
+     */
+    public String format() {
+        return get() + " (" + Metrics.format(rate) + "/s)";
+    }
+}
@@ -0,0 +1,39 @@
+package de.berlios.suzy.metrics;
+
+/**
+ * A value that is read when it is needed, e.g. the length of a queue.
+ */
+public final class Gauge extends Metric {
+    private final Value value;
+
+    Gauge(String network, String name, Value value) {
+        super(network, name);
+        this.value = value;
+    }
+
+    /**
+     * Returns the current value.
+     * @return the value
+     */
+    public long get() {
+        return value.get();
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.metrics.Metric#format()
+     */
+    public String format() {
+        return String.valueOf(get());
+    }
+
+    /**
+     * Reads the value of a gauge. Called from any thread.
+     */
+    public interface Value {
+        /**
+         * Returns the current value.
+         * @return the value
+         */
+        public long get();
+    }
+}
@@ -0,0 +1,117 @@
+package de.berlios.suzy.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations, e.g. how long plugins take, and tells their percentiles.
+ * <br>
+ * Durations are counted in buckets: exact below 16 µs, above that each power
+ * of two is split into 16 buckets, so a percentile is off by at most 1/16.
+ * Recording takes a few atomic increments and never allocates.
+ */
+public final class Histogram extends Metric {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String network, String name) {
+        super(network, name);
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos the duration in ns
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            //try again
+        }
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return (exponent - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /*
+     * the highest value counted in a bucket
+     */
+    private static long upperBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int exponent = index / SUB + SUB_BITS - 1;
+        long sub = index % SUB;
+        return ((SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of all durations.
+     * @return the mean in µs
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Returns the longest duration.
+     * @return the maximum in µs
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile of the durations.
+     * @param percentile e.g. 99.9
+     * @return the duration that this share of all durations did not exceed, in µs
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.metrics.Metric#format()
+     */
+    public String format() {
+        return getCount() + " x, p50 " + Metrics.formatMicros(getPercentile(50))
+                + ", p99 " + Metrics.formatMicros(getPercentile(99))
+                + ", max " + Metrics.formatMicros(getMax());
+    }
+}
@@ -0,0 +1,102 @@
+package de.berlios.suzy.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import de.berlios.suzy.log.Logger;
+
+/**
+ * Registers MBeans with the platform MBean server, so a running bot can be
+ * inspected and controlled with JConsole or any other JMX client.
+ * <br>
+ * The MBeans are named <code>de.berlios.suzy:type=&lt;type&gt;,network=&lt;network&gt;,name=&lt;name&gt;</code>,
+ * where network and name are left out if not given. Failures are logged, the bot
+ * works the same without JMX.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>System properties</CAPTION>
+ *   <TR><TH>suzy.jmx<TD>true<TD>false to register no MBeans
+ * </table>
+ */
+public final class Management {
+    private static final String DOMAIN = "de.berlios.suzy";
+    private static final boolean ENABLED = Boolean.valueOf(System.getProperty("suzy.jmx", "true")).booleanValue();
+    private static final Logger log = Logger.getLogger("metrics");
+
+    private Management() {
+    }
+
+    /**
+     * Registers an MBean, replacing one of the same name.
+     * @param type kind of the object, e.g. IrcClient
+     * @param network name of the network, may be null
+     * @param name name of the object, may be null
+     * @param implementation the object implementing the interface
+     * @param mbeanInterface the interface of the MBean, its getters are its attributes
+     * @param <T> type of the interface
+     */
+    public static <T> void register(String type, String network, String name, T implementation,
+            Class<T> mbeanInterface) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getName(type, network, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(implementation, mbeanInterface), objectName);
+        } catch (JMException e) {
+            log.warn("Cannot register MBean " + type + " " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters an MBean, if it is registered.
+     * @param type kind of the object, e.g. IrcClient
+     * @param network name of the network, may be null
+     * @param name name of the object, may be null
+     */
+    public static void unregister(String type, String network, String name) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getName(type, network, name));
+        } catch (InstanceNotFoundException e) {
+            //not registered
+        } catch (JMException e) {
+            log.warn("Cannot unregister MBean " + type + " " + name, e);
+        }
+    }
+
+    private static ObjectName getName(String type, String network, String name) throws JMException {
+        StringBuilder sb = new StringBuilder(DOMAIN).append(":type=").append(type);
+        if (network != null) {
+            sb.append(",network=").append(quote(network));
+        }
+        if (name != null) {
+            sb.append(",name=").append(quote(name));
+        }
+        return new ObjectName(sb.toString());
+    }
+
+    /*
+     * names with characters that have a meaning in object names are quoted
+     */
+    private static String quote(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (",=:\"*?\\\n".indexOf(value.charAt(i)) != -1) {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,42 @@
+package de.berlios.suzy.metrics;
+
+/**
+ * A value that is measured, registered with {@link Metrics}.
+ */
+public abstract class Metric {
+    private final String network;
+    private final String name;
+
+    Metric(String network, String name) {
+        this.network = network;
+        this.name = name;
+    }
+
+    /**
+     * Returns the network the value belongs to.
+     * @return name of the network, null for values of the whole bot
+     */
+    public String getNetwork() {
+        return network;
+    }
+
+    /**
+     * Returns the name of the value, e.g. irc.linesIn.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current value in a short, readable form.
+     * @return the value, e.g. "1234 (5.6/s)"
+     */
+    public abstract String format();
+
+    /*
+     * called by Metrics once per interval, e.g. to calculate rates
+     */
+    void tick(long elapsed) {
+    }
+}
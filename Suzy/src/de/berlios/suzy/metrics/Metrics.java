@@ -0,0 +1,212 @@
+package de.berlios.suzy.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.berlios.suzy.log.Logger;
+
+/**
+ * The registry of all measured values: {@link Counter}s, {@link Gauge}s and
+ * {@link Histogram}s, each belonging to a network or to the whole bot.
+ * <br>
+ * Once per interval, rates are calculated and all values are written to a
+ * snapshot file, which is replaced each time.
+ * <br>
+ * <br>
+ * <TABLE border="1">
+ *   <CAPTION>System properties</CAPTION>
+ *   <TR><TH>suzy.metrics.interval<TD>60000<TD>ms between snapshots
+ *   <TR><TH>suzy.metrics.file<TD>&lt;suzy.log.dir&gt;/metrics.txt<TD>snapshot file, empty for none
+ * </table>
+ */
+public final class Metrics {
+    private static final long INTERVAL = Long.getLong("suzy.metrics.interval", 60000).longValue();
+    private static final Logger log = Logger.getLogger("metrics");
+
+    private static final Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private static Thread ticker;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns a counter, creating it if needed.
+     * @param network name of the network, null for the whole bot
+     * @param name name of the counter
+     * @return the counter
+     */
+    public static Counter counter(String network, String name) {
+        Metric metric = metrics.get(key(network, name));
+        if (metric == null) {
+            metric = register(new Counter(network, name));
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Returns a histogram, creating it if needed.
+     * @param network name of the network, null for the whole bot
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    public static Histogram histogram(String network, String name) {
+        Metric metric = metrics.get(key(network, name));
+        if (metric == null) {
+            metric = register(new Histogram(network, name));
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Registers a gauge, replacing one of the same name.
+     * @param network name of the network, null for the whole bot
+     * @param name name of the gauge
+     * @param value reads the value
+     * @return the gauge
+     */
+    public static Gauge gauge(String network, String name, Gauge.Value value) {
+        Gauge gauge = new Gauge(network, name, value);
+        metrics.put(key(network, name), gauge);
+        startTicker();
+        return gauge;
+    }
+
+    /**
+     * Returns the values of a network, sorted by name.
+     * @param network name of the network, null for the values of the whole bot
+     * @return the values
+     */
+    public static List<Metric> getMetrics(String network) {
+        TreeMap<String, Metric> sorted = new TreeMap<String, Metric>();
+        for (Metric metric : metrics.values()) {
+            if (network == null ? metric.getNetwork() == null : network.equals(metric.getNetwork())) {
+                sorted.put(metric.getName(), metric);
+            }
+        }
+        return new ArrayList<Metric>(sorted.values());
+    }
+
+    /**
+     * Returns all values, sorted by network and name.
+     * @return the values
+     */
+    public static List<Metric> getMetrics() {
+        TreeMap<String, Metric> sorted = new TreeMap<String, Metric>(metrics);
+        return new ArrayList<Metric>(sorted.values());
+    }
+
+    private static synchronized Metric register(Metric metric) {
+        String key = key(metric.getNetwork(), metric.getName());
+        Metric existing = metrics.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        metrics.put(key, metric);
+        startTicker();
+        return metric;
+    }
+
+    private static String key(String network, String name) {
+        //the bot's values sort first
+        return (network == null ? "" : network) + " " + name;
+    }
+
+    /*
+     * formats a rate or similar value with one decimal
+     */
+    static String format(double value) {
+        return new DecimalFormat("0.0").format(value);
+    }
+
+    /**
+     * Formats a duration for people.
+     * @param micros duration in µs
+     * @return e.g. "850 µs", "12.3 ms" or "4.5 s"
+     */
+    public static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + " µs";
+        } else if (micros < 1000000) {
+            return format(micros / 1000.0) + " ms";
+        }
+        return format(micros / 1000000.0) + " s";
+    }
+
+    private static synchronized void startTicker() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = new Thread("suzy-metrics") {
+            public void run() {
+                File file = getFile();
+                long last = System.currentTimeMillis();
+                while (true) {
+                    try {
+                        Thread.sleep(INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    for (Metric metric : metrics.values()) {
+                        metric.tick(now - last);
+                    }
+                    last = now;
+                    if (file != null) {
+                        write(file, now);
+                    }
+                }
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private static File getFile() {
+        String dir = System.getProperty("suzy.log.dir", "logs").trim();
+        String name = System.getProperty("suzy.metrics.file",
+                dir.length() == 0 ? "" : new File(dir, "metrics.txt").getPath()).trim();
+        return name.length() == 0 ? null : new File(name);
+    }
+
+    /*
+     * writes to a temporary file first, so readers never see half a snapshot
+     */
+    private static void write(File file, long now) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            try {
+                out.println("# " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(now)));
+                for (Metric metric : getMetrics()) {
+                    out.println((metric.getNetwork() == null ? "-" : metric.getNetwork()) + " "
+                            + metric.getName() + " " + metric.format());
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + temp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot write metrics to " + file, e);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import com.sun.javadoc.ClassDoc;
@@ -19,13 +20,19 @@ import com.sun.javadoc.MethodDoc;
 import com.sun.javadoc.RootDoc;
 import com.sun.javadoc.Type;
 
-public class ApiParser {
+import de.berlios.suzy.log.Logger;
+
+public class ApiParser implements ApiParserMBean {
+    private static final Logger log = Logger.getLogger("parser");
 
     protected final static String parserPath = "bin/";
 
     protected List<ParseEntry> parseEntries;
 
-    protected ClassInfo[] classInfos;
+    //replaced by reloads while commands read it
+    protected volatile ClassInfo[] classInfos;
+
+    private volatile long lastReload;
 
     protected String fileName;
 
@@ -42,27 +49,37 @@ public class ApiParser {
             File f = new File(fileName);
             if (!f.exists()) {
                 createTree();
+                if (Thread.currentThread().isInterrupted()) {
+                    //whatever javadoc wrote is incomplete, the next reload builds it again
+                    f.delete();
+                    return;
+                }
                 f = new File(fileName);
             }
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
+            boolean loaded = classInfos != null;
             classInfos = (ClassInfo[]) ois.readObject();
             ois.close();
+            lastReload = System.currentTimeMillis();
+            if (loaded) {
+                ParserFactory.reloaded();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Cannot read " + fileName, e);
         } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            log.error("Cannot read " + fileName, e);
         }
     }
 
     protected void createTree() {
         Process javadocProcess;
         if (parseEntries == null || fileName == null) {
-            System.out.println("wrong config");
+            log.error("wrong config");
             System.exit(-1);
         }
 
         for (ParseEntry parseEntry : parseEntries) {
-            System.out.println("******* " + parseEntry.getPath() + " *******");
+            log.info("parsing " + parseEntry.getPath());
             try {
                 javadocProcess = Runtime.getRuntime().exec(
                         "javadoc -sourcepath " + parseEntry.getPath() + " -J-Xmx1024m -J-DbaseUrl="
@@ -75,10 +92,14 @@ public class ApiParser {
                 try {
                     javadocProcess.waitFor();
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    //the remaining entries would be written to a file nobody waits for
+                    log.warn("Interrupted while waiting for javadoc, stopping", e);
+                    javadocProcess.destroy();
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             } catch (IOException ioe) {
-                ioe.printStackTrace();
+                log.error("Cannot run javadoc for " + parseEntry.getPath(), ioe);
             }
         }
     }
@@ -90,6 +111,51 @@ public class ApiParser {
         return classInfos;
     }
 
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getFileName()
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getClassCount()
+     */
+    public int getClassCount() {
+        ClassInfo[] classes = classInfos;
+        return classes == null ? 0 : ApiSearchUtil.classCount(classes);
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getMethodCount()
+     */
+    public int getMethodCount() {
+        ClassInfo[] classes = classInfos;
+        return classes == null ? 0 : ApiSearchUtil.methodCount(classes);
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getFieldCount()
+     */
+    public int getFieldCount() {
+        ClassInfo[] classes = classInfos;
+        return classes == null ? 0 : ApiSearchUtil.fieldCount(classes);
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getIndexSize()
+     */
+    public long getIndexSize() {
+        return new File(fileName).length();
+    }
+
+    /* (non-Javadoc)
+     * @see de.berlios.suzy.parser.ApiParserMBean#getLastReload()
+     */
+    public Date getLastReload() {
+        return lastReload == 0 ? null : new Date(lastReload);
+    }
+
     private static void write(String fileName, List<ClassInfo> list) {
         try {
             File f = new File(fileName);
@@ -99,7 +165,7 @@ public class ApiParser {
             oos.flush();
             oos.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Cannot write " + fileName, e);
         }
     }
 
@@ -198,13 +264,13 @@ public class ApiParser {
             try {
                 while ((line = br.readLine()) != null) {
                     if (!isError) {
-                        System.out.println(line);
+                        log.debug("javadoc: " + line);
                     } else {
-                        System.err.println(line);
+                        log.warn("javadoc: " + line);
                     }
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("Cannot read javadoc output", e);
             }
         }
     }
@@ -0,0 +1,52 @@
+package de.berlios.suzy.parser;
+
+import java.util.Date;
+
+/**
+ * The management interface of an {@link ApiParser}, registered as
+ * <code>de.berlios.suzy:type=ApiParser,name=&lt;name&gt;</code>.
+ * <br>
+ * The counts are 0 until the api has been loaded.
+ */
+public interface ApiParserMBean {
+    /**
+     * Returns the file the api is stored in.
+     * @return name of the data file
+     */
+    public String getFileName();
+
+    /**
+     * Returns the number of classes loaded.
+     * @return the number of classes
+     */
+    public int getClassCount();
+
+    /**
+     * Returns the number of methods loaded.
+     * @return the number of methods
+     */
+    public int getMethodCount();
+
+    /**
+     * Returns the number of fields loaded.
+     * @return the number of fields
+     */
+    public int getFieldCount();
+
+    /**
+     * Returns the size of the serialized index, which is roughly what it takes in memory.
+     * @return size of the data file in bytes, 0 if there is none
+     */
+    public long getIndexSize();
+
+    /**
+     * Returns when the api was loaded.
+     * @return time of the last reload, null if not loaded yet
+     */
+    public Date getLastReload();
+
+    /**
+     * Reads the api again, building it if there is no data file.
+     */
+    public void reload();
+}
@@ -39,11 +39,11 @@ public class ApiSearchUtil {
      * @return number of fields that are parsed
      */
     public static int fieldCount(ClassInfo[] classes) {
-        int methods = 0;
+        int fields = 0;
         for (ClassInfo ci : classes) {
-            methods += ci.getMetods().length;
+            fields += ci.getFields().length;
         }
-        return methods;
+        return fields;
     }
 
 
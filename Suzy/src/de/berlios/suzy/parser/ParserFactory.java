@@ -14,8 +14,14 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import de.berlios.suzy.log.Logger;
+import de.berlios.suzy.metrics.Management;
+
 /**
  * Creates ApiParsers according to config file <b>parsers.xml</b>
+ * <br>
+ * Every parser is registered as an {@link ApiParserMBean}. A listener can be set
+ * to learn about reloads, also of those started through JMX.
  * 
  * @author Antubis
  * 
@@ -23,6 +29,8 @@ import org.w3c.dom.NodeList;
  */
 public class ParserFactory {
 
+	private static final Logger log = Logger.getLogger("parser");
+
 	private static final String DEFAULT_CONFIG = "parsers.xml";
 
 	private static final String PARSER_ELEMENT = "parser";
@@ -31,6 +39,8 @@ public class ParserFactory {
 
 	private static HashMap<String, ApiParser> parserMap;
 
+	private static volatile Runnable reloadListener;
+
 	protected ParserFactory() {
 		loadConfig();
 	}
@@ -47,7 +57,7 @@ public class ParserFactory {
 			NodeList parserElements = doc.getElementsByTagName(PARSER_ELEMENT);
 			createParsers(parserElements);
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Cannot load " + DEFAULT_CONFIG, e);
 		}
 
 	}
@@ -81,7 +91,28 @@ public class ParserFactory {
 				}
 				config.add(new ApiParser.ParseEntry(src, packages, baseUrl));
 			}
-			parserMap.put(name.toLowerCase(), new ApiParser(fileName, config));
+			ApiParser parser = new ApiParser(fileName, config);
+			parserMap.put(name.toLowerCase(), parser);
+			Management.register("ApiParser", null, name.toLowerCase(), parser, ApiParserMBean.class);
+		}
+	}
+
+	/**
+	 * Sets what to run after a parser has read its api again, e.g. to drop
+	 * replies made from the old one. Replaces the listener set before.
+	 * @param listener listener to run, null for none
+	 */
+	public static void setReloadListener(Runnable listener) {
+		reloadListener = listener;
+	}
+
+	/*
+	 * called by a parser once it has been reloaded
+	 */
+	static void reloaded() {
+		Runnable listener = reloadListener;
+		if (listener != null) {
+			listener.run();
 		}
 	}
 
@@ -93,6 +124,9 @@ public class ParserFactory {
 	}
 
 	public void reload() {
+		for (String name : parserMap.keySet()) {
+			Management.unregister("ApiParser", null, name);
+		}
 		parserMap.clear();
 		loadConfig();
 	}